@@ -33,16 +33,40 @@ import org.cougaar.core.service.community.Community;
 import org.cougaar.core.service.community.CommunityResponse;
 import org.cougaar.core.service.community.CommunityResponseListener;
 
+import org.cougaar.community.CommunityDelta;
 import org.cougaar.community.CommunityImpl;
 import org.cougaar.community.AgentImpl;
+import org.cougaar.community.BulkCommunityResponse;
+import org.cougaar.community.CommunityUtils;
+import org.cougaar.community.CompactAttribute;
+import org.cougaar.community.CompactAttributes;
+import org.cougaar.community.DescriptorRelay;
+import org.cougaar.community.DistributionTree;
+import org.cougaar.community.EntityVisitor;
+import org.cougaar.community.ManagerLocationCache;
+import org.cougaar.community.MembershipChange;
+import org.cougaar.community.manager.CommunityDescriptorImpl;
+import org.cougaar.community.manager.Request;
+import org.cougaar.community.manager.RequestImpl;
 import org.cougaar.community.util.Semaphore;
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.service.community.Entity;
+import org.cougaar.core.relay.Relay;
+import org.cougaar.core.util.UID;
 
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.DirContext;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
 
 /**
@@ -529,16 +553,14 @@ fail();
 
     try {
       assertTrue(clone.getName().equals(COMMUNITY) &&
-                 clone.getName() != comm.getName() &&
+                 clone.getName() == comm.getName() &&
                  clone.getAttributes().get("id").contains("val") &&
                  clone.getAttributes() != comm.getAttributes() &&
                  clone.getAttributes().get("id") != comm.getAttributes().get("id") &&
-                 clone.getAttributes().get("id").get() != comm.getAttributes().get("id").get() &&
+                 clone.getAttributes().get("id").get().equals(comm.getAttributes().get("id").get()) &&
                  clone.getEntities().size() == 2 &&
                  clone.getEntities() != comm.getEntities() &&
-                 clone.getEntity(AGENT) != comm.getEntity(AGENT) &&
                  clone.getEntity(AGENT).equals(comm.getEntity(AGENT)) &&
-                 clone.getEntity(SUBCOMMUNITY) != comm.getEntity(SUBCOMMUNITY) &&
                  clone.getEntity(SUBCOMMUNITY).equals(comm.getEntity(SUBCOMMUNITY))
                 );
     } catch (Exception ex) {
@@ -546,4 +568,542 @@ fail();
     }
   }
 
+  /**
+   * Test that community copies share unchanged members and that a member
+   * modified in one copy is private to that copy.
+   */
+  public void testCloneSharesMembers() throws NamingException {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    for (int i = 0; i < 200; i++) {
+      comm.addEntity(new AgentImpl("Agent" + i, new BasicAttributes("Role", "Member")));
+    }
+    CommunityImpl copy = (CommunityImpl)comm.clone();
+    assertTrue(copy.getEntity("Agent7") == comm.getEntity("Agent7"));
+
+    Entity entity = copy.getModifiableEntity("Agent7");
+    assertTrue(entity != comm.getEntity("Agent7") &&
+               entity == copy.getModifiableEntity("Agent7"));
+    CommunityUtils.getModifiableAttributes(entity).put("Role", "Manager");
+    copy.reindexEntity("Agent7");
+    assertTrue(comm.getEntity("Agent7").getAttributes().get("Role").contains("Member") &&
+               copy.getEntity("Agent7").getAttributes().get("Role").contains("Manager") &&
+               copy.getEntity("Agent8") == comm.getEntity("Agent8"));
+
+    // Copy made after a member was made private shares it again
+    CommunityImpl next = (CommunityImpl)copy.clone();
+    assertTrue(next.getModifiableEntity("Agent7") != copy.getEntity("Agent7"));
+
+    List names = new ArrayList();
+    for (int i = 0; i < 200; i += 2) {
+      names.add("Agent" + i);
+    }
+    copy.removeEntities(names);
+    assertTrue(copy.getEntityCount() == 100 && comm.getEntityCount() == 200 &&
+               !copy.hasEntity("Agent0") && copy.hasEntity("Agent1") &&
+               comm.hasEntity("Agent0") &&
+               new HashSet(copy.getEntityNames()).size() == 100);
+  }
+
+  /**
+   * Test that descriptor deltas bring a remote copy up to date and that a
+   * missed version is detected.
+   */
+  public void testDescriptorDelta() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY, new BasicAttributes("id", "val"));
+    for (int i = 0; i < 10; i++) {
+      comm.addEntity(new AgentImpl("Agent" + i, new BasicAttributes("Role", "Member")));
+    }
+    CommunityDescriptorImpl source =
+        new CommunityDescriptorImpl(MessageAddress.getMessageAddress(AGENT), null, null);
+    source.setSnapshot(comm);
+    CommunityDescriptorImpl target = (CommunityDescriptorImpl)send(source);
+
+    CommunityImpl prior = (CommunityImpl)comm.clone();
+    comm.removeEntity("Agent0");
+    comm.addEntity(new AgentImpl("Agent10"));
+    comm.getModifiableEntity("Agent1").getAttributes().put("Role", "Manager");
+    comm.getAttributes().put("id", "newVal");
+    source.setDelta(comm, CommunityDelta.diff(prior, comm));
+    Community before = target.getCommunity();
+    assertEquals(Relay.CONTENT_CHANGE, target.updateContent(send(source), null));
+    assertEquals(source.getVersion(), target.getVersion());
+    Community copy = target.getCommunity();
+    // Delta applied to a copy
+    assertTrue(copy != before && before.hasEntity("Agent0"));
+    assertTrue(copy.getEntities().size() == 10 &&
+               !copy.hasEntity("Agent0") &&
+               copy.hasEntity("Agent10") &&
+               copy.getEntity("Agent1").getAttributes().equals(
+                   comm.getEntity("Agent1").getAttributes()) &&
+               copy.getAttributes().equals(comm.getAttributes()));
+
+    // Skip a version
+    prior = (CommunityImpl)comm.clone();
+    comm.removeEntity("Agent2");
+    source.setDelta(comm, CommunityDelta.diff(prior, comm));
+    prior = (CommunityImpl)comm.clone();
+    comm.removeEntity("Agent3");
+    source.setDelta(comm, CommunityDelta.diff(prior, comm));
+    assertEquals(Relay.RESPONSE_CHANGE, target.updateContent(send(source), null));
+    assertTrue(target.getResponse() != null && copy.hasEntity("Agent2"));
+
+    // Source records target requesting resync
+    MessageAddress addr = MessageAddress.getMessageAddress("Node1");
+    DescriptorRelay ra = new DescriptorRelay(source.getSource(), source, null);
+    ra.updateResponse(addr, target.getResponse());
+    assertTrue(ra.takeResyncTargets().contains(addr) &&
+               ra.takeResyncTargets().isEmpty());
+
+    // Current version resent to that target only, next delta applies
+    CommunityDescriptorImpl resync =
+        new CommunityDescriptorImpl(source.getSource(), null, null);
+    resync.setResync(source);
+    assertTrue(target.resync((CommunityDescriptorImpl)send(resync)) &&
+               target.getVersion() == source.getVersion() &&
+               target.getResponse() == null &&
+               !target.getCommunity().hasEntity("Agent3"));
+    assertFalse(target.resync((CommunityDescriptorImpl)send(resync)));
+    prior = (CommunityImpl)comm.clone();
+    comm.removeEntity("Agent4");
+    source.setDelta(comm, CommunityDelta.diff(prior, comm));
+    assertEquals(Relay.CONTENT_CHANGE, target.updateContent(send(source), null));
+    assertTrue(!target.getCommunity().hasEntity("Agent4"));
+
+    source.setSnapshot(comm);
+    assertEquals(Relay.CONTENT_CHANGE, target.updateContent(send(source), null));
+    assertTrue(target.getCommunity().getEntities().size() == 7 &&
+               target.getVersion() == source.getVersion());
+  }
+
+  /**
+   * Test layout of distribution tree and reassignment of children when a
+   * forwarding node is demoted.
+   */
+  public void testDistributionTree() {
+    List routes = new ArrayList();
+    for (int i = 0; i < 10; i++) {
+      routes.add("Node" + i);
+    }
+    assertEquals(Arrays.asList(new Object[]{"Node0", "Node1", "Node2"}),
+                 DistributionTree.getChildren(routes, 3, null));
+    assertEquals(Arrays.asList(new Object[]{"Node6", "Node7", "Node8"}),
+                 DistributionTree.getChildren(routes, 3, "Node1"));
+    assertEquals(Collections.singletonList("Node9"),
+                 DistributionTree.getChildren(routes, 3, "Node2"));
+    assertTrue(DistributionTree.getChildren(routes, 3, "Node3").isEmpty());
+    assertTrue(DistributionTree.getChildren(routes, 0, null).isEmpty());
+
+    DistributionTree.demote(routes, 1);
+    assertEquals(Arrays.asList(new Object[]{"Node6", "Node7", "Node8"}),
+                 DistributionTree.getChildren(routes, 3, "Node9"));
+    assertFalse(DistributionTree.isRelay(routes, 3, routes.indexOf("Node1")));
+
+    // Every node has exactly one parent
+    List reached = new ArrayList(DistributionTree.getChildren(routes, 3, null));
+    for (Iterator it = routes.iterator(); it.hasNext();) {
+      reached.addAll(DistributionTree.getChildren(routes, 3, it.next()));
+    }
+    assertEquals(routes.size(), reached.size());
+    assertEquals(new HashSet(routes), new HashSet(reached));
+  }
+
+  /**
+   * Test that routes are sent with snapshots and retained by targets when
+   * omitted from deltas, and that a forwarded copy carries the same version.
+   */
+  public void testForwardDescriptor() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    comm.addEntity(new AgentImpl("Agent0"));
+    List routes = Arrays.asList(new Object[]{
+        MessageAddress.getMessageAddress("Node0"),
+        MessageAddress.getMessageAddress("Node1")});
+    CommunityDescriptorImpl source =
+        new CommunityDescriptorImpl(MessageAddress.getMessageAddress(AGENT), null, null);
+    source.setSnapshot(comm);
+    source.setRoutes(routes, 1, true);
+    CommunityDescriptorImpl target = (CommunityDescriptorImpl)send(source);
+    assertEquals(routes, target.getRoutes());
+
+    CommunityImpl prior = (CommunityImpl)comm.clone();
+    comm.addEntity(new AgentImpl("Agent1"));
+    source.setDelta(comm, CommunityDelta.diff(prior, comm));
+    source.setRoutes(routes, 1, false);
+    assertEquals(Relay.CONTENT_CHANGE, target.updateContent(send(source), null));
+    assertEquals(routes, target.getRoutes());
+
+    CommunityDescriptorImpl forwarded =
+        new CommunityDescriptorImpl(MessageAddress.getMessageAddress("Node0"), null, null);
+    forwarded.forward(target, false);
+    assertTrue(forwarded.isForwarded() &&
+               forwarded.getVersion() == source.getVersion());
+    CommunityDescriptorImpl child = (CommunityDescriptorImpl)send(forwarded);
+    // Delta without prior version, child requests full community
+    assertTrue(child.getCommunity() == null && child.getResponse() != null);
+    forwarded.forward(target, true);
+    child = (CommunityDescriptorImpl)send(forwarded);
+    assertTrue(child.getCommunity().hasEntity("Agent1") &&
+               routes.equals(child.getRoutes()));
+
+    // Forwarded relay survives persistence, manager copy is not forwarded
+    assertTrue(((CommunityDescriptorImpl)send(forwarded)).isForwarded());
+    assertFalse(((CommunityDescriptorImpl)send(source)).isForwarded());
+  }
+
+  /**
+   * Test that communities and entities survive serialization.
+   */
+  public void testSerializeCommunity() {
+    BasicAttributes attrs = new BasicAttributes(true);
+    attrs.put(new BasicAttribute("id", "val"));
+    BasicAttribute multi = new BasicAttribute("Role", true);
+    multi.add("Member");
+    multi.add("Member");
+    multi.add(new Integer(3));
+    attrs.put(multi);
+    CommunityImpl comm = new CommunityImpl(COMMUNITY, attrs);
+    for (int i = 0; i < 50; i++) {
+      comm.addEntity(new AgentImpl("Agent" + i, new BasicAttributes("Role", "Member")));
+    }
+    CommunityImpl sub = new CommunityImpl(SUBCOMMUNITY, new BasicAttributes("Type", "Nested"));
+    sub.addEntity(new AgentImpl(AGENT, null));
+    comm.addEntity(sub);
+
+    CommunityImpl copy = (CommunityImpl)send(comm);
+    assertTrue(copy.equals(comm) &&
+               copy.getAttributes().isCaseIgnored() &&
+               copy.getAttributes().get("role").size() == 3 &&
+               copy.getEntities().size() == 51);
+    for (Iterator it = comm.getEntities().iterator(); it.hasNext();) {
+      Entity entity = (Entity)it.next();
+      Entity copyEntity = copy.getEntity(entity.getName());
+      assertTrue(copyEntity != null &&
+                 copyEntity.getClass() == entity.getClass() &&
+                 copyEntity.getAttributes().equals(entity.getAttributes()));
+    }
+    Community copySub = (Community)copy.getEntity(SUBCOMMUNITY);
+    assertTrue(copySub.hasEntity(AGENT) &&
+               copySub.getEntity(AGENT).getAttributes() == null);
+    // Names are shared with existing copies
+    assertTrue(copy.getName() == comm.getName() &&
+               copySub.getEntity(AGENT).getName() == sub.getEntity(AGENT).getName());
+
+    AgentImpl agent = new AgentImpl(AGENT, new BasicAttributes("Role", "Member"));
+    assertEquals(agent, send(agent));
+  }
+
+  /**
+   * Entity collections returned by community are unaffected by later
+   * changes to the community, and changes to them don't affect the
+   * community.
+   */
+  public void testEntitySnapshot() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    comm.addEntity(new AgentImpl(AGENT));
+    Collection before = comm.getEntities();
+    List added = new ArrayList();
+    for (int i = 0; i < 10; i++) {
+      added.add(new AgentImpl("Agent" + i));
+    }
+    comm.addEntities(added);
+    comm.removeEntity(AGENT);
+    assertTrue(before.size() == 1 &&
+               ((Entity)before.iterator().next()).getName().equals(AGENT));
+    assertTrue(comm.getEntities().size() == 10 && !comm.hasEntity(AGENT));
+    Collection copy = comm.getEntities();
+    copy.clear();
+    assertTrue(copy.isEmpty() && comm.getEntityCount() == 10);
+    comm.removeEntities(CommunityUtils.getEntityNames(added));
+    assertTrue(comm.getEntities().isEmpty() && before.size() == 1);
+  }
+
+  /**
+   * Test visiting community members and listing member names.
+   */
+  public void testForEachEntity() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    for (int i = 0; i < 5; i++) {
+      comm.addEntity(new AgentImpl("Agent" + i));
+    }
+    comm.addEntity(new CommunityImpl(SUBCOMMUNITY));
+    final List visited = new ArrayList();
+    assertTrue(comm.forEachEntity(new EntityVisitor() {
+      public boolean visit(Entity entity) {
+        visited.add(entity.getName());
+        return true;
+      }
+    }));
+    assertTrue(visited.size() == 6 && comm.getEntityCount() == 6 &&
+               new HashSet(visited).equals(new HashSet(comm.getEntityNames())));
+    final List communities = new ArrayList();
+    assertFalse(comm.forEachEntity(new EntityVisitor() {
+      public boolean visit(Entity entity) {
+        if (entity instanceof Community) communities.add(entity);
+        return communities.isEmpty();
+      }
+    }));
+    assertTrue(communities.size() == 1);
+  }
+
+  /**
+   * Searches of a community large enough to be indexed return the same
+   * members as a scan, including after the membership changes.
+   */
+  public void testIndexedSearch() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    for (int i = 0; i < 300; i++) {
+      BasicAttributes attrs = new BasicAttributes();
+      attrs.put("Role", i % 100 == 0 ? "Manager" : "Member");
+      attrs.put("Group", "G" + (i % 10));
+      comm.addEntity(new AgentImpl("Agent" + i, attrs));
+    }
+    String filter = "(&(Role=Member)(|(Group=G1)(Group=G2)))";
+    assertEquals(60, comm.search(filter, Community.AGENTS_ONLY).size());
+    assertEquals(3, comm.search("(&(Group=G0)(!(Role=Member)))",
+                                Community.AGENTS_ONLY).size());
+    assertEquals(297, comm.search("(|(Role=Member)(Group=G5))",
+                                  Community.AGENTS_ONLY).size());
+    comm.removeEntity("Agent1");
+    assertEquals(59, comm.search(filter, Community.AGENTS_ONLY).size());
+  }
+
+  /**
+   * CompactAttributes behaves like BasicAttributes.
+   */
+  public void testCompactAttributes() throws NamingException {
+    CompactAttributes attrs = new CompactAttributes(true);
+    BasicAttributes basic = new BasicAttributes(true);
+    attrs.put("EntityType", "Agent");
+    basic.put("EntityType", "Agent");
+    Attribute role = new CompactAttribute("Role");
+    role.add("Member");
+    assertFalse(role.add("Member"));
+    role.add("Manager");
+    attrs.put(role);
+    basic.put(new BasicAttribute("Role", "Manager"));
+    basic.get("Role").add("Member");
+    assertTrue(attrs.size() == 2 &&
+               attrs.get("role") == role &&
+               attrs.equals(basic) && basic.equals(attrs) &&
+               attrs.hashCode() == basic.hashCode());
+
+    NamingEnumeration en = attrs.getAll();
+    assertTrue(attrs.remove("ENTITYTYPE") != null && attrs.size() == 1);
+    int count = 0;
+    for (; en.hasMore(); en.next()) count++;
+    assertTrue(count == 2 && !attrs.equals(basic));
+
+    Attributes clone = (Attributes)attrs.clone();
+    clone.get("Role").remove("Manager");
+    assertTrue(role.contains("Manager") && clone.get("Role").size() == 1);
+
+    Attribute ordered = new CompactAttribute("Ordered", true);
+    ordered.add("a");
+    ordered.add("a");
+    ordered.add(1, "b");
+    assertTrue(ordered.size() == 3 && ordered.get(1).equals("b") &&
+               ordered.remove(0).equals("a") && ordered.get(0).equals("b"));
+  }
+
+  /**
+   * Cloned entities with equal attributes share a single attribute set
+   * until modified, modifying the attributes of one entity doesn't affect
+   * the others.
+   */
+  public void testSharedAttributes() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    for (int i = 0; i < 3; i++) {
+      BasicAttributes attrs = new BasicAttributes();
+      attrs.put("EntityType", "Agent");
+      attrs.put("Role", "Member");
+      comm.addEntity(new AgentImpl("Agent" + i, attrs));
+    }
+    CommunityImpl clone = (CommunityImpl)comm.clone();
+    AgentImpl agent0 = (AgentImpl)clone.getModifiableEntity("Agent0");
+    AgentImpl agent1 = (AgentImpl)clone.getModifiableEntity("Agent1");
+    AgentImpl agent2 = (AgentImpl)clone.getModifiableEntity("Agent2");
+    assertTrue(CommunityUtils.getSharedAttributes(agent0) ==
+               CommunityUtils.getSharedAttributes(agent1) &&
+               CommunityUtils.getSharedAttributes(agent0).equals(
+                   comm.getEntity("Agent0").getAttributes()));
+    // Reads don't copy a shared set
+    Attributes shared = CommunityUtils.getSharedAttributes(agent2);
+    assertTrue(agent2.getAttributes().get("Role").contains("Member") &&
+               agent2.getAttributes().equals(shared) &&
+               CommunityUtils.getSharedAttributes(agent2) == shared);
+    agent0.getAttributes().get("Role").add("Manager");
+    agent1.getAttributes().remove("EntityType");
+    assertTrue(agent0.getAttributes().get("Role").contains("Manager") &&
+               !agent1.getAttributes().get("Role").contains("Manager") &&
+               agent1.getAttributes().get("EntityType") == null &&
+               agent2.getAttributes().get("EntityType") != null &&
+               !agent2.getAttributes().get("Role").contains("Manager") &&
+               !comm.getEntity("Agent0").getAttributes().get("Role").contains("Manager") &&
+               CommunityUtils.getSharedAttributes(agent2) == shared &&
+               CommunityUtils.getSharedAttributes(agent0) != shared);
+
+    CommunityImpl copy = (CommunityImpl)send(comm);
+    assertTrue(CommunityUtils.getSharedAttributes(copy.getEntity("Agent1")) ==
+               CommunityUtils.getSharedAttributes(
+                   ((CommunityImpl)comm.clone()).getModifiableEntity("Agent1")));
+  }
+
+  /**
+   * Manager locations are cached until invalidated, failed lookups are
+   * cached briefly.
+   */
+  public void testManagerLocationCache() {
+    ManagerLocationCache mlc = new ManagerLocationCache(-1, 100);
+    mlc.put(COMMUNITY, AGENT);
+    mlc.put("Unmanaged", null);
+    assertEquals(AGENT, mlc.get(COMMUNITY).getManager());
+    assertTrue(mlc.get("Unmanaged") != null &&
+               mlc.get("Unmanaged").getManager() == null &&
+               mlc.get("Unknown") == null);
+    try {
+      Thread.sleep(150);
+    } catch (InterruptedException ex) {}
+    assertTrue(mlc.get("Unmanaged") == null && mlc.get(COMMUNITY) != null);
+    mlc.invalidate(COMMUNITY);
+    assertNull(mlc.get(COMMUNITY));
+  }
+
+  /**
+   * Test of bulk membership request.  A request containing an invalid change
+   * is rejected without applying any of its changes.
+   */
+  public void testBulkMembership() {
+    Community comm = new CommunityImpl(COMMUNITY);
+    comm.addEntity(new AgentImpl(AGENT));
+    commMgr.addCommunity(comm);
+
+    final Semaphore s = new Semaphore(0);
+    CommunityResponseListener crl = new CommunityResponseListener() {
+      public void getResponse(CommunityResponse resp) {
+        commResp = resp;
+        s.release();
+      }
+    };
+    CommunityServiceTestImpl svc = (CommunityServiceTestImpl)commSvc;
+    List changes = new ArrayList();
+    changes.add(new MembershipChange(MembershipChange.JOIN,
+                                     new AgentImpl("Agent1"), null));
+    changes.add(new MembershipChange(MembershipChange.LEAVE,
+                                     new AgentImpl("Agent2"), null));
+    try {
+      svc.updateMemberships(COMMUNITY, changes, crl);
+      s.attempt(TIMEOUT);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      fail();
+    }
+    BulkCommunityResponse bulkResp = (BulkCommunityResponse)commResp;
+    assertTrue(bulkResp.getStatus() == CommunityResponse.FAIL &&
+               bulkResp.getStatus(0) == CommunityResponse.SUCCESS &&
+               bulkResp.getStatus(1) == CommunityResponse.FAIL &&
+               !comm.hasEntity("Agent1"));
+
+    List entities = new ArrayList();
+    for (int i = 1; i <= 3; i++) {
+      entities.add(new AgentImpl("Agent" + i));
+    }
+    try {
+      svc.joinCommunity(COMMUNITY, entities, crl);
+      s.attempt(TIMEOUT);
+      svc.leaveCommunity(COMMUNITY, Collections.singleton(AGENT), crl);
+      s.attempt(TIMEOUT);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      fail();
+    }
+    assertTrue(commResp.getStatus() == CommunityResponse.SUCCESS &&
+               comm.getEntities().size() == 3 &&
+               comm.hasEntity("Agent3") &&
+               !comm.hasEntity(AGENT));
+  }
+
+  /**
+   * Concurrent join requests for two communities handled by the same
+   * manager.  Every request is applied exactly once.
+   */
+  public void testConcurrentRequests() {
+    final Community comm = new CommunityImpl(COMMUNITY);
+    final Community subcomm = new CommunityImpl(SUBCOMMUNITY);
+    commMgr.addCommunity(comm);
+    commMgr.addCommunity(subcomm);
+    final int perThread = 50;
+    Thread threads[] = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final String communityName = (i % 2 == 0) ? COMMUNITY : SUBCOMMUNITY;
+      final int id = i;
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < perThread; j++) {
+            commMgr.processRequest(AGENT, communityName, MembershipChange.JOIN,
+                                   new AgentImpl("Agent" + id + "_" + j), null);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    try {
+      for (int i = 0; i < threads.length; i++) {
+        threads[i].join(TIMEOUT);
+      }
+    } catch (InterruptedException ex) {
+      fail();
+    }
+    assertEquals(2 * perThread, comm.getEntities().size());
+    assertEquals(2 * perThread, subcomm.getEntities().size());
+  }
+
+  /**
+   * Requests for a community received together are applied as a group and
+   * distributed once.
+   */
+  public void testGroupedRequests() {
+    Community comm = new CommunityImpl(COMMUNITY);
+    comm.addEntity(new AgentImpl(AGENT));
+    commMgr.addCommunity(comm);
+    int distributed = commMgr.distributeCount;
+
+    MessageAddress mgr = MessageAddress.getMessageAddress(AGENT);
+    List reqs = new ArrayList();
+    for (int i = 1; i <= 3; i++) {
+      reqs.add(new RequestImpl(MessageAddress.getMessageAddress("Agent" + i),
+                               mgr, COMMUNITY, Request.JOIN,
+                               new AgentImpl("Agent" + i), null,
+                               new UID("Agent" + i, i), null));
+    }
+    reqs.add(new RequestImpl(MessageAddress.getMessageAddress("Agent4"),
+                             mgr, COMMUNITY, Request.LEAVE,
+                             new AgentImpl("Agent4"), null,
+                             new UID("Agent4", 4), null));
+    List responses = commMgr.processRequests(COMMUNITY, reqs);
+    assertEquals(4, responses.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(CommunityResponse.SUCCESS,
+                   ((CommunityResponse)responses.get(i)).getStatus());
+    }
+    assertEquals(CommunityResponse.FAIL,
+                 ((CommunityResponse)responses.get(3)).getStatus());
+    assertEquals(4, comm.getEntities().size());
+    assertEquals(distributed + 1, commMgr.distributeCount);
+  }
+
+  // Serialize and deserialize, as when sent to a remote agent
+  private Object send(Object obj) {
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bos);
+      oos.writeObject(obj);
+      oos.close();
+      return new ObjectInputStream(
+          new ByteArrayInputStream(bos.toByteArray())).readObject();
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      fail();
+      return null;
+    }
+  }
+
 }
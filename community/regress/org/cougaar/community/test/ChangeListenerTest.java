@@ -26,6 +26,8 @@
 
 package org.cougaar.community.test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import junit.framework.*;
@@ -43,9 +45,17 @@ import org.cougaar.core.service.community.CommunityChangeEvent;
 import org.cougaar.core.service.community.CommunityResponse;
 import org.cougaar.core.service.community.CommunityResponseListener;
 
+import org.cougaar.community.ChangeEventDispatcher;
+import org.cougaar.community.CommunityCache;
+import org.cougaar.community.CommunityChangeBatch;
+import org.cougaar.community.CommunityChangeBatchListener;
 import org.cougaar.community.CommunityImpl;
+import org.cougaar.community.CommunityMemberships;
+import org.cougaar.community.CommunityRefreshListener;
+import org.cougaar.community.CommunityServiceConstants;
 import org.cougaar.community.AgentImpl;
 import org.cougaar.community.CommunityUtils;
+import org.cougaar.community.LFUEvictionPolicy;
 import org.cougaar.community.util.Semaphore;
 
 /**
@@ -315,5 +325,310 @@ public class ChangeListenerTest extends TestBase {
                COMMUNITY.equals(commChangeEvent.getWhatChanged()));
   }
 
+  /**
+   * Test that events replayed to a new listener arrive in order, one at a
+   * time.
+   */
+  public void testEventOrder() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    for (int i = 0; i < 2000; i++) {
+      comm.addEntity(new AgentImpl("Agent" + i));
+    }
+    final CommunityCacheTestImpl cache =
+        ((CommunityServiceTestImpl)commSvc).getCache();
+    cache.update(comm);
+    final Semaphore s = new Semaphore(0);
+    final int counts[] = new int[3];  // events, active deliveries, overlaps
+    cache.addListener(new CommunityChangeListener() {
+      public String getCommunityName() { return COMMUNITY; }
+      public void communityChanged(CommunityChangeEvent cce) {
+        synchronized (counts) {
+          if (counts[1]++ > 0) counts[2]++;
+          if (counts[0] == 0 && cce.getType() != cce.ADD_COMMUNITY) counts[2]++;
+        }
+        Thread.yield();
+        synchronized (counts) {
+          counts[1]--;
+          if (++counts[0] == 2001) s.release();
+        }
+      }
+    });
+    try {
+      s.attempt(10000);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      fail();
+    }
+    synchronized (counts) {
+      assertEquals(2001, counts[0]);
+      assertEquals(0, counts[2]);
+    }
+    assertEquals(0, cache.getEventQueueDepth());
+  }
+
+  /**
+   * Test that events queued for a slow listener are coalesced into the
+   * latest state of the community rather than discarded.
+   */
+  public void testSlowListenerCoalesced() throws InterruptedException {
+    ChangeEventDispatcher dispatcher = new ChangeEventDispatcher(null);
+    final Semaphore started = new Semaphore(0);
+    final Semaphore gate = new Semaphore(0);
+    final Semaphore done = new Semaphore(0);
+    final List received = new ArrayList();
+    final CommunityImpl last = new CommunityImpl(COMMUNITY);
+    CommunityChangeListener l = new CommunityChangeListener() {
+      public String getCommunityName() { return COMMUNITY; }
+      public void communityChanged(CommunityChangeEvent cce) {
+        try {
+          if (received.isEmpty()) {
+            started.release();
+            gate.acquire();
+          }
+        } catch (InterruptedException ex) {}
+        received.add(cce);
+        if (cce.getCommunity() == last) done.release();
+      }
+    };
+    int limit = CommunityServiceConstants.DEFAULT_LISTENER_QUEUE_LIMIT;
+    for (int i = 0; i <= limit + 10; i++) {
+      // Listener blocks on first event while backlog builds
+      if (i == 1) assertTrue(started.attempt(5000));
+      CommunityImpl community = i < limit + 10 ? new CommunityImpl(COMMUNITY) : last;
+      dispatcher.dispatch(l, new CommunityChangeEvent(community,
+                                                      CommunityChangeEvent.ADD_ENTITY,
+                                                      "Agent" + i));
+    }
+    gate.release();
+    assertTrue(done.attempt(5000));
+    // Backlog replaced by community state, later events delivered in order
+    CommunityChangeEvent resync = (CommunityChangeEvent)received.get(1);
+    CommunityChangeEvent cce = (CommunityChangeEvent)received.get(received.size() - 1);
+    assertTrue(dispatcher.getCoalescedCount() > 0 &&
+               received.size() < limit &&
+               resync.getType() == CommunityChangeEvent.ADD_COMMUNITY &&
+               cce.getType() == CommunityChangeEvent.ADD_ENTITY &&
+               cce.getWhatChanged().equals("Agent" + (limit + 10)));
+  }
+
+  /**
+   * Test that a batch listener receives each update as a single batch.
+   */
+  public void testBatchListener() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    for (int i = 0; i < 500; i++) {
+      comm.addEntity(new AgentImpl("Agent" + i));
+    }
+    CommunityCacheTestImpl cache =
+        ((CommunityServiceTestImpl)commSvc).getCache();
+    cache.update(comm);
+    final Semaphore s = new Semaphore(0);
+    final List batches = new ArrayList();
+    // Individual events received, checked on test thread since a failure
+    // in the dispatcher thread isn't reported
+    final List unexpected = new ArrayList();
+    cache.addListener(new CommunityChangeBatchListener() {
+      public String getCommunityName() { return COMMUNITY; }
+      public void communityChanged(CommunityChangeEvent cce) {
+        synchronized (unexpected) {
+          unexpected.add(cce);
+        }
+      }
+      public void communityChanged(CommunityChangeBatch batch) {
+        synchronized (batches) {
+          batches.add(batch);
+        }
+        s.release();
+      }
+    });
+    comm = (CommunityImpl)comm.clone();
+    for (int i = 500; i < 1000; i++) {
+      comm.addEntity(new AgentImpl("Agent" + i));
+    }
+    comm.removeEntity("Agent0");
+    cache.update(comm);
+    try {
+      s.attempt(5000);
+      s.attempt(5000);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      fail();
+    }
+    synchronized (unexpected) {
+      assertTrue("Unexpected individual events: " + unexpected,
+                 unexpected.isEmpty());
+    }
+    synchronized (batches) {
+      assertEquals(2, batches.size());
+      assertEquals(501, ((CommunityChangeBatch)batches.get(0)).getEvents().size());
+      assertEquals(501, ((CommunityChangeBatch)batches.get(1)).getEvents().size());
+    }
+  }
+
+  /**
+   * An update replaces the cached community, a community read before the
+   * update is left unchanged.
+   */
+  public void testUpdateReplacesEntry() {
+    CommunityCache cache = new CommunityCache(null, 60000);
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    comm.addEntity(new AgentImpl(AGENT));
+    comm.addEntity(new AgentImpl("Agent3"));
+    comm.setLastUpdate(1);
+    cache.update(comm);
+    Community before = cache.get(COMMUNITY);
+    CommunityImpl updated = new CommunityImpl(COMMUNITY);
+    updated.addEntity(new AgentImpl("Agent2"));
+    updated.addEntity(new AgentImpl("Agent3"));
+    updated.setLastUpdate(2);
+    cache.update(updated);
+    Community after = cache.get(COMMUNITY);
+    assertTrue(before != after &&
+               before.hasEntity(AGENT) && !before.hasEntity("Agent2") &&
+               !after.hasEntity(AGENT) && after.hasEntity("Agent2") &&
+               cache.getAncestorNames(AGENT, false).isEmpty() &&
+               cache.getAncestorNames("Agent2", false).contains(COMMUNITY) &&
+               ((CommunityImpl)after).getLastUpdate() == 2);
+    // Unchanged members are shared with the prior version
+    assertTrue(after.getEntity("Agent3") == before.getEntity("Agent3"));
+    cache.close();
+  }
+
+  /**
+   * Entries not updated within expiration period are removed and
+   * listeners notified.
+   */
+  public void testCacheExpiry() {
+    CommunityCache cache = new CommunityCache(null, 200);
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    comm.addEntity(new AgentImpl(AGENT));
+    cache.update(comm);
+    final Semaphore s = new Semaphore(0);
+    final List events = new ArrayList();
+    cache.addListener(new CommunityChangeListener() {
+      public String getCommunityName() { return COMMUNITY; }
+      public void communityChanged(CommunityChangeEvent cce) {
+        if (cce.getType() == CommunityChangeEvent.REMOVE_COMMUNITY) {
+          synchronized (events) {
+            events.add(cce);
+          }
+          s.release();
+        }
+      }
+    });
+    assertTrue(cache.contains(COMMUNITY));
+    try {
+      s.attempt(5000);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      fail();
+    }
+    synchronized (events) {
+      assertEquals(1, events.size());
+    }
+    assertTrue(!cache.contains(COMMUNITY) &&
+               cache.listAll().isEmpty() &&
+               cache.getAncestorNames(AGENT, false).isEmpty() &&
+               cache.getExpiredCount() == 1);
+    cache.close();
+  }
+
+  /**
+   * Verify that a community read before it expires is refreshed and one
+   * that isn't read is not.
+   */
+  public void testCacheRefreshAhead() {
+    final CommunityCache cache = new CommunityCache(null, 400);
+    final CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    comm.addEntity(new AgentImpl(AGENT));
+    final String cold = COMMUNITY + "_Cold";
+    long start = System.currentTimeMillis();
+    cache.update(comm);
+    cache.update(new CommunityImpl(cold));
+    final Semaphore s = new Semaphore(0);
+    final List refreshed = new ArrayList();
+    cache.addRefreshListener(new CommunityRefreshListener() {
+      public void refreshCommunity(String communityName) {
+        synchronized (refreshed) {
+          refreshed.add(communityName);
+        }
+        cache.update(comm);
+        s.release();
+      }
+    });
+    assertNotNull(cache.get(COMMUNITY));
+    try {
+      assertTrue(s.attempt(5000));
+      Thread.sleep(Math.max(0, start + 450 - System.currentTimeMillis()));
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      fail();
+    }
+    synchronized (refreshed) {
+      assertEquals(1, refreshed.size());
+      assertEquals(COMMUNITY, refreshed.get(0));
+    }
+    assertTrue(cache.contains(COMMUNITY) &&
+               !cache.contains(cold) &&
+               cache.getRefreshCount() == 1);
+    cache.close();
+  }
+
+  /**
+   * Verify that least used communities are evicted when cache is full and
+   * that communities an agent belongs to are retained.
+   */
+  public void testCacheEviction() {
+    CommunityCache cache = new CommunityCache(null);
+    cache.setEvictionPolicy(new LFUEvictionPolicy());
+    cache.setCapacity(3, CommunityCache.NEVER);
+    CommunityMemberships cm = new CommunityMemberships();
+    cm.add(COMMUNITY, new AgentImpl(AGENT));
+    cache.addMemberships(cm);
+    cache.update(new CommunityImpl(COMMUNITY));
+    cache.update(new CommunityImpl("Hot"));
+    cache.update(new CommunityImpl("Cold"));
+    assertNotNull(cache.get("Hot"));
+    cache.update(new CommunityImpl("New"));
+    assertTrue(cache.size() == 3 &&
+               cache.contains(COMMUNITY) &&
+               cache.contains("Hot") &&
+               cache.contains("New") &&
+               cache.get("Cold") == null);
+    assertTrue(cache.getHitCount() == 1 &&
+               cache.getMissCount() == 1 &&
+               cache.getEvictionCount() == 1 &&
+               cache.getEstimatedBytes() > 0);
+    final Semaphore s = new Semaphore(0);
+    final List events = new ArrayList();
+    cache.addListener(new CommunityChangeListener() {
+      public String getCommunityName() { return "Hot"; }
+      public void communityChanged(CommunityChangeEvent cce) {
+        synchronized (events) {
+          events.add(new Integer(cce.getType()));
+        }
+        s.release();
+      }
+    });
+    cache.setCapacity(1, CommunityCache.NEVER);
+    assertTrue(cache.size() == 1 &&
+               cache.contains(COMMUNITY) &&
+               cache.getEvictionCount() == 3);
+
+    // Eviction isn't reported as removal, events are delivered in order
+    // so the add below follows any event for the eviction
+    cache.setCapacity(0, 0);
+    cache.update(new CommunityImpl("Hot"));
+    try {
+      assertTrue(s.attempt(5000) && s.attempt(5000));
+    } catch (InterruptedException ex) {
+      fail();
+    }
+    synchronized (events) {
+      assertTrue(events.size() == 2 &&
+                 !events.contains(new Integer(CommunityChangeEvent.REMOVE_COMMUNITY)));
+    }
+    cache.close();
+  }
 
 }
@@ -38,7 +38,7 @@ public class CommunityCacheTestImpl extends CommunityCache {
   }
 
   protected void clear() {
-    communities.clear();
+    super.clear();
     listenerMap.clear();
   }
 
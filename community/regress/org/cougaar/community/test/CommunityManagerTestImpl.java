@@ -25,6 +25,7 @@
  */
 package org.cougaar.community.test;
 
+import java.util.List;
 import java.util.Set;
 
 import org.cougaar.util.log.LoggerFactory;
@@ -47,6 +48,7 @@ public class CommunityManagerTestImpl extends AbstractCommunityManager {
   protected CommunityUpdateListener updateListener;
   static private CommunityManagerTestImpl instance;
   static protected CommunityCache cache;
+  protected int distributeCount; // Number of calls to distributeUpdates
 
   /**
    * Construct CommunityManager component capable of communicating with remote
@@ -95,6 +97,7 @@ public class CommunityManagerTestImpl extends AbstractCommunityManager {
    * @param String communityName
    */
   protected void distributeUpdates(String communityName) {
+    distributeCount++;
     if (updateListener != null) {
       CommunityImpl community = (CommunityImpl)communities.get(communityName);
       community.setLastUpdate(System.currentTimeMillis());
@@ -139,6 +142,14 @@ public class CommunityManagerTestImpl extends AbstractCommunityManager {
 
   protected void reset() {
     communities.clear();
+    distributeCount = 0;
+  }
+
+  /**
+   * Processes requests as received by manager in one transaction.
+   */
+  protected List processRequests(String communityName, List requests) {
+    return handleRequests(communityName, requests);
   }
 
   /**
@@ -29,6 +29,7 @@ package org.cougaar.community.test;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.naming.directory.ModificationItem;
@@ -101,6 +102,18 @@ public class CommunityServiceTestImpl extends AbstractCommunityService
     handleResponse(communityName, resp, Collections.singleton(crl));
   }
 
+  protected void queueCommunityRequest(String                    communityName,
+                                       List                      changes,
+                                       CommunityResponseListener crl,
+                                       long                      timeout) {
+    log.debug(agentName+": queueCommunityRequest: " +
+              " community=" + communityName +
+              " changes=" + changes);
+    CommunityResponse resp =
+        communityManager.processRequest(agentName, communityName, changes);
+    handleResponse(communityName, resp, Collections.singleton(crl));
+  }
+
   public Collection listParentCommunities(String                    member,
                                           String                    filter,
                                           CommunityResponseListener crl) {
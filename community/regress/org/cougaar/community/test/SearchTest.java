@@ -45,6 +45,8 @@ import org.cougaar.core.service.community.CommunityResponseListener;
 
 import org.cougaar.community.CommunityImpl;
 import org.cougaar.community.AgentImpl;
+import org.cougaar.community.Filter;
+import org.cougaar.community.SearchStringParser;
 import org.cougaar.community.util.Semaphore;
 
 /**
@@ -512,6 +514,64 @@ public class SearchTest extends TestBase {
 
   }
 
+  /**
+   * Repeated searches with the same filter string reuse the compiled filter.
+   */
+  public void testRepeatedFilter() {
+    Community comm = new CommunityImpl(COMMUNITY);
+    comm.addEntity(new AgentImpl("Agent1", new BasicAttributes("Role", "Member")));
+    comm.addEntity(new AgentImpl("Agent2", new BasicAttributes("Role", "Manager")));
+    String filter = "(&(Role=Member)(Role=*))";
+    try {
+      Filter f = SearchStringParser.compile(filter);
+      assertTrue(f == SearchStringParser.compile(filter));
+      assertEquals(filter, f.toString());
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      fail();
+    }
+    for (int i = 0; i < 3; i++) {
+      Collection results = comm.search(filter, Community.ALL_ENTITIES);
+      assertTrue(results.size() == 1 && resultsContains(results, "Agent1"));
+    }
+  }
+
+  /**
+   * Search of a community large enough to be indexed.
+   */
+  public void testIndexedSearch() {
+    CommunityImpl comm = new CommunityImpl(COMMUNITY);
+    for (int i = 0; i < 500; i++) {
+      Attributes attrs = new BasicAttributes();
+      attrs.put("Role", (i % 100 == 0) ? "Manager" : "Member");
+      if (i % 2 == 0) attrs.put("Even", "true");
+      comm.addEntity(new AgentImpl("Agent" + i, attrs));
+    }
+    assertEquals(5, comm.search("(Role=Manager)", Community.ALL_ENTITIES).size());
+    assertEquals(250, comm.search("(Even=*)", Community.ALL_ENTITIES).size());
+    assertEquals(245, comm.search("(&(Role=Member)(Even=*))",
+                                  Community.ALL_ENTITIES).size());
+    assertEquals(250, comm.search("(&(Role=Member)(!(Even=*)))",
+                                  Community.ALL_ENTITIES).size());
+    assertEquals(250, comm.search("(|(Role=Manager)(Even=true))",
+                                  Community.ALL_ENTITIES).size());
+    assertEquals(0, comm.search("(Role=Nobody)", Community.ALL_ENTITIES).size());
+    assertEquals(0, comm.search("(&(Even=*)(Role=*)(Role=Nobody))",
+                                Community.ALL_ENTITIES).size());
+    assertEquals(500, comm.search("(|(Role=Member)(Role=Manager))",
+                                  Community.ALL_ENTITIES).size());
+    assertEquals(250, comm.search("(&(Role=Mem*)(!(Even=*))(Role=Member))",
+                                  Community.ALL_ENTITIES).size());
+
+    comm.removeEntity("Agent0");
+    comm.getEntity("Agent1").getAttributes().put("Role", "Manager");
+    comm.reindexEntity("Agent1");
+    Collection results = comm.search("(Role=Manager)", Community.ALL_ENTITIES);
+    assertTrue(results.size() == 5 &&
+               resultsContains(results, "Agent1") &&
+               !resultsContains(results, "Agent0"));
+  }
+
   private boolean resultsContains(Collection results, String entityName) {
     if (results != null) {
       for (Iterator it = results.iterator(); it.hasNext();) {
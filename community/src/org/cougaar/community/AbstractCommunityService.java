@@ -117,11 +117,9 @@ public abstract class AbstractCommunityService implements CommunityService,
       log.debug(agentName + ": getCommunity:" + " community=" + communityName
           + " inCache=" + cache.contains(communityName));
     }
-    if (cache.contains(communityName)) {
-      Community value = cache.get(communityName);
-      if (value == null) {
-        crl.getResponse(new CommunityResponseImpl(CommunityResponse.FAIL, null));
-      }
+    // Single lookup so cache statistics count each call once
+    Community value = cache.get(communityName);
+    if (value != null) {
       return value;
     } else {
       queueCommunityRequest(communityName, Request.GET_COMMUNITY_DESCRIPTOR,
@@ -536,6 +534,86 @@ public abstract class AbstractCommunityService implements CommunityService,
     }
   }
 
+  /**
+   * Request to add, remove or modify many members of a community in a single
+   * request.  The community manager applies either all or none of the
+   * changes and returns a BulkCommunityResponse with the status of each.
+   * 
+   * @param communityName
+   *          Community to modify
+   * @param changes
+   *          List of MembershipChange objects
+   * @param crl
+   *          Listener to receive response
+   */
+  public void updateMemberships(final String communityName,
+      final List changes, final CommunityResponseListener crl) {
+    if (log.isDebugEnabled()) {
+      log.debug(agentName + ": updateMemberships:" + " community="
+          + communityName + " changes=" + changes.size());
+    }
+    final List changesCopy = new ArrayList(changes);
+    CommunityResponseListener wcrl = new CommunityResponseListener() {
+
+      public void getResponse(CommunityResponse resp) {
+        if (resp.getStatus() == CommunityResponse.SUCCESS) {
+          for (Iterator it = changesCopy.iterator(); it.hasNext();) {
+            MembershipChange change = (MembershipChange) it.next();
+            if (change.getType() == CommunityServiceConstants.JOIN) {
+              myCommunities.add(communityName, change.getEntity());
+            } else if (change.getType() == CommunityServiceConstants.LEAVE) {
+              myCommunities.remove(communityName, change.getEntity().getName());
+            }
+          }
+        }
+        if (crl != null) {
+          crl.getResponse(resp);
+        }
+      }
+    };
+    queueCommunityRequest(communityName, changesCopy, wcrl, -1);
+  }
+
+  /**
+   * Request to add several entities to a community in a single request.
+   * 
+   * @param communityName
+   *          Community to join
+   * @param entities
+   *          Entities to add
+   * @param crl
+   *          Listener to receive response
+   */
+  public void joinCommunity(String communityName, Collection entities,
+      CommunityResponseListener crl) {
+    List changes = new ArrayList();
+    for (Iterator it = entities.iterator(); it.hasNext();) {
+      changes.add(new MembershipChange(CommunityServiceConstants.JOIN,
+          (Entity) it.next(), null));
+    }
+    updateMemberships(communityName, changes, crl);
+  }
+
+  /**
+   * Request to remove several entities from a community in a single request.
+   * 
+   * @param communityName
+   *          Community to leave
+   * @param entityNames
+   *          Names of entities to remove
+   * @param crl
+   *          Listener to receive response
+   */
+  public void leaveCommunity(String communityName, Collection entityNames,
+      CommunityResponseListener crl) {
+    List changes = new ArrayList();
+    for (Iterator it = entityNames.iterator(); it.hasNext();) {
+      changes.add(new MembershipChange(CommunityServiceConstants.LEAVE,
+          new EntityImpl((String) it.next()), null));
+    }
+    updateMemberships(communityName, changes, crl);
+  }
+
   /**
    * Adds "Parent=XXX" attribute to nested community.
    * 
@@ -886,14 +964,27 @@ public abstract class AbstractCommunityService implements CommunityService,
         break;
       case CommunityResponse.TIMEOUT:
         // TODO: Retry??
+        // Addressee didn't answer or isn't the manager
+        invalidateManager(communityName);
         sendResponse(resp, listeners);
         break;
       case CommunityResponse.FAIL:
+        // Request denied or invalid, answered by the manager
         sendResponse(resp, listeners);
         break;
     }
   }
 
+  /**
+   * Invoked when the manager of a community may have changed.  Services
+   * that cache manager locations discard the location of the community.
+   *
+   * @param communityName
+   *          Name of community
+   */
+  public void invalidateManager(String communityName) {
+  }
+
   abstract public Collection listAllCommunities();
 
   abstract public void listAllCommunities(CommunityResponseListener crl);
@@ -902,6 +993,9 @@ public abstract class AbstractCommunityService implements CommunityService,
       int requestType, Entity entity, ModificationItem[] attrMods,
       CommunityResponseListener crl, long timeout, long delay);
 
+  abstract protected void queueCommunityRequest(String communityName,
+      List changes, CommunityResponseListener crl, long timeout);
+
   abstract protected String getAgentName();
 
   abstract protected void sendResponse(CommunityResponse resp, Set listeners);
@@ -72,9 +72,9 @@ public class AgentImpl extends EntityImpl implements Agent, java.io.Serializable
    */
   public String toXml(String indent) {
     StringBuffer sb = new StringBuffer(indent + "<Agent name=\"" + getName() + "\" >\n");
-    Attributes attrs = getAttributes();
+    Attributes attrs = getSharedAttributes();
     if (attrs != null && attrs.size() > 0)
-      sb.append(attrsToString(getAttributes(), indent + "  "));
+      sb.append(attrsToString(attrs, indent + "  "));
     sb.append(indent + "</Agent>\n");
     return sb.toString();
   }
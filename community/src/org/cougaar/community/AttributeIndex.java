@@ -0,0 +1,337 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.cougaar.core.service.community.Entity;
+
+/**
+ * Inverted index of community member attributes.  Maps attribute
+ * (id, value) pairs and attribute ids to the names of the entities
+ * that have them so that equality and presence filters, and AND/OR
+ * combinations of them, can be answered without scanning every member.
+ * Attribute ids are indexed in lower case, so lookups may return a
+ * superset of the true matches; callers must still apply the filter to
+ * each candidate.  The posting set sizes double as cardinality estimates
+ * used to plan the evaluation order of compound filters.  Plans are
+ * cached per filter until the index next changes.  Not synchronized, the
+ * owning community guards access.
+ */
+class AttributeIndex {
+
+  // Maximum number of cached search plans
+  private static final int MAX_PLANS = 16;
+
+  private final Map values = new HashMap();   // id -> (value -> Set of names)
+  private final Map present = new HashMap();  // id -> Set of names
+  private final Map indexed = new HashMap();  // name -> List of {id, value}
+  private boolean complete = true;  // false if an entity couldn't be indexed
+  private int generation;  // incremented on each change to index
+
+  // Recently used plans keyed by filter, filters are shared by
+  // SearchStringParser.compile so identity is sufficient
+  private final Map plans = new LinkedHashMap(MAX_PLANS, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry eldest) {
+      return size() > MAX_PLANS;
+    }
+  };
+
+  /**
+   * Adds an entity's current attributes to index.
+   * @param entity Entity to index
+   */
+  void add(Entity entity) {
+    String name = entity.getName();
+    Attributes attrs = CommunityUtils.getSharedAttributes(entity);
+    if (name == null || attrs == null) return;
+    generation++;
+    List keys = new ArrayList();
+    try {
+      for (NamingEnumeration en = attrs.getAll(); en.hasMore();) {
+        Attribute attr = (Attribute)en.next();
+        String id = key(attr.getID());
+        post(present, id, name);
+        for (int i = 0, n = attr.size(); i < n; i++) {
+          Object value = attr.get(i);
+          if (value != null) {
+            String str = value.toString();
+            Map postings = (Map)values.get(id);
+            if (postings == null) {
+              postings = new HashMap();
+              values.put(id, postings);
+            }
+            post(postings, str, name);
+            keys.add(new String[]{id, str});
+          }
+        }
+        keys.add(new String[]{id, null});
+      }
+    } catch (Exception ex) {
+      // Index no longer covers all members, callers fall back to a scan
+      complete = false;
+    }
+    indexed.put(name, keys);
+  }
+
+  /**
+   * Removes all index entries for named entity.
+   * @param name Entity name
+   */
+  void remove(String name) {
+    List keys = (List)indexed.remove(name);
+    if (keys == null) return;
+    generation++;
+    for (Iterator it = keys.iterator(); it.hasNext();) {
+      String key[] = (String[])it.next();
+      if (key[1] == null) {
+        unpost(present, key[0], name);
+      } else {
+        Map postings = (Map)values.get(key[0]);
+        if (postings != null) {
+          unpost(postings, key[1], name);
+          if (postings.isEmpty()) values.remove(key[0]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns search plan for filter, reusing the plan of an earlier search
+   * with the same filter if the index hasn't changed since.
+   * @param f Search filter
+   * @return Plan
+   */
+  Plan plan(Filter f) {
+    Plan p = (Plan)plans.get(f);
+    if (p == null || p.generation != generation) {
+      p = complete
+          ? new Plan(reorder(f), lookup(f), generation)
+          : new Plan(f, null, generation);
+      plans.put(f, p);
+    }
+    return p;
+  }
+
+  /**
+   * Returns names of candidate entities for filter, or null if the filter
+   * can't be answered from index or is expected to match so many members
+   * that a scan is cheaper.  The returned set must not be modified.
+   */
+  private Set lookup(Filter f) {
+    Set names = find(f);
+    return names == null || names.size() > getScanLimit() ? null : names;
+  }
+
+  // Candidate set size above which scanning is cheaper than using index
+  private int getScanLimit() {
+    return indexed.size() / 2;
+  }
+
+  /**
+   * Returns an equivalent filter with AND terms ordered most selective
+   * first and OR terms ordered most likely to match first, using the
+   * member counts held by the index.  Terms that can't be estimated are
+   * placed last.  The filter passed in is not modified.
+   */
+  private Filter reorder(Filter f) {
+    if (f instanceof SearchStringParser.FilterAnd) {
+      Filter terms[] =
+          reorder(((SearchStringParser.FilterAnd)f).getFilters(), true);
+      return new SearchStringParser.FilterAnd(terms);
+    } else if (f instanceof SearchStringParser.FilterOr) {
+      Filter terms[] =
+          reorder(((SearchStringParser.FilterOr)f).getFilters(), false);
+      return new SearchStringParser.FilterOr(terms);
+    } else if (f instanceof SearchStringParser.FilterNot) {
+      return new SearchStringParser.FilterNot(
+          reorder(((SearchStringParser.FilterNot)f).getFilter()));
+    }
+    return f;
+  }
+
+  private Filter[] reorder(Filter terms[], final boolean ascending) {
+    Filter planned[] = new Filter[terms.length];
+    final Map estimates = new HashMap();
+    for (int i = 0; i < terms.length; i++) {
+      planned[i] = reorder(terms[i]);
+      estimates.put(planned[i], new Integer(estimate(planned[i])));
+    }
+    Arrays.sort(planned, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        int e1 = ((Integer)estimates.get(o1)).intValue();
+        int e2 = ((Integer)estimates.get(o2)).intValue();
+        if (e1 < 0 || e2 < 0) return (e1 < 0 ? 1 : 0) - (e2 < 0 ? 1 : 0);
+        return ascending ? e1 - e2 : e2 - e1;
+      }
+    });
+    return planned;
+  }
+
+  /**
+   * Estimates number of members matching filter.
+   * @param f Search filter
+   * @return Estimated count or -1 if unknown
+   */
+  int estimate(Filter f) {
+    if (f instanceof SearchStringParser.FilterEquality ||
+        f instanceof SearchStringParser.FilterPresence) {
+      return find(f).size();
+    } else if (f instanceof SearchStringParser.FilterAnd) {
+      Filter terms[] = ((SearchStringParser.FilterAnd)f).getFilters();
+      int result = -1;
+      for (int i = 0; i < terms.length; i++) {
+        int est = estimate(terms[i]);
+        if (est >= 0 && (result < 0 || est < result)) result = est;
+      }
+      return result;
+    } else if (f instanceof SearchStringParser.FilterOr) {
+      Filter terms[] = ((SearchStringParser.FilterOr)f).getFilters();
+      int result = 0;
+      for (int i = 0; i < terms.length; i++) {
+        int est = estimate(terms[i]);
+        if (est < 0) return -1;
+        result += est;
+      }
+      return Math.min(result, indexed.size());
+    } else if (f instanceof SearchStringParser.FilterNot) {
+      int est = estimate(((SearchStringParser.FilterNot)f).getFilter());
+      return est < 0 ? -1 : Math.max(indexed.size() - est, 0);
+    }
+    return -1;
+  }
+
+  private Set find(Filter f) {
+    if (f instanceof SearchStringParser.FilterEquality) {
+      SearchStringParser.FilterEquality eq = (SearchStringParser.FilterEquality)f;
+      Map postings = (Map)values.get(key(eq.getAttributeId()));
+      Set names = postings == null ? null : (Set)postings.get(eq.getValue());
+      return names == null ? Collections.EMPTY_SET : names;
+    } else if (f instanceof SearchStringParser.FilterPresence) {
+      SearchStringParser.FilterPresence p = (SearchStringParser.FilterPresence)f;
+      Set names = (Set)present.get(key(p.getAttributeId()));
+      return names == null ? Collections.EMPTY_SET : names;
+    } else if (f instanceof SearchStringParser.FilterAnd) {
+      // Intersect the selective terms that can be answered, smallest
+      // first, the rest are left to the caller's filter match
+      Filter terms[] = ((SearchStringParser.FilterAnd)f).getFilters();
+      Set found[] = new Set[terms.length];
+      int smallest = -1;
+      for (int i = 0; i < terms.length; i++) {
+        found[i] = find(terms[i]);
+        if (found[i] == null) continue;
+        if (found[i].isEmpty()) return Collections.EMPTY_SET;
+        if (found[i].size() > getScanLimit()) {
+          found[i] = null;
+          continue;
+        }
+        if (smallest < 0 || found[i].size() < found[smallest].size()) smallest = i;
+      }
+      if (smallest < 0) return null;
+      Set result = new HashSet(found[smallest]);
+      for (int i = 0; i < terms.length && !result.isEmpty(); i++) {
+        if (found[i] != null && i != smallest) result.retainAll(found[i]);
+      }
+      return result;
+    } else if (f instanceof SearchStringParser.FilterOr) {
+      // Union is only worthwhile if it is small, otherwise the OR is left
+      // to the caller's filter match
+      Filter terms[] = ((SearchStringParser.FilterOr)f).getFilters();
+      Set result = new HashSet();
+      for (int i = 0; i < terms.length; i++) {
+        Set names = find(terms[i]);
+        if (names == null) return null;
+        result.addAll(names);
+        if (result.size() > getScanLimit()) return null;
+      }
+      return result;
+    }
+    return null;
+  }
+
+  /**
+   * Filter to apply to the members of a community and the names of the
+   * members that may match it, valid while the index is unchanged.
+   */
+  static class Plan {
+    private final Filter filter;
+    private final Set names;
+    private final int generation;
+    Plan(Filter filter, Set names, int generation) {
+      this.filter = filter;
+      this.names = names;
+      this.generation = generation;
+    }
+    /**
+     * @return Filter with compound terms reordered by selectivity
+     */
+    Filter getFilter() {
+      return filter;
+    }
+    /**
+     * @return Names of candidate members or null if all members must be
+     *         scanned, must not be modified
+     */
+    Set getNames() {
+      return names;
+    }
+  }
+
+  private static String key(String id) {
+    return id == null ? "" : id.toLowerCase();
+  }
+
+  private static void post(Map map, String key, String name) {
+    Set names = (Set)map.get(key);
+    if (names == null) {
+      names = new HashSet();
+      map.put(key, names);
+    }
+    names.add(name);
+  }
+
+  private static void unpost(Map map, String key, String name) {
+    Set names = (Set)map.get(key);
+    if (names != null) {
+      names.remove(name);
+      if (names.isEmpty()) map.remove(key);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+/**
+ * Response to a BULK request.  In addition to the overall status the
+ * response holds the status of each change in the order submitted.  The
+ * changes are applied atomically so if any change fails none are applied.
+ **/
+public class BulkCommunityResponse extends CommunityResponseImpl {
+
+  private int[] results;
+
+  public BulkCommunityResponse(int code, Object content, int[] results) {
+    super(code, content);
+    this.results = results;
+  }
+
+  /**
+   * Returns status of a change.
+   * @param index Position of change in request
+   * @return int  SUCCESS, FAIL or TIMEOUT
+   */
+  public int getStatus(int index) {
+    return results[index];
+  }
+
+  public int size() {
+    return results.length;
+  }
+
+}
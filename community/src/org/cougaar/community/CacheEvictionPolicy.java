@@ -0,0 +1,45 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+/**
+ * Selects the cached communities to evict when a CommunityCache exceeds its
+ * capacity.  Entries with the lowest rank are evicted first.  The policy
+ * used by a cache is defined by the org.cougaar.community.cache.eviction.policy
+ * property, implementations must provide a public no-arg constructor.
+ */
+public interface CacheEvictionPolicy {
+
+  /**
+   * Returns rank of a cache entry.
+   * @param lastAccess  Time entry was last read or added
+   * @param accessCount Number of times entry has been read
+   * @param size        Estimated size of entry in bytes
+   * @return Rank, lowest ranked entries are evicted first
+   */
+  public long rank(long lastAccess, long accessCount, long size);
+
+}
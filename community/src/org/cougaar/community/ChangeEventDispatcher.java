@@ -0,0 +1,318 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.cougaar.core.service.ThreadService;
+import org.cougaar.core.service.community.Community;
+import org.cougaar.core.service.community.CommunityChangeEvent;
+import org.cougaar.core.service.community.CommunityChangeListener;
+import org.cougaar.core.thread.Schedulable;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
+
+/**
+ * Delivers CommunityChangeEvents to listeners.  Each listener has its own
+ * FIFO queue so events are received in the order they were generated.  A
+ * queue is drained by a single reusable task, using a Cougaar thread when
+ * a ThreadService is available or a small fixed pool of daemon threads
+ * shared by all dispatchers otherwise, so the number of threads is bounded
+ * regardless of the number of events or caches.  Batches of events
+ * destined for a CommunityChangeBatchListener occupy a single queue slot.
+ * A queue is bounded without losing changes, when a listener falls too far
+ * behind its pending events are coalesced into one event per community
+ * carrying the community's latest state, see coalesce.
+ */
+public class ChangeEventDispatcher {
+
+  // Max events delivered to a listener before yielding its thread
+  private static final int MAX_EVENTS_PER_RUN = 100;
+
+  // Threads used when no ThreadService is available
+  private static final int POOL_SIZE = 4;
+
+  // Queue depth at which a slow listener is reported
+  private static final int WARN_QUEUE_DEPTH = 1000;
+
+  // Queue depth above which pending events are coalesced
+  private static int queueLimit =
+      CommunityServiceConstants.DEFAULT_LISTENER_QUEUE_LIMIT;
+  static {
+    try {
+      queueLimit = Integer.parseInt(System.getProperty(
+          CommunityServiceConstants.LISTENER_QUEUE_LIMIT_PROPERTY,
+          Integer.toString(queueLimit)));
+    } catch (Exception ex) {
+      // Keep default
+    }
+  }
+
+  // Pool shared by dispatchers without a ThreadService, created on first use
+  private static ExecutorService sharedExecutor;
+
+  protected Logger logger =
+      LoggerFactory.getInstance().createLogger(ChangeEventDispatcher.class);
+  protected ThreadService threadService;
+
+  // Pending events by listener, guarded by itself
+  private final Map queues = new HashMap();
+  private int pending = 0;
+  private long coalesced = 0;
+
+  public ChangeEventDispatcher(ThreadService ts) {
+    this.threadService = ts;
+  }
+
+  private static synchronized ExecutorService getSharedExecutor() {
+    if (sharedExecutor == null) {
+      sharedExecutor = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "CommunityNotificationThread");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return sharedExecutor;
+  }
+
+  /**
+   * Queues event for delivery to each listener in set.
+   * @param listeners Set of CommunityChangeListeners
+   * @param cce       Event to deliver
+   */
+  public void dispatch(Set listeners, CommunityChangeEvent cce) {
+    for (Iterator it = listeners.iterator(); it.hasNext();) {
+      dispatch((CommunityChangeListener)it.next(), cce);
+    }
+  }
+
+  /**
+   * Queues event for delivery to listener.
+   * @param l   Listener
+   * @param cce Event to deliver
+   */
+  public void dispatch(CommunityChangeListener l, CommunityChangeEvent cce) {
+    enqueue(l, cce);
+  }
+
+  /**
+   * Queues batch of events for delivery to listener.
+   * @param l     Listener
+   * @param batch Events to deliver
+   */
+  public void dispatch(CommunityChangeBatchListener l, CommunityChangeBatch batch) {
+    enqueue(l, batch);
+  }
+
+  private void enqueue(CommunityChangeListener l, Object item) {
+    ListenerQueue q;
+    synchronized (queues) {
+      q = (ListenerQueue)queues.get(l);
+      if (q == null) {
+        q = new ListenerQueue(l);
+        queues.put(l, q);
+      }
+      q.events.add(item);
+      ++pending;
+      if (q.events.size() == WARN_QUEUE_DEPTH && logger.isWarnEnabled()) {
+        logger.warn("Slow CommunityChangeListener:" +
+                    " community=" + l.getCommunityName() +
+                    " queueDepth=" + WARN_QUEUE_DEPTH);
+      }
+      if (queueLimit > 0 && q.events.size() > q.coalesceLimit) {
+        coalesce(q);
+      }
+      if (q.scheduled) return;
+      q.scheduled = true;
+    }
+    schedule(q);
+  }
+
+  /**
+   * Replaces the events pending for a listener that has fallen behind with
+   * a single event for each community, giving its latest state.  This is
+   * REMOVE_COMMUNITY if the community's last pending event was its removal,
+   * otherwise ADD_COMMUNITY carrying the community as of its last pending
+   * event, from which the listener resynchronizes.  Events for a batch
+   * listener are delivered as a batch of one.  Caller must hold lock on
+   * queues.
+   */
+  private void coalesce(ListenerQueue q) {
+    // Last pending item for each community, in order of last occurrence
+    Map latest = new LinkedHashMap();
+    for (Iterator it = q.events.iterator(); it.hasNext();) {
+      Object item = it.next();
+      String name = item instanceof CommunityChangeBatch
+          ? ((CommunityChangeBatch)item).getCommunityName()
+          : ((CommunityChangeEvent)item).getCommunityName();
+      latest.remove(name);
+      latest.put(name, item);
+    }
+    int before = q.events.size();
+    q.events.clear();
+    for (Iterator it = latest.values().iterator(); it.hasNext();) {
+      Object item = it.next();
+      Community community;
+      int type = CommunityChangeEvent.ADD_COMMUNITY;
+      if (item instanceof CommunityChangeBatch) {
+        CommunityChangeBatch batch = (CommunityChangeBatch)item;
+        community = batch.getCommunity();
+        List events = batch.getEvents();
+        if (!events.isEmpty() &&
+            ((CommunityChangeEvent)events.get(events.size() - 1)).getType() ==
+            CommunityChangeEvent.REMOVE_COMMUNITY) {
+          type = CommunityChangeEvent.REMOVE_COMMUNITY;
+        }
+      } else {
+        community = ((CommunityChangeEvent)item).getCommunity();
+        if (((CommunityChangeEvent)item).getType() ==
+            CommunityChangeEvent.REMOVE_COMMUNITY) {
+          type = CommunityChangeEvent.REMOVE_COMMUNITY;
+        }
+      }
+      CommunityChangeEvent cce =
+          new CommunityChangeEvent(community, type, community.getName());
+      q.events.add(item instanceof CommunityChangeBatch
+                   ? (Object)new CommunityChangeBatch(community,
+                                                      Collections.singletonList(cce))
+                   : cce);
+    }
+    pending -= before - q.events.size();
+    coalesced += before - q.events.size();
+    // Many communities may remain, avoid coalescing again on next event
+    q.coalesceLimit = Math.max(queueLimit, 2 * q.events.size());
+    if (logger.isWarnEnabled()) {
+      logger.warn("Coalesced events for slow CommunityChangeListener:" +
+                  " community=" + q.listener.getCommunityName() +
+                  " queueLimit=" + queueLimit +
+                  " before=" + before +
+                  " after=" + q.events.size());
+    }
+  }
+
+  /**
+   * Returns number of events, or batches of events, waiting to be
+   * delivered to all listeners.
+   * @return Queue depth
+   */
+  public int getQueueDepth() {
+    synchronized (queues) {
+      return pending;
+    }
+  }
+
+  /**
+   * Returns number of events, or batches of events, replaced by coalescing
+   * because a listener's queue was full.
+   * @return Coalesced event count
+   */
+  public long getCoalescedCount() {
+    synchronized (queues) {
+      return coalesced;
+    }
+  }
+
+  /**
+   * Returns number of events waiting to be delivered to a listener.
+   * @param l Listener
+   * @return Queue depth
+   */
+  public int getQueueDepth(CommunityChangeListener l) {
+    synchronized (queues) {
+      ListenerQueue q = (ListenerQueue)queues.get(l);
+      return q == null ? 0 : q.events.size();
+    }
+  }
+
+  private void schedule(ListenerQueue q) {
+    if (threadService != null) {
+      if (q.thread == null) {
+        q.thread = threadService.getThread(this, q, "CommunityNotificationThread");
+      }
+      q.thread.start();
+    } else {
+      getSharedExecutor().execute(q);
+    }
+  }
+
+  /**
+   * Events pending for a single listener.  At most one run of a queue is
+   * scheduled at a time.
+   */
+  private class ListenerQueue implements Runnable {
+    private final CommunityChangeListener listener;
+    private final LinkedList events = new LinkedList();
+    private boolean scheduled = false;
+    private int coalesceLimit = queueLimit;
+    private Schedulable thread;
+
+    private ListenerQueue(CommunityChangeListener l) {
+      this.listener = l;
+    }
+
+    public void run() {
+      for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+        Object item;
+        synchronized (queues) {
+          if (events.isEmpty()) {
+            scheduled = false;
+            queues.remove(listener);
+            return;
+          }
+          item = events.removeFirst();
+          --pending;
+        }
+        try {
+          if (item instanceof CommunityChangeBatch) {
+            ((CommunityChangeBatchListener)listener).communityChanged(
+                (CommunityChangeBatch)item);
+          } else {
+            listener.communityChanged((CommunityChangeEvent)item);
+          }
+        } catch (Throwable th) {
+          if (logger.isWarnEnabled()) {
+            logger.warn("Exception in CommunityChangeListener:" +
+                        " community=" + listener.getCommunityName(), th);
+          }
+        }
+      }
+      // Yield to other listeners, remaining events are delivered on next run
+      schedule(this);
+    }
+  }
+}
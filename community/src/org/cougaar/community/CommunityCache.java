@@ -26,14 +26,24 @@
 
 package org.cougaar.community;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
@@ -42,26 +52,83 @@ import org.cougaar.core.service.community.Community;
 import org.cougaar.core.service.community.Entity;
 import org.cougaar.core.service.community.CommunityChangeEvent;
 import org.cougaar.core.service.community.CommunityChangeListener;
+import org.cougaar.core.thread.Schedulable;
 import org.cougaar.util.log.Logger;
 import org.cougaar.util.log.LoggerFactory;
 
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 
 /**
- * Maintains a local cache of Community objects.
+ * Maintains a local cache of Community objects.  The cache is shared by all
+ * agents on a node so reads (get, contains, search, getAncestorNames) are
+ * lock-free.  Updates are serialized on a private lock and new entries are
+ * fully constructed before being published to readers.  If an expiration
+ * period is set, entries that haven't been updated within the period are
+ * removed by a background sweep and listeners receive a REMOVE_COMMUNITY
+ * event.  Entries that have been read since their last update are refreshed
+ * ahead of expiration by asking a registered CommunityRefreshListener to
+ * fetch a new copy, so readers of active communities don't see a miss.
+ * The cache may be bounded by entry count and estimated size, when full
+ * the entries ranked lowest by a CacheEvictionPolicy are evicted.
+ * Eviction doesn't mean a community was removed so listeners aren't
+ * notified, an evicted community is fetched again when next needed.
+ * Communities listed in a registered CommunityMemberships are never
+ * evicted.
  */
 public class CommunityCache implements CommunityServiceConstants {
 
   protected Logger logger = LoggerFactory.getInstance().createLogger(CommunityCache.class);
-  protected Map communities = Collections.synchronizedMap(new HashMap());
+  protected ConcurrentMap communities = new ConcurrentHashMap();
   protected Map listenerMap = Collections.synchronizedMap(new HashMap());
   protected ThreadService threadService;
+  protected ChangeEventDispatcher dispatcher;
   protected long expirationPeriod = DEFAULT_CACHE_EXPIRATION;
+  protected long refreshAhead = DEFAULT_CACHE_REFRESH_AHEAD;
+  protected List refreshListeners = Collections.synchronizedList(new ArrayList());
+  protected long capacity = DEFAULT_CACHE_CAPACITY;
+  protected long maxBytes = DEFAULT_CACHE_MAX_BYTES;
+  protected CacheEvictionPolicy evictionPolicy;
+  protected List pinnedMemberships = Collections.synchronizedList(new ArrayList());
 
   private static DateFormat df = new SimpleDateFormat("HH:mm:ss,SSS");
 
+  // Serializes updates, readers never acquire this lock
+  private final Object updateLock = new Object();
+
+  // Reverse membership index.  Maps an entity name to an immutable Set
+  // containing the names of the cached communities that it is a member of.
+  private final ConcurrentMap parentIndex = new ConcurrentHashMap();
+
+  // Transitive closure of parentIndex, built on demand.  Replaced with an
+  // empty map whenever the parentIndex changes.
+  private volatile ConcurrentMap ancestorIndex = new ConcurrentHashMap();
+
+  // Number of sweeps per expiration period, determines how late an entry
+  // may be removed
+  private static final int EXPIRY_SWEEPS = 8;
+
+  // Pending expirations of CacheEntries.  Created with first entry if
+  // expirationPeriod is set, guarded by updateLock.
+  private ExpiryWheel expiryWheel;
+  private Schedulable expiryThread;
+  private ScheduledFuture expiryTask;
+
+  // Timer shared by caches without a ThreadService, created on first use
+  private static ScheduledExecutorService expiryTimer;
+  private volatile long expiredCount = 0;
+  private volatile long refreshCount = 0;
+
+  // Estimated size of all entries, guarded by updateLock
+  private long totalBytes = 0;
+  private volatile long evictionCount = 0;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
   public CommunityCache(ThreadService ts) {
     this.threadService = ts;
+    this.dispatcher = new ChangeEventDispatcher(ts);
     getSystemProperties();
   }
 
@@ -75,45 +142,115 @@ public class CommunityCache implements CommunityServiceConstants {
       expirationPeriod =
           Long.parseLong(System.getProperty(CACHE_EXPIRATION_PROPERTY,
                                             Long.toString(DEFAULT_CACHE_EXPIRATION)));
+      refreshAhead =
+          Long.parseLong(System.getProperty(CACHE_REFRESH_AHEAD_PROPERTY,
+                                            Long.toString(DEFAULT_CACHE_REFRESH_AHEAD)));
+      capacity =
+          Long.parseLong(System.getProperty(CACHE_CAPACITY_PROPERTY,
+                                            Long.toString(DEFAULT_CACHE_CAPACITY)));
+      maxBytes =
+          Long.parseLong(System.getProperty(CACHE_MAX_BYTES_PROPERTY,
+                                            Long.toString(DEFAULT_CACHE_MAX_BYTES)));
     } catch (Exception ex) {
       if (logger.isWarnEnabled()) {
         logger.warn("Exception setting parameter from system property", ex);
       }
     }
+    String policyClassname =
+        System.getProperty(CACHE_EVICTION_POLICY_PROPERTY,
+                           DEFAULT_CACHE_EVICTION_POLICY_CLASSNAME);
+    try {
+      evictionPolicy =
+          (CacheEvictionPolicy)Class.forName(policyClassname).newInstance();
+    } catch (Exception ex) {
+      if (logger.isWarnEnabled()) {
+        logger.warn("Exception creating CacheEvictionPolicy " + policyClassname +
+                    ", using LRU", ex);
+      }
+      evictionPolicy = new LRUEvictionPolicy();
+    }
+  }
+
+  /**
+   * Sets capacity of cache, entries are evicted if needed.
+   * @param entries  Maximum number of entries, 0 or NEVER if unbounded
+   * @param bytes    Maximum estimated size of entries in bytes, 0 or NEVER
+   *                 if unbounded
+   */
+  public void setCapacity(long entries, long bytes) {
+    synchronized (updateLock) {
+      capacity = entries;
+      maxBytes = bytes;
+      evictEntries(null);
+    }
+  }
+
+  public void setEvictionPolicy(CacheEvictionPolicy policy) {
+    if (policy != null) evictionPolicy = policy;
+  }
+
+  /**
+   * Register the memberships of an agent, communities listed are not
+   * evicted.
+   * @param cm  Memberships
+   */
+  public void addMemberships(CommunityMemberships cm) {
+    if (cm != null && !pinnedMemberships.contains(cm)) pinnedMemberships.add(cm);
   }
 
-  public synchronized Community get(String name) {
+  public boolean removeMemberships(CommunityMemberships cm) {
+    return pinnedMemberships.remove(cm);
+  }
+
+  public Community get(String name) {
     //TODO: Add authorization check
     Community community = null;
+    if (name == null) return null;
     CacheEntry ce = (CacheEntry)communities.get(name);
     if (ce != null) {
-      if (isExpired(ce)) {
-        // Flush cache entry if expired
-        flushCacheEntry(ce);
-      } else {
+      // Expired entries are removed by expireEntries
+      if (!isExpired(ce)) {
+        recordAccess(ce);
         community = (CommunityImpl)ce.community;
       }
     }
+    if (community != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
     return community;
   }
 
+  /*
+   * Update interest and usage of an entry.  Counts may be lost when readers
+   * race, they are only used to rank entries for eviction.
+   */
+  private void recordAccess(CacheEntry ce) {
+    if (!ce.accessed) ce.accessed = true;
+    ce.lastAccess = now();
+    ce.accessCount++;
+  }
+
   /**
    * Searches all communities in cache for a community matching search filter
    * @param filter JNDI-compliant search filter
    * @return Set of Community object matching search criteria
    */
-  public synchronized Set search(String filter) {
+  public Set search(String filter) {
     //TODO: Add authorization check
     if (communities.isEmpty())
       return null;
     Set matches = new HashSet();
     try {
-      Filter f = new SearchStringParser().parse(filter);
+      Filter f = SearchStringParser.compile(filter);
       for (Iterator it = communities.values().iterator(); it.hasNext(); ) {
         CacheEntry ce = (CacheEntry)it.next();
         CommunityImpl community = ce.community;
-        if (f.match(community.getAttributes()))
+        if (f.match(CommunityUtils.getSharedAttributes(community))) {
+          recordAccess(ce);
           matches.add(community);
+        }
       }
     }
     catch (Exception ex) {
@@ -158,41 +295,123 @@ public class CommunityCache implements CommunityServiceConstants {
   }
 
   /*
-   * Recursive search of community map for all ancestors of a specified entity.
+   * Get immediate parents of an entity from reverse membership index.
+   */
+  private Set getParents(String entityName) {
+    Set parents = entityName != null ? (Set)parentIndex.get(entityName) : null;
+    return parents != null ? parents : Collections.EMPTY_SET;
+  }
+
+  /*
+   * Get all ancestors of an entity.  The result is computed from the reverse
+   * membership index and retained until the next membership change.
    */
-  private synchronized void findAncestors(String entityName, Set ancestors, boolean recursive) {
-    Collection allCommunities = communities.values();
+  private Set findAncestors(String entityName) {
+    if (entityName == null) return Collections.EMPTY_SET;
+    Map closure = ancestorIndex;
+    Set ancestors = (Set)closure.get(entityName);
+    if (ancestors == null) {
+      ancestors = new HashSet();
+      List pending = new ArrayList(getParents(entityName));
+      while (!pending.isEmpty()) {
+        String parent = (String)pending.remove(pending.size() - 1);
+        // visited check avoids endless loop caused by circular references
+        if (ancestors.add(parent)) {
+          pending.addAll(getParents(parent));
+        }
+      }
+      ancestors = Collections.unmodifiableSet(ancestors);
+      closure.put(entityName, ancestors);
+    }
     if (logger.isDetailEnabled()) {
       logger.detail("findAncestors:" +
                     " entity=" + entityName +
-                    " ancestors=" + ancestors +
-                    " communities=" + allCommunities.size());
+                    " ancestors=" + ancestors);
     }
-    for (Iterator it = allCommunities.iterator(); it.hasNext();) {
-      CacheEntry ce = (CacheEntry)it.next();
-      Community community = ce.community;
-      if (community.hasEntity(entityName)) {
-        String parent = community.getName();
-        ancestors.add(parent);
-        if (recursive) findAncestors(parent, ancestors, recursive);
+    return ancestors;
+  }
+
+  /*
+   * Add entries for all members of a community to reverse membership index.
+   */
+  private void indexMembers(Community community) {
+    for (Iterator it = CommunityUtils.getEntityNames(community).iterator(); it.hasNext();) {
+      addParent((String)it.next(), community.getName());
+    }
+  }
+
+  /*
+   * Remove entries for all members of a community from reverse membership
+   * index.
+   */
+  private void unindexMembers(Community community) {
+    for (Iterator it = CommunityUtils.getEntityNames(community).iterator(); it.hasNext();) {
+      removeParent((String)it.next(), community.getName());
+    }
+  }
+
+  private void addParent(String entityName, String communityName) {
+    synchronized (parentIndex) {
+      Set parents = getParents(entityName);
+      if (!parents.contains(communityName)) {
+        Set newParents = new HashSet(parents);
+        newParents.add(communityName);
+        parentIndex.put(entityName, Collections.unmodifiableSet(newParents));
+        ancestorIndex = new ConcurrentHashMap();
       }
     }
   }
 
-  public synchronized void update(Community community) {
+  private void removeParent(String entityName, String communityName) {
+    synchronized (parentIndex) {
+      Set parents = getParents(entityName);
+      if (parents.contains(communityName)) {
+        if (parents.size() == 1) {
+          parentIndex.remove(entityName);
+        } else {
+          Set newParents = new HashSet(parents);
+          newParents.remove(communityName);
+          parentIndex.put(entityName, Collections.unmodifiableSet(newParents));
+        }
+        ancestorIndex = new ConcurrentHashMap();
+      }
+    }
+  }
+
+  public void update(Community community) {
     //TODO: Add authorization check
+    synchronized (updateLock) {
+      CacheEntry ce = updateEntry(community);
+      evictEntries(ce);
+    }
+  }
+
+  /*
+   * Adds or replaces entry for community.  An updated community is built
+   * as a new version of the cached community and installed with a new
+   * CacheEntry so readers see either the prior or the updated community,
+   * never a partial update.  Caller must hold updateLock.
+   */
+  private CacheEntry updateEntry(Community community) {
     CommunityImpl ci = (CommunityImpl)community;
     CacheEntry ce = (CacheEntry)communities.get(community.getName());
     if (ce != null) {
       if (ci.getLastUpdate() >= ce.community.getLastUpdate()) {
-        ce.timeStamp = now();
-        //CommunityImpl prior = ce.community;
-        //ce.community = (CommunityImpl)community;
+        CommunityImpl prior = ce.community;
+        CacheEntry updated = new CacheEntry(now(), nextVersion(prior, ci));
+        updated.lastAccess = ce.lastAccess;
+        updated.accessCount = ce.accessCount;
+        updated.size = ce.size;
+        List events = listChanges(prior, updated.community);
+        communities.replace(community.getName(), ce, updated);
+        if (expiryWheel != null) expiryWheel.cancel(ce);
+        ce = updated;
+        scheduleExpiry(ce);
         if (logger.isDebugEnabled()) {
           logger.debug("update:" +
                        " community=" + community.getName() +
-                       " prior=" + (ce.community == null ? -1 : ce.community.getEntities().size()) +
-                       " updated=" + ce.community.getEntities().size() +
+                       " prior=" + prior.getEntityCount() +
+                       " updated=" + ce.community.getEntityCount() +
                        " expires=" + (expirationPeriod == NEVER
                                       ? "NEVER"
                                       : df.format(new Date(ce.timeStamp + expirationPeriod))));
@@ -200,16 +419,20 @@ public class CommunityCache implements CommunityServiceConstants {
         if (logger.isDetailEnabled()) {
           logger.detail(this.toString());
         }
-        fireChangeNotifications(ce.community, community);
+        resize(ce);
+        notifyListeners(ce.community, events);
       }
     } else {
       ce = new CacheEntry(now(), (CommunityImpl)ci.clone());
+      indexMembers(ce.community);
       communities.put(community.getName(), ce);
+      resize(ce);
+      scheduleExpiry(ce);
       if (logger.isDebugEnabled()) {
         logger.debug("add:" +
                      " community=" + community.getName() +
                      " prior=null" +
-                     " updated=" + ce.community.getEntities().size() +
+                     " updated=" + ce.community.getEntityCount() +
                      " expires=" + (expirationPeriod == NEVER
                                     ? "NEVER"
                                     : df.format(new Date(ce.timeStamp + expirationPeriod))));
@@ -217,15 +440,129 @@ public class CommunityCache implements CommunityServiceConstants {
       if (logger.isDetailEnabled()) {
         logger.detail(this.toString());
       }
-      fireChangeNotifications(ce.community, null);
+      notifyListeners(ce.community, listChanges(null, ce.community));
+    }
+    return ce;
+  }
+
+  /*
+   * Recompute estimated size of entry.  Caller must hold updateLock.
+   */
+  private void resize(CacheEntry ce) {
+    long size = estimateSize(ce.community);
+    totalBytes += size - ce.size;
+    ce.size = size;
+  }
+
+  /*
+   * Rough estimate of the memory used by a community, a fixed overhead
+   * plus a cost for each member and attribute value.  Shared attribute
+   * sets are counted for each member that refers to them.
+   */
+  private static long estimateSize(Community community) {
+    final long[] size = new long[] {256 + estimateSize(CommunityUtils.getSharedAttributes(community))};
+    CommunityUtils.forEachEntity(community, new EntityVisitor() {
+      public boolean visit(Entity entity) {
+        size[0] += 64 + 2 * entity.getName().length() +
+                   estimateSize(CommunityUtils.getSharedAttributes(entity));
+        return true;
+      }
+    });
+    return size[0];
+  }
+
+  private static long estimateSize(Attributes attrs) {
+    long size = 0;
+    if (attrs != null) {
+      for (NamingEnumeration en = attrs.getAll(); en.hasMoreElements();) {
+        Attribute attr = (Attribute)en.nextElement();
+        size += 32 + 16 * attr.size();
+      }
     }
+    return size;
   }
 
-  public synchronized String toString() {
+  /*
+   * Remove entry and its index entries.  Caller must hold updateLock.
+   */
+  private boolean removeEntry(CacheEntry ce) {
+    if (!communities.remove(ce.community.getName(), ce)) return false;
+    unindexMembers(ce.community);
+    if (expiryWheel != null) expiryWheel.cancel(ce);
+    totalBytes -= ce.size;
+    return true;
+  }
+
+  private boolean isOverCapacity() {
+    return (capacity > 0 && communities.size() > capacity) ||
+           (maxBytes > 0 && totalBytes > maxBytes);
+  }
+
+  /*
+   * Evict lowest ranked entries until cache is within capacity.  The
+   * entry being added and communities that agents on this node belong to
+   * are retained.  Listeners aren't notified, the communities still exist.
+   * Caller must hold updateLock.
+   * @return List of evicted communities
+   */
+  private List evictEntries(CacheEntry keep) {
+    if (!isOverCapacity()) return Collections.EMPTY_LIST;
+    Set pinned = new HashSet();
+    synchronized (pinnedMemberships) {
+      for (Iterator it = pinnedMemberships.iterator(); it.hasNext();) {
+        CommunityMemberships cm = (CommunityMemberships)it.next();
+        synchronized (cm) {
+          pinned.addAll(cm.listCommunities());
+        }
+      }
+    }
+    List evicted = new ArrayList();
+    while (isOverCapacity()) {
+      CacheEntry victim = null;
+      long victimRank = 0;
+      for (Iterator it = communities.values().iterator(); it.hasNext();) {
+        CacheEntry ce = (CacheEntry)it.next();
+        if (ce == keep || pinned.contains(ce.community.getName())) continue;
+        long rank = evictionPolicy.rank(ce.lastAccess, ce.accessCount, ce.size);
+        if (victim == null || rank < victimRank) {
+          victim = ce;
+          victimRank = rank;
+        }
+      }
+      if (victim == null) break;  // Remaining entries are pinned
+      removeEntry(victim);
+      evicted.add(victim.community);
+    }
+    evictionCount += evicted.size();
+    if (!evicted.isEmpty() && logger.isDebugEnabled()) {
+      logger.debug("evictEntries:" +
+                   " evicted=" + CommunityUtils.entityNames(evicted) +
+                   " entries=" + communities.size() +
+                   " bytes=" + totalBytes +
+                   " totalEvicted=" + evictionCount);
+    }
+    return evicted;
+  }
+
+  /*
+   * Notify listeners that communities were removed from cache.
+   */
+  private void fireRemoveCommunity(List removed) {
+    for (Iterator it = removed.iterator(); it.hasNext();) {
+      Community community = (Community)it.next();
+      notifyListeners(community,
+                      Collections.singletonList(
+                          new CommunityChangeEvent(community,
+                                                   CommunityChangeEvent.REMOVE_COMMUNITY,
+                                                   community.getName())));
+    }
+  }
+
+  public String toString() {
     return "CommunityCache: contents=" + communities.keySet().toString();
   }
 
-  public synchronized String toXML() {
+  public String toXML() {
     //TODO: Add authorization check
     StringBuffer sb = new StringBuffer();
     for (Iterator it = communities.values().iterator(); it.hasNext();) {
@@ -235,7 +572,7 @@ public class CommunityCache implements CommunityServiceConstants {
     return sb.toString();
   }
 
-  public synchronized Set listAll() {
+  public Set listAll() {
     //TODO: Add authorization check
     return new HashSet(communities.keySet());
   }
@@ -249,17 +586,31 @@ public class CommunityCache implements CommunityServiceConstants {
    */
   public Set getAncestorNames(String entityName, boolean recursive) {
     //TODO: Add authorization check
-   Set ancestors = new HashSet();
+    Set ancestors = new HashSet(recursive
+                                ? findAncestors(entityName)
+                                : getParents(entityName));
     if (logger.isDetailEnabled()) {
       logger.detail("getAncestorNames:" +
                     " entity=" + entityName +
                     " recursive=" + recursive +
                     " ancestors=" + ancestors);
     }
-    findAncestors(entityName, ancestors, recursive);
     return ancestors;
   }
 
+  /**
+   * Add listener to be asked for a new copy of cached communities that are
+   * about to expire.  Only the first registered listener is used.
+   * @param l  Listener
+   */
+  public void addRefreshListener(CommunityRefreshListener l) {
+    if (l != null && !refreshListeners.contains(l)) refreshListeners.add(l);
+  }
+
+  public boolean removeRefreshListener(CommunityRefreshListener l) {
+    return refreshListeners.remove(l);
+  }
+
   /**
    * Add listener to be notified when a change occurs to community.
    * @param l  Listener to be notified
@@ -292,89 +643,137 @@ public class CommunityCache implements CommunityServiceConstants {
     return false;
   }
 
-  public synchronized boolean contains(String name) {
+  public boolean contains(String name) {
     boolean containsCurrentEntry = false;
+    if (name == null) return false;
     CacheEntry ce = (CacheEntry)communities.get(name);
     if (ce != null) {
-      if (isExpired(ce)) {
-        // Flush cache entry if expired
-        flushCacheEntry(ce);
-      } else {
-        containsCurrentEntry = true;
-      }
+      containsCurrentEntry = !isExpired(ce);
     }
     return containsCurrentEntry;
   }
 
-  public synchronized Community remove(String communityName) {
+  public Community remove(String communityName) {
     if (logger.isDebugEnabled()) {
       logger.debug("remove:" +
                    " community=" + communityName);
     }
-    CacheEntry ce = (CacheEntry)communities.remove(communityName);
-    return (ce == null ? null : ce.community);
+    if (communityName == null) return null;
+    synchronized (updateLock) {
+      CacheEntry ce = (CacheEntry)communities.get(communityName);
+      if (ce != null) {
+        removeEntry(ce);
+      }
+      return (ce == null ? null : ce.community);
+    }
+  }
+
+  /**
+   * Removes all communities from cache.  Registered listeners are retained.
+   */
+  protected void clear() {
+    synchronized (updateLock) {
+      communities.clear();
+      totalBytes = 0;
+      parentIndex.clear();
+      ancestorIndex = new ConcurrentHashMap();
+      if (expiryWheel != null) expiryWheel.clear();
+    }
   }
 
-  private void fireChangeNotifications(Community current, Community updated) {
+  /*
+   * Returns change events for an update of community from prior to current
+   * and updates parent index for added and removed members.  Prior is null
+   * for a new community.
+   */
+  private List listChanges(CommunityImpl prior, CommunityImpl current) {
     if (logger.isDetailEnabled()) {
-      logger.detail("fireChangeNotifications: community=" + (updated == null ? "null" : updated.getName()));
-    }
-    //Community community = get(updated.getName()); // a copy for Change Event
-    if (updated == null) {  // new community
-      notifyListeners(new CommunityChangeEvent(current,
-                                               CommunityChangeEvent.ADD_COMMUNITY,
-                                               current.getName()));
-      for (Iterator it = current.getEntities().iterator(); it.hasNext();) {
-        Entity entity = (Entity)it.next();
-        notifyListeners(new CommunityChangeEvent(current,
-                                                 CommunityChangeEvent.ADD_ENTITY,
-                                                 entity.getName()));
+      logger.detail("listChanges: community=" + current.getName());
+    }
+    List events = new ArrayList();
+    if (prior == null) {  // new community
+      events.add(new CommunityChangeEvent(current,
+                                          CommunityChangeEvent.ADD_COMMUNITY,
+                                          current.getName()));
+      for (Iterator it = current.getEntityNames().iterator(); it.hasNext();) {
+        events.add(new CommunityChangeEvent(current,
+                                            CommunityChangeEvent.ADD_ENTITY,
+                                            (String)it.next()));
       }
     } else {
 
       // Updated community attributes
-      if (!attributesEqual(current.getAttributes(), updated.getAttributes())) {
-        current.setAttributes((Attributes)updated.getAttributes().clone());
-        notifyListeners(new CommunityChangeEvent(current,
-                                                 CommunityChangeEvent.COMMUNITY_ATTRIBUTES_CHANGED,
-                                                 current.getName()));
+      if (!attributesEqual(CommunityUtils.getSharedAttributes(prior),
+                           CommunityUtils.getSharedAttributes(current))) {
+        events.add(new CommunityChangeEvent(current,
+                                            CommunityChangeEvent.COMMUNITY_ATTRIBUTES_CHANGED,
+                                            current.getName()));
       }
 
       // Added Entities
-      Collection addedEntities =
-          listAddedEntities(current.getEntities(), updated.getEntities());
-      for (Iterator it = addedEntities.iterator(); it.hasNext();) {
+      for (Iterator it = listAddedEntities(prior, current).iterator(); it.hasNext();) {
         String entityName = (String)it.next();
-        current.addEntity(updated.getEntity(entityName));
-        notifyListeners(new CommunityChangeEvent(current,
-                                                 CommunityChangeEvent.ADD_ENTITY,
-                                                 entityName));
+        addParent(entityName, current.getName());
+        events.add(new CommunityChangeEvent(current,
+                                            CommunityChangeEvent.ADD_ENTITY,
+                                            entityName));
       }
 
       // Removed Entities
-      Collection removedEntities =
-          listRemovedEntities(current.getEntities(), updated.getEntities());
-      for (Iterator it = removedEntities.iterator(); it.hasNext();) {
+      for (Iterator it = listRemovedEntities(prior, current).iterator(); it.hasNext();) {
         String entityName = (String)it.next();
-        current.removeEntity(entityName);
-        notifyListeners(new CommunityChangeEvent(current,
-                                                 CommunityChangeEvent.REMOVE_ENTITY,
-                                                 entityName));
+        removeParent(entityName, current.getName());
+        events.add(new CommunityChangeEvent(current,
+                                            CommunityChangeEvent.REMOVE_ENTITY,
+                                            entityName));
       }
 
       // Entities with changed attributes
-      for (Iterator it = current.getEntities().iterator(); it.hasNext();) {
+      for (Iterator it = current.listEntities().iterator(); it.hasNext();) {
         Entity curEntity = (Entity)it.next();
-        Entity updatedEntity = updated.getEntity(curEntity.getName());
-        if (updatedEntity != null &&
-            !attributesEqual(curEntity.getAttributes(), updatedEntity.getAttributes())) {
-          curEntity.setAttributes((Attributes)updatedEntity.getAttributes().clone());
-          notifyListeners(new CommunityChangeEvent(current,
-                                                   CommunityChangeEvent.ENTITY_ATTRIBUTES_CHANGED,
-                                                   curEntity.getName()));
+        Entity priorEntity = prior.getEntity(curEntity.getName());
+        if (priorEntity != null && priorEntity != curEntity &&
+            !attributesEqual(CommunityUtils.getSharedAttributes(priorEntity),
+                             CommunityUtils.getSharedAttributes(curEntity))) {
+          events.add(new CommunityChangeEvent(current,
+                                              CommunityChangeEvent.ENTITY_ATTRIBUTES_CHANGED,
+                                              curEntity.getName()));
         }
       }
     }
+    return events;
+  }
+
+  /*
+   * Returns a new version of prior updated to match current.  The new
+   * version shares the members that are unchanged with prior and the
+   * changed members with current, so only changed members are copied.
+   */
+  private CommunityImpl nextVersion(CommunityImpl prior, CommunityImpl current) {
+    // Snapshot so that members taken from current aren't later modified
+    // in place by its owner
+    CommunityImpl source = (CommunityImpl)current.clone();
+    CommunityImpl next = (CommunityImpl)prior.clone();
+    Attributes attrs = CommunityUtils.getSharedAttributes(source);
+    if (!attributesEqual(CommunityUtils.getSharedAttributes(prior), attrs)) {
+      next.setAttributes(CompactAttributes.share(attrs));
+    }
+    next.removeEntities(listRemovedEntities(prior, source));
+    List changed = new ArrayList();
+    for (Iterator it = source.listEntities().iterator(); it.hasNext();) {
+      Entity entity = (Entity)it.next();
+      Entity priorEntity = prior.getEntity(entity.getName());
+      if (priorEntity != entity &&
+          (priorEntity == null ||
+           priorEntity.getClass() != entity.getClass() ||
+           !attributesEqual(CommunityUtils.getSharedAttributes(priorEntity),
+                            CommunityUtils.getSharedAttributes(entity)))) {
+        changed.add(entity);
+      }
+    }
+    next.addEntities(changed);
+    next.setLastUpdate(source.getLastUpdate());
+    return next;
   }
 
   private boolean attributesEqual(Attributes attrs1, Attributes attrs2) {
@@ -382,16 +781,22 @@ public class CommunityCache implements CommunityServiceConstants {
            attrs1 != null && attrs1.equals(attrs2);
   }
 
-  private Collection listAddedEntities(Collection prior, Collection current) {
-    Collection added = CommunityUtils.getEntityNames(current);
-    added.removeAll(CommunityUtils.getEntityNames(prior));
-    return added;
+  private Collection listAddedEntities(Community prior, Community current) {
+    return listMissingEntities(current, prior);
   }
 
-  private Collection listRemovedEntities(Collection prior, Collection current) {
-    Collection removed = CommunityUtils.getEntityNames(prior);
-    removed.removeAll(CommunityUtils.getEntityNames(current));
-    return removed;
+  private Collection listRemovedEntities(Community prior, Community current) {
+    return listMissingEntities(prior, current);
+  }
+
+  // Returns names of members of community that are not in other
+  private Collection listMissingEntities(Community community, Community other) {
+    Collection missing = new ArrayList();
+    for (Iterator it = CommunityUtils.getEntityNames(community).iterator(); it.hasNext();) {
+      String name = (String)it.next();
+      if (!other.hasEntity(name)) missing.add(name);
+    }
+    return missing;
   }
 
   private long now() {
@@ -402,18 +807,221 @@ public class CommunityCache implements CommunityServiceConstants {
     return (expirationPeriod != NEVER && (ce.timeStamp + expirationPeriod) < now());
   }
 
-  private void flushCacheEntry(CacheEntry ce) {
-    if (logger.isInfoEnabled()) {
-      logger.info("flushEntry: community=" + ce.community.getName());
+  /*
+   * Returns how long before expiration an entry is refreshed, or NEVER.
+   */
+  private long getRefreshLead() {
+    if (expirationPeriod == NEVER || refreshAhead == NEVER) return NEVER;
+    long lead = refreshAhead > 0 ? refreshAhead : expirationPeriod / 4;
+    return Math.min(lead, expirationPeriod);
+  }
+
+  /*
+   * Returns time at which entry should next be examined by expireEntries,
+   * either its refresh point or the end of its expiration period.  An entry
+   * that has passed its refresh point without being read is examined again
+   * on each sweep so that a later read still triggers a refresh.
+   */
+  private long getNextDeadline(CacheEntry ce, long now) {
+    long expires = ce.timeStamp + expirationPeriod;
+    long lead = getRefreshLead();
+    if (lead == NEVER || ce.refreshRequested) return expires;
+    return Math.min(Math.max(expires - lead, now), expires);
+  }
+
+  /*
+   * Schedules entry for refresh or removal, replacing any prior schedule.
+   * Caller must hold updateLock.
+   */
+  private void scheduleExpiry(CacheEntry ce) {
+    if (expirationPeriod == NEVER) return;
+    if (expiryWheel == null) {
+      expiryWheel = new ExpiryWheel(expirationPeriod / EXPIRY_SWEEPS,
+                                    expirationPeriod, now());
+      startExpiryThread(expiryWheel.getTick());
+    }
+    expiryWheel.schedule(ce, getNextDeadline(ce, now()));
+  }
+
+  private void startExpiryThread(long interval) {
+    Runnable sweeper = new Runnable() {
+      public void run() {
+        expireEntries();
+      }
+    };
+    if (threadService != null) {
+      expiryThread = threadService.getThread(this, sweeper, "CommunityCacheExpiry");
+      expiryThread.schedule(interval, interval);
+    } else {
+      expiryTask = getExpiryTimer().scheduleWithFixedDelay(sweeper, interval,
+                                                           interval,
+                                                           TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getExpiryTimer() {
+    if (expiryTimer == null) {
+      expiryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "CommunityCacheExpiry");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return expiryTimer;
+  }
+
+  /**
+   * Stops periodic expiration of entries.  Invoked when a cache is
+   * discarded, entries are no longer expired or refreshed once closed.
+   */
+  public void close() {
+    synchronized (updateLock) {
+      if (expiryThread != null) {
+        expiryThread.cancelTimer();
+        expiryThread = null;
+      }
+      if (expiryTask != null) {
+        expiryTask.cancel(false);
+        expiryTask = null;
+      }
+    }
+  }
+
+  /**
+   * Removes entries that haven't been updated within the expiration period
+   * and notifies listeners.  Entries nearing expiration that have been read
+   * since their last update are refreshed.  Invoked periodically once the
+   * cache contains an entry.
+   */
+  protected void expireEntries() {
+    List expired = new ArrayList();
+    List refresh = new ArrayList();
+    synchronized (updateLock) {
+      if (expiryWheel == null) return;
+      long now = now();
+      long lead = getRefreshLead();
+      List due = expiryWheel.advance(now);
+      for (Iterator it = due.iterator(); it.hasNext();) {
+        CacheEntry ce = (CacheEntry)it.next();
+        if (!isExpired(ce)) {
+          if (lead != NEVER && ce.accessed && !ce.refreshRequested &&
+              now >= ce.timeStamp + expirationPeriod - lead) {
+            ce.refreshRequested = true;
+            refresh.add(ce.community.getName());
+          }
+          expiryWheel.schedule(ce, getNextDeadline(ce, now));
+        } else if (removeEntry(ce)) {
+          expired.add(ce.community);
+        }
+      }
+      expiredCount += expired.size();
+      refreshCount += refresh.size();
+    }
+    for (Iterator it = refresh.iterator(); it.hasNext();) {
+      refreshEntry((String)it.next());
+    }
+    fireRemoveCommunity(expired);
+    if (!expired.isEmpty() && logger.isInfoEnabled()) {
+      logger.info("expireEntries:" +
+                  " expired=" + CommunityUtils.entityNames(expired) +
+                  " totalExpired=" + expiredCount);
+    }
+  }
+
+  /**
+   * Requests a new copy of a cached community from the first registered
+   * CommunityRefreshListener.  The entry is updated when the response
+   * arrives, if it doesn't arrive the entry expires normally.
+   * @param communityName Name of community to refresh
+   */
+  protected void refreshEntry(String communityName) {
+    CommunityRefreshListener l = null;
+    synchronized (refreshListeners) {
+      if (!refreshListeners.isEmpty()) {
+        l = (CommunityRefreshListener)refreshListeners.get(0);
+      }
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("refreshEntry:" +
+                   " community=" + communityName +
+                   " listener=" + (l != null));
+    }
+    if (l != null) {
+      try {
+        l.refreshCommunity(communityName);
+      } catch (Exception ex) {
+        if (logger.isWarnEnabled()) {
+          logger.warn("Exception refreshing community " + communityName, ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns number of entries that were refreshed before expiring.
+   * @return Refresh request count
+   */
+  public long getRefreshCount() {
+    return refreshCount;
+  }
+
+  /**
+   * Returns number of reads that found a current entry.
+   * @return Hit count
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns number of reads that didn't find a current entry.
+   * @return Miss count
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns number of entries removed to keep cache within its capacity.
+   * @return Eviction count
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Returns number of entries in cache.
+   * @return Entry count
+   */
+  public int size() {
+    return communities.size();
+  }
+
+  /**
+   * Returns estimated size of cached communities in bytes.
+   * @return Estimated size
+   */
+  public long getEstimatedBytes() {
+    synchronized (updateLock) {
+      return totalBytes;
     }
-    remove(ce.community.getName());
+  }
+
+  /**
+   * Returns number of entries removed from cache because they expired.
+   * @return Expired entry count
+   */
+  public long getExpiredCount() {
+    return expiredCount;
   }
 
   /*
    * Determines if a local copy exists for all nested communities from a
    * specified root community.
    */
-  private synchronized boolean allDescendentsFound(Community community) {
+  private boolean allDescendentsFound(Community community) {
     Collection nestedCommunities =
         community.search("(Role=Member)", Community.COMMUNITIES_ONLY);
     for (Iterator it = nestedCommunities.iterator(); it.hasNext();) {
@@ -425,10 +1033,10 @@ public class CommunityCache implements CommunityServiceConstants {
   }
 
   private void recursiveSearch(Community community,
-                               String filter,
-                               int qualifier,
-                               Set matches,
-                               Set visited) {
+                               final String filter,
+                               final int qualifier,
+                               final Set matches,
+                               final Set visited) {
     if (community != null) {
       visited.add(community.getName());  // avoid endless loop caused by circular references
       Collection entities = community.search(filter, qualifier);
@@ -440,79 +1048,79 @@ public class CommunityCache implements CommunityServiceConstants {
                       " matches=" + CommunityUtils.entityNames(entities));
       }
       matches.addAll(entities);
-      for (Iterator it = community.getEntities().iterator(); it.hasNext(); ) {
-        Entity entity = (Entity)it.next();
-        if (entity instanceof Community) {
-          String nestedCommunityName = entity.getName();
-          Community nestedCommunity = get(nestedCommunityName);
-          if (nestedCommunity != null && !visited.contains(nestedCommunity.getName())) {
-            recursiveSearch(nestedCommunity, filter, qualifier, matches, visited);
+      CommunityUtils.forEachEntity(community, new EntityVisitor() {
+        public boolean visit(Entity entity) {
+          if (entity instanceof Community) {
+            Community nestedCommunity = get(entity.getName());
+            if (nestedCommunity != null &&
+                !visited.contains(nestedCommunity.getName())) {
+              recursiveSearch(nestedCommunity, filter, qualifier, matches, visited);
+            }
           }
+          return true;
         }
-      }
+      });
     }
   }
 
   /**
    * Invoke callback on each CommunityListener associated with named
    * community and its ancestors.  Provide community reference in callback
-   * argument.
-   * @param cce CommunityChangeEvent to fire
+   * argument.  CommunityChangeBatchListeners receive all events in a single
+   * batch, other listeners receive each event individually.
+   * @param community Changed community
+   * @param events    List of CommunityChangeEvents to fire
    */
-  private void notifyListeners(CommunityChangeEvent cce) {
+  private void notifyListeners(Community community, List events) {
+    if (events.isEmpty()) return;
     Set listenerSet = new HashSet();
     Set affectedCommunities = new HashSet();
-    affectedCommunities.add(cce.getCommunityName());
-    affectedCommunities.addAll(getAncestorNames(cce.getCommunityName(), true));
+    affectedCommunities.add(community.getName());
+    affectedCommunities.addAll(getAncestorNames(community.getName(), true));
     for (Iterator it = affectedCommunities.iterator(); it.hasNext();) {
-      Set listeners = getListeners((String)it.next());
-      for (Iterator it1 = listeners.iterator(); it1.hasNext();) {
-        listenerSet.add((CommunityChangeListener)it1.next());
-      }
-    }
-    Set listeners = getListeners("ALL_COMMUNITIES");
-    for (Iterator it = listeners.iterator(); it.hasNext();) {
-      listenerSet.add((CommunityChangeListener)it.next());
+      listenerSet.addAll(getListeners((String)it.next()));
     }
+    listenerSet.addAll(getListeners("ALL_COMMUNITIES"));
     if (logger.isDetailEnabled()) {
-      logger.detail("notifyListeners:" +
-                   " community=" + cce.getCommunityName() +
-                   " changeType=" + CommunityChangeEvent.getChangeTypeAsString(cce.getType()) +
-                   " whatChanged=" + cce.getWhatChanged() +
-                   " numListeners=" + listenerSet.size());
+      for (Iterator it = events.iterator(); it.hasNext();) {
+        CommunityChangeEvent cce = (CommunityChangeEvent)it.next();
+        logger.detail("notifyListeners:" +
+                     " community=" + cce.getCommunityName() +
+                     " changeType=" + CommunityChangeEvent.getChangeTypeAsString(cce.getType()) +
+                     " whatChanged=" + cce.getWhatChanged() +
+                     " numListeners=" + listenerSet.size() +
+                     " queueDepth=" + dispatcher.getQueueDepth());
+      }
     }
-    fireCommunityChangeEvent(listenerSet,  cce);
-  }
-
-  private void fireCommunityChangeEvent(CommunityChangeListener l,
-                                          CommunityChangeEvent cce) {
-    Set listeners = new HashSet();
-    listeners.add(l);
-    fireCommunityChangeEvent(listeners, cce);
+    fireCommunityChangeEvents(listenerSet, community, events);
   }
 
-  private void fireCommunityChangeEvent(final Set listeners,
-                                          final CommunityChangeEvent cce) {
-    if (threadService != null) { // use Cougaar threads
-      threadService.getThread(this, new Runnable() {
-        public void run() {
-          for (Iterator it = listeners.iterator(); it.hasNext(); ) {
-            ((CommunityChangeListener)it.next()).communityChanged(cce);
-          }
-        }
-      } , "CommunityNotificationThread").start();
-    } else {  // Use regular Java threads
-      new Thread("CommunityNotificationThread") {
-        public void run() {
-          for (Iterator it = listeners.iterator(); it.hasNext(); ) {
-            ((CommunityChangeListener)it.next()).communityChanged(cce);
-          }
+  private void fireCommunityChangeEvents(Set listeners,
+                                         Community community,
+                                         List events) {
+    CommunityChangeBatch batch = null;
+    for (Iterator it = listeners.iterator(); it.hasNext();) {
+      CommunityChangeListener l = (CommunityChangeListener)it.next();
+      if (l instanceof CommunityChangeBatchListener) {
+        if (batch == null) batch = new CommunityChangeBatch(community, events);
+        dispatcher.dispatch((CommunityChangeBatchListener)l, batch);
+      } else {
+        for (Iterator it1 = events.iterator(); it1.hasNext();) {
+          dispatcher.dispatch(l, (CommunityChangeEvent)it1.next());
         }
-      }.start();
+      }
     }
   }
 
-  private synchronized void addListener(String communityName, CommunityChangeListener l) {
+  /**
+   * Returns number of change events waiting to be delivered to listeners.
+   * @return Event queue depth
+   */
+  public int getEventQueueDepth() {
+    return dispatcher.getQueueDepth();
+  }
+
+  private void addListener(String communityName, CommunityChangeListener l) {
     if (l != null) {
       String cname = (communityName != null ? communityName : "ALL_COMMUNITIES");
       if (logger.isDetailEnabled()) {
@@ -528,38 +1136,43 @@ public class CommunityCache implements CommunityServiceConstants {
         listeners.add(l);
         // If listener is interested in communities which are already in cache
         // send an initial event
+        Set listenerSet = Collections.singleton(l);
         if (cname.equals("ALL_COMMUNITIES")) {
           for (Iterator it = communities.values().iterator(); it.hasNext();) {
             CacheEntry ce = (CacheEntry)it.next();
-            Community community = ce.community;
-            fireCommunityChangeEvent(l, new CommunityChangeEvent(community,
-                                                                 CommunityChangeEvent.ADD_COMMUNITY,
-                                                                 community.getName()));
-            for (Iterator it1 = community.getEntities().iterator(); it1.hasNext();) {
-              Entity entity = (Entity)it1.next();
-              fireCommunityChangeEvent(l, new CommunityChangeEvent(community,
-                                                                   CommunityChangeEvent.ADD_ENTITY,
-                                                                   entity.getName()));
-            }
+            fireCommunityChangeEvents(listenerSet, ce.community,
+                                      listCommunityContents(ce.community));
           }
         } else {
           Community community = get(cname);
           if (community != null) {
-            fireCommunityChangeEvent(l, new CommunityChangeEvent(community,
-                                                                 CommunityChangeEvent.ADD_COMMUNITY,
-                                                                 community.getName()));
-            for (Iterator it = community.getEntities().iterator(); it.hasNext(); ) {
-              Entity entity = (Entity)it.next();
-              fireCommunityChangeEvent(l, new CommunityChangeEvent(community,
-                                                                   CommunityChangeEvent.ADD_ENTITY,
-                                                                   entity.getName()));
-            }
+            fireCommunityChangeEvents(listenerSet, community,
+                                      listCommunityContents(community));
           }
         }
       }
     }
   }
 
+  /**
+   * Returns events describing a community and its current members, used to
+   * initialize a new listener.
+   * @param community Community
+   * @return List of CommunityChangeEvents
+   */
+  private List listCommunityContents(Community community) {
+    List events = new ArrayList();
+    events.add(new CommunityChangeEvent(community,
+                                        CommunityChangeEvent.ADD_COMMUNITY,
+                                        community.getName()));
+    for (Iterator it = CommunityUtils.getEntityNames(community).iterator(); it.hasNext();) {
+      events.add(new CommunityChangeEvent(community,
+                                          CommunityChangeEvent.ADD_ENTITY,
+                                          (String)it.next()));
+    }
+    return events;
+  }
+
   /**
    * Gets listeners.
    * @param communityName Name of communtiy
@@ -575,11 +1188,21 @@ public class CommunityCache implements CommunityServiceConstants {
   }
 
   class CacheEntry {
-    private long timeStamp;
-    private CommunityImpl community;
+    private volatile long timeStamp;
+    private final CommunityImpl community;
+    // Read since last update
+    private volatile boolean accessed;
+    // Refresh issued since last update, guarded by updateLock
+    private boolean refreshRequested;
+    // Usage used to rank entry for eviction
+    private volatile long lastAccess;
+    private volatile long accessCount;
+    // Estimated size in bytes, guarded by updateLock
+    private long size;
     CacheEntry(long timeStamp, CommunityImpl community) {
       this.timeStamp = timeStamp;
       this.community = community;
+      this.lastAccess = timeStamp;
     }
   }
 
@@ -0,0 +1,81 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.cougaar.core.service.community.Community;
+
+/**
+ * All CommunityChangeEvents resulting from a single update of a community,
+ * in the order they were generated.  Delivered to
+ * CommunityChangeBatchListeners in place of the individual events.
+ */
+public class CommunityChangeBatch {
+
+  private final Community community;
+  private final List events;
+
+  /**
+   * Constructor
+   * @param community Changed community
+   * @param events    List of CommunityChangeEvents
+   */
+  public CommunityChangeBatch(Community community, List events) {
+    this.community = community;
+    this.events = Collections.unmodifiableList(events);
+  }
+
+  /**
+   * Returns changed community.
+   * @return Community
+   */
+  public Community getCommunity() {
+    return community;
+  }
+
+  /**
+   * Returns name of changed community.
+   * @return Community name
+   */
+  public String getCommunityName() {
+    return community.getName();
+  }
+
+  /**
+   * Returns the individual change events.
+   * @return Unmodifiable List of CommunityChangeEvents
+   */
+  public List getEvents() {
+    return events;
+  }
+
+  public String toString() {
+    return "CommunityChangeBatch: community=" + getCommunityName() +
+           " events=" + events.size();
+  }
+}
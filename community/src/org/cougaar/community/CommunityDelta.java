@@ -0,0 +1,193 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.cougaar.core.service.community.Community;
+import org.cougaar.core.service.community.Entity;
+
+/**
+ * Differences between two versions of a community: entities added,
+ * names of entities removed, and attribute modifications to the community
+ * and its remaining entities.  Used to send community updates without
+ * resending unchanged members.
+ */
+public class CommunityDelta implements Serializable {
+
+  private String name;
+  private long lastUpdate;
+  private ModificationItem[] communityMods;
+  private List added = new ArrayList();
+  private List removed = new ArrayList();
+  private Map entityMods = new HashMap();  // entity name -> ModificationItem[]
+
+  private CommunityDelta(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Computes changes needed to transform prior into current.
+   * @param prior   Earlier version of community
+   * @param current Later version of same community
+   * @return Delta
+   */
+  public static CommunityDelta diff(Community prior, Community current) {
+    CommunityDelta delta = new CommunityDelta(current.getName());
+    if (current instanceof CommunityImpl) {
+      delta.lastUpdate = ((CommunityImpl)current).getLastUpdate();
+    }
+    delta.communityMods = diff(CommunityUtils.getSharedAttributes(prior),
+                               CommunityUtils.getSharedAttributes(current));
+    for (Iterator it = CommunityUtils.listEntities(current).iterator(); it.hasNext();) {
+      Entity entity = (Entity)it.next();
+      Entity priorEntity = prior.getEntity(entity.getName());
+      // Members shared between copies are unchanged
+      if (priorEntity == entity) continue;
+      if (priorEntity == null ||
+          priorEntity.getClass() != entity.getClass()) {
+        if (priorEntity != null) delta.removed.add(entity.getName());
+        delta.added.add(entity instanceof EntityImpl
+                        ? ((EntityImpl)entity).clone()
+                        : entity);
+      } else {
+        ModificationItem mods[] =
+            diff(CommunityUtils.getSharedAttributes(priorEntity),
+                 CommunityUtils.getSharedAttributes(entity));
+        if (mods.length > 0) delta.entityMods.put(entity.getName(), mods);
+      }
+    }
+    for (Iterator it = CommunityUtils.listEntities(prior).iterator(); it.hasNext();) {
+      String entityName = ((Entity)it.next()).getName();
+      if (!current.hasEntity(entityName)) delta.removed.add(entityName);
+    }
+    return delta;
+  }
+
+  /**
+   * Applies changes to a community.
+   * @param community Community at version this delta was computed from
+   */
+  public void applyTo(CommunityImpl community) {
+    if (communityMods.length > 0) {
+      Attributes attrs = community.getModifiableAttributes();
+      apply(attrs, communityMods);
+      community.setAttributes(attrs);
+    }
+    community.removeEntities(removed);
+    community.addEntities(added);
+    for (Iterator it = entityMods.entrySet().iterator(); it.hasNext();) {
+      Map.Entry me = (Map.Entry)it.next();
+      String entityName = (String)me.getKey();
+      Entity entity = community.getModifiableEntity(entityName);
+      if (entity != null) {
+        apply(CommunityUtils.getModifiableAttributes(entity),
+              (ModificationItem[])me.getValue());
+        community.reindexEntity(entityName);
+      }
+    }
+    if (lastUpdate > 0) community.setLastUpdate(lastUpdate);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns true if delta contains no changes.
+   * @return True if empty
+   */
+  public boolean isEmpty() {
+    return communityMods.length == 0 && added.isEmpty() &&
+        removed.isEmpty() && entityMods.isEmpty();
+  }
+
+  /**
+   * Returns number of entities added, removed or modified.
+   * @return Number of changed entities
+   */
+  public int size() {
+    return added.size() + removed.size() + entityMods.size();
+  }
+
+  public String toString() {
+    return "CommunityDelta: community=" + name +
+        " added=" + added.size() +
+        " removed=" + removed.size() +
+        " modified=" + entityMods.size() +
+        " communityMods=" + communityMods.length;
+  }
+
+  // Returns REPLACE/REMOVE items that transform prior attributes into current
+  private static ModificationItem[] diff(Attributes prior, Attributes current) {
+    List mods = new ArrayList();
+    try {
+      if (current != null) {
+        for (NamingEnumeration en = current.getAll(); en.hasMore();) {
+          Attribute attr = (Attribute)en.next();
+          Attribute priorAttr = prior == null ? null : prior.get(attr.getID());
+          if (!attr.equals(priorAttr)) {
+            mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                                          (Attribute)attr.clone()));
+          }
+        }
+      }
+      if (prior != null) {
+        for (NamingEnumeration en = prior.getAll(); en.hasMore();) {
+          Attribute attr = (Attribute)en.next();
+          if (current == null || current.get(attr.getID()) == null) {
+            mods.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, attr));
+          }
+        }
+      }
+    } catch (NamingException ex) {
+      // Attributes enumerations used by community don't throw
+    }
+    return (ModificationItem[])mods.toArray(new ModificationItem[mods.size()]);
+  }
+
+  private static void apply(Attributes attrs, ModificationItem mods[]) {
+    for (int i = 0; i < mods.length; i++) {
+      Attribute attr = mods[i].getAttribute();
+      attrs.remove(attr.getID());
+      if (mods[i].getModificationOp() == DirContext.REPLACE_ATTRIBUTE) {
+        attrs.put(new CompactAttribute(attr));
+      }
+    }
+  }
+}
@@ -31,7 +31,6 @@ import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -55,9 +54,31 @@ public class CommunityImpl extends EntityImpl
     implements Community, java.io.Serializable, Cloneable {
 
   protected static final DateFormat df = new SimpleDateFormat("hh:mm:ss,SSS");
-  protected Map entities = Collections.synchronizedMap(new HashMap());
+  // Members keyed by name.  A published map is never modified, writers
+  // replace it with an updated map sharing all unchanged entries so readers
+  // need no lock or copy.  Copies of a community share the map and its
+  // member entities, see getModifiableEntity.
+  protected volatile PersistentMap entities = PersistentMap.EMPTY;
   protected long lastUpdate;
 
+  // Member attribute index used by search, built once community reaches
+  // indexThreshold members.  Guarded by this.
+  private transient AttributeIndex index;
+  // Names of members cloned by getModifiableEntity since this copy was
+  // made, these are not shared with other copies.  Guarded by this.
+  private transient Set owned;
+  private static int indexThreshold =
+      CommunityServiceConstants.DEFAULT_SEARCH_INDEX_THRESHOLD;
+  static {
+    try {
+      indexThreshold = Integer.parseInt(System.getProperty(
+          CommunityServiceConstants.SEARCH_INDEX_THRESHOLD_PROPERTY,
+          Integer.toString(indexThreshold)));
+    } catch (Exception ex) {
+      // Keep default
+    }
+  }
+
   /**
    * Constructor
    * @param name Name of community
@@ -79,26 +100,63 @@ public class CommunityImpl extends EntityImpl
 
   /**
    * Returns a collection containing all entities associated with this
-   * community.
+   * community.  The collection is a copy that may be modified by the caller,
+   * use forEachEntity to visit members without copying.
    * @return  Collection of Entity objects
    */
   public Collection getEntities() {
-    synchronized (entities) {
-      if (entities.isEmpty()) {
-        return new ArrayList();
-      } else {
-        return new ArrayList(entities.values());
-      }
-    }
+    return new ArrayList(entities.values());
+  }
+
+  /**
+   * Returns a read-only snapshot of the entities associated with this
+   * community, not affected by subsequent changes to the community.
+   * @return  Collection of Entity objects
+   */
+  Collection listEntities() {
+    return Collections.unmodifiableCollection(entities.values());
   }
 
-  public void setEntities(Collection newEntities) {
-    synchronized (entities) {
-      entities = Collections.synchronizedMap(new HashMap());
+  /**
+   * Invokes visitor on each entity associated with this community.  Entities
+   * added or removed during the visit do not affect the members visited.
+   * @param visitor Visitor to invoke
+   * @return True if all entities were visited
+   */
+  public boolean forEachEntity(EntityVisitor visitor) {
+    for (Iterator it = entities.values().iterator(); it.hasNext(); ) {
+      if (!visitor.visit((Entity)it.next())) return false;
     }
+    return true;
+  }
+
+  /**
+   * Returns number of entities associated with this community.
+   * @return Number of entities
+   */
+  public int getEntityCount() {
+    return entities.size();
+  }
+
+  /**
+   * Returns a read-only snapshot of the names of all entities associated
+   * with this community.
+   * @return Collection of entity names
+   */
+  public Collection getEntityNames() {
+    return Collections.unmodifiableSet(entities.keySet());
+  }
+
+  public synchronized void setEntities(Collection newEntities) {
+    PersistentMap updated = PersistentMap.EMPTY;
     for (Iterator it = newEntities.iterator(); it.hasNext(); ) {
-      addEntity((Entity)it.next());
+      Entity entity = (Entity)it.next();
+      if (entity != null) updated = updated.plus(entity.getName(), entity);
     }
+    entities = updated;
+    owned = null;
+    index = null;
+    lastUpdate = now();
   }
 
   public void setAttributes(Attributes attrs) {
@@ -138,11 +196,29 @@ public class CommunityImpl extends EntityImpl
    */
   public void addEntity(Entity entity) {
     if (entity != null) {
-      synchronized (entities) {
-        entities.put(entity.getName(), entity);
-        lastUpdate = now();
+      addEntities(Collections.singleton(entity));
+    }
+  }
+
+  /**
+   * Adds Entities to the community as a single update.
+   * @param newEntities  Entities to add to community
+   */
+  public synchronized void addEntities(Collection newEntities) {
+    if (newEntities.isEmpty()) return;
+    PersistentMap updated = entities;
+    for (Iterator it = newEntities.iterator(); it.hasNext(); ) {
+      Entity entity = (Entity)it.next();
+      if (entity == null) continue;
+      updated = updated.plus(entity.getName(), entity);
+      if (owned != null) owned.remove(entity.getName());
+      if (index != null) {
+        index.remove(entity.getName());
+        index.add(entity);
       }
     }
+    entities = updated;
+    lastUpdate = now();
   }
 
   /**
@@ -150,12 +226,106 @@ public class CommunityImpl extends EntityImpl
    * @param name  Name of entity to remove from community
    */
   public void removeEntity(String name) {
-    synchronized (entities) {
-      entities.remove(name);
-      lastUpdate = now();
+    removeEntities(Collections.singleton(name));
+  }
+
+  /**
+   * Removes Entities from the community as a single update.
+   * @param names  Names of entities to remove from community
+   */
+  public synchronized void removeEntities(Collection names) {
+    if (names.isEmpty()) return;
+    PersistentMap updated = entities;
+    for (Iterator it = names.iterator(); it.hasNext(); ) {
+      Object name = it.next();
+      updated = updated.minus(name);
+      if (owned != null) owned.remove(name);
+      if (index != null) index.remove((String)name);
+    }
+    entities = updated;
+    lastUpdate = now();
+  }
+
+  /**
+   * Returns the named member for modification.  Copies of a community share
+   * their members, so a member shared with another copy is first replaced
+   * in this community by a private clone.  Call reindexEntity after
+   * modifying the attributes of the returned entity.
+   * @param name  Name of entity
+   * @return Entity private to this community or null if it doesn't exist
+   */
+  public synchronized Entity getModifiableEntity(String name) {
+    Entity entity = (Entity)entities.get(name);
+    if (entity == null || !(entity instanceof EntityImpl)) return entity;
+    if (owned == null) owned = new HashSet();
+    if (owned.add(name)) {
+      entity = (Entity)((EntityImpl)entity).clone();
+      entities = entities.plus(name, entity);
+    }
+    return entity;
+  }
+
+  /**
+   * Updates search index after the attributes of a member entity have
+   * been modified in place.
+   * @param name  Name of modified entity
+   */
+  public synchronized void reindexEntity(String name) {
+    if (index != null) {
+      index.remove(name);
+      Entity entity = (Entity)entities.get(name);
+      if (entity != null) index.add(entity);
     }
   }
 
+  /**
+   * Returns entities that may satisfy filter.  Uses the member attribute
+   * index when the filter permits, otherwise all entities.  The filter to
+   * apply to the candidates, with compound terms reordered by estimated
+   * selectivity, is returned in planned[0].
+   * @param f       Search filter
+   * @param planned Receives filter to apply to candidates
+   * @return Collection of candidate Entity objects
+   */
+  protected Collection getCandidates(Filter f, Filter planned[]) {
+    planned[0] = f;
+    Map members = entities;
+    if (!isIndexed(members)) return members.values();
+    synchronized (this) {
+      members = entities;
+      AttributeIndex idx = getIndex();
+      if (idx == null) return members.values();
+      AttributeIndex.Plan plan = idx.plan(f);
+      planned[0] = plan.getFilter();
+      Set names = plan.getNames();
+      if (names == null) return members.values();
+      Collection candidates = new ArrayList(names.size());
+      for (Iterator it = names.iterator(); it.hasNext(); ) {
+        Object entity = members.get(it.next());
+        if (entity != null) candidates.add(entity);
+      }
+      return candidates;
+    }
+  }
+
+  // Returns true if a community with these members is large enough to
+  // be searched using the attribute index
+  private boolean isIndexed(Map members) {
+    return indexThreshold >= 0 && members.size() >= indexThreshold;
+  }
+
+  // Returns member attribute index, building it if community has grown
+  // past threshold.  Caller must hold lock on this.
+  private AttributeIndex getIndex() {
+    if (index == null && isIndexed(entities)) {
+      index = new AttributeIndex();
+      for (Iterator it = entities.values().iterator(); it.hasNext(); ) {
+        index.add((Entity)it.next());
+      }
+    }
+    return index;
+  }
+
   /**
    * Performs search of community and returns collection of matching Entity
    * objects.
@@ -167,12 +337,14 @@ public class CommunityImpl extends EntityImpl
   public Set search(String filter,
                     int qualifier) {
     Set matches = new HashSet();
-    SearchStringParser parser = new SearchStringParser();
     try {
-      Filter f = parser.parse(filter);
-      for (Iterator it = getEntities().iterator(); it.hasNext(); ) {
+      Filter planned[] = new Filter[1];
+      Collection candidates =
+          getCandidates(SearchStringParser.compile(filter), planned);
+      Filter f = planned[0];
+      for (Iterator it = candidates.iterator(); it.hasNext(); ) {
         Entity entity = (Entity)it.next();
-        if (entity != null && f.match(entity.getAttributes())) {
+        if (entity != null && f.match(CommunityUtils.getSharedAttributes(entity))) {
           if ((qualifier == ALL_ENTITIES) ||
               (qualifier == AGENTS_ONLY && entity instanceof Agent) ||
               (qualifier == COMMUNITIES_ONLY && entity instanceof Community)) {
@@ -209,10 +381,19 @@ public class CommunityImpl extends EntityImpl
     return System.currentTimeMillis();
   }
 
-  public Object clone() {
+  /**
+   * Returns a copy of this community in constant time.  The copy shares the
+   * member map and member entities with this community, use
+   * getModifiableEntity to modify a member in either copy.
+   */
+  public synchronized Object clone() {
+    // Members are now shared with the clone
+    owned = null;
     CommunityImpl clone =  (CommunityImpl)super.clone();
     clone.lastUpdate = lastUpdate;
-    clone.entities = CommunityUtils.cloneEntities(getEntities());
+    clone.entities = entities;
+    clone.owned = null;
+    clone.index = null;
     return clone;
   }
 
@@ -244,28 +425,31 @@ public class CommunityImpl extends EntityImpl
     StringBuffer sb =
         new StringBuffer(indent + "<Community name=\"" + getName() +
                          "\" timestamp=\"" + df.format(new Date(lastUpdate)) + "\" >\n");
-    Attributes attrs = getAttributes();
+    Attributes attrs = getSharedAttributes();
     if (attrs != null && attrs.size() > 0)
-      sb.append(attrsToString(getAttributes(), indent + "  "));
-    for (Iterator it = getEntities().iterator(); it.hasNext(); ) {
+      sb.append(attrsToString(attrs, indent + "  "));
+    for (Iterator it = entities.values().iterator(); it.hasNext(); ) {
       sb.append(((Entity)it.next()).toXml(indent + "  "));
     }
     sb.append(indent + "</Community>\n");
     return sb.toString();
   }
 
+  // Name and attributes are written by EntityImpl, members are written
+  // using a shared string dictionary
   private void writeObject(ObjectOutputStream stream) throws IOException {
-    stream.writeObject(this.getName());
-    stream.writeObject(this.getAttributes());
-    stream.writeObject(getEntities());
+    new EntityCodec(stream).writeEntities(entities.values());
     stream.writeLong(lastUpdate);
   }
 
   private void readObject(ObjectInputStream stream) throws ClassNotFoundException, IOException {
-    entities = Collections.synchronizedMap(new HashMap());
-    setName((String)stream.readObject());
-    setAttributes((Attributes)stream.readObject());
-    setEntities((Collection)stream.readObject());
+    PersistentMap members = PersistentMap.EMPTY;
+    Collection list = new EntityCodec(stream).readEntities();
+    for (Iterator it = list.iterator(); it.hasNext(); ) {
+      Entity entity = (Entity)it.next();
+      members = members.plus(entity.getName(), entity);
+    }
+    entities = members;
     lastUpdate = stream.readLong();
   }
 }
@@ -27,8 +27,10 @@
 package org.cougaar.community;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import javax.naming.directory.ModificationItem;
 
@@ -47,16 +49,21 @@ import org.cougaar.core.service.community.Entity;
 /**
  * Queue for processing Community Requests at a future time.  This is
  * typically used to hold requests that have failed and are to be retried.
- * For instance, a WP lookup.
+ * For instance, a WP lookup.  Requests are held in order of processing
+ * time and a single alarm is pending for the earliest request.
  */
 public class CommunityRequestQueue {
 
-  private List queue = Collections.synchronizedList(new ArrayList());
+  // Requests ordered by processing time, guards queue, timer and sequence
+  private PriorityQueue queue =
+      new PriorityQueue(11, new QueuedRequestComparator());
   private RequestQueueTimer timer;
+  private long sequence = 0;
   private DefaultCommunityServiceImpl commSvc;
   private Logger logger;
   private String agentName;
   private ServiceBroker serviceBroker;
+  private AlarmService alarmService;
 
   public CommunityRequestQueue(ServiceBroker sb,
                                DefaultCommunityServiceImpl dcs) {
@@ -66,13 +73,13 @@ public class CommunityRequestQueue {
     logger = (LoggingService)serviceBroker.getService(this, LoggingService.class, null);
   }
 
-  public synchronized void add(long delay,
-                               String communityName,
-                               int requestType,
-                               Entity entity,
-                               ModificationItem[] attrMods,
-                               long timeout,
-                               CommunityResponseListener crl) {
+  public void add(long delay,
+                  String communityName,
+                  int requestType,
+                  Entity entity,
+                  ModificationItem[] attrMods,
+                  long timeout,
+                  CommunityResponseListener crl) {
     if (logger.isDebugEnabled()) {
       logger.debug(agentName+": add:" +
                    "delay=" + delay +
@@ -87,57 +94,75 @@ public class CommunityRequestQueue {
                                           attrMods,
                                           timeout,
                                           crl);
-    queue.add(req);
+    synchronized (queue) {
+      req.sequence = sequence++;
+      queue.add(req);
+      // Pending alarm will fire before this request is due
+      if (timer != null && !timer.hasExpired() &&
+          timer.getExpirationTime() <= req.processAt) {
+        return;
+      }
+    }
     execute();
   }
 
-  protected void execute() {
-    if (logger.isDetailEnabled()) {
-      logger.detail(agentName+": execute:" +
-                    " itemsInQueue=" + queue.size());
-    }
-    if (timer != null && !timer.hasExpired()) {
-      timer.cancel();
+  /**
+   * Returns number of requests waiting to be processed.
+   * @return Pending request count
+   */
+  public int getPendingCount() {
+    synchronized (queue) {
+      return queue.size();
     }
-    int n;
-    List l;
+  }
+
+  /**
+   * Sends requests that are due and sets alarm for next request.
+   */
+  protected void execute() {
+    List due = new ArrayList();
     synchronized (queue) {
-      n = queue.size();
-      if (n <= 0) { return; }
-      l = new ArrayList(queue);
-      queue.clear();
+      if (logger.isDetailEnabled()) {
+        logger.detail(agentName+": execute:" +
+                      " itemsInQueue=" + queue.size());
+      }
+      if (timer != null) {
+        timer.cancel();
+        timer = null;
+      }
+      long now = now();
+      while (!queue.isEmpty() &&
+             ((QueuedRequest)queue.peek()).processAt <= now) {
+        due.add(queue.poll());
+      }
+      if (!queue.isEmpty()) {
+        timer = new RequestQueueTimer(((QueuedRequest)queue.peek()).processAt);
+        getAlarmService().addRealTimeAlarm(timer);
+      }
     }
-    long now = now();
-    long fireAt = 0;
-    for (int i = 0; i < n; i++) {
-      QueuedRequest req = (QueuedRequest)l.get(i);
-      if (req.processAt <= now) {
-        if (logger.isDebugEnabled()) {
-          logger.debug(agentName + ": sendCommunityRequest:" +
-                       " community=" + req.communityName +
-                       " type=" + req.type +
-                       " entity=" + req.entity);
-        }
-        commSvc.sendCommunityRequest(req.communityName,
-                                     req.type,
-                                     req.entity,
-                                     req.mods,
-                                     req.timeout,
-                                     req.crl);
-      } else {  // not yet
-        if (fireAt == 0 || req.processAt < fireAt) {
-          fireAt = req.processAt;
-        }
-        queue.add(req);
+    for (Iterator it = due.iterator(); it.hasNext();) {
+      QueuedRequest req = (QueuedRequest)it.next();
+      if (logger.isDebugEnabled()) {
+        logger.debug(agentName + ": sendCommunityRequest:" +
+                     " community=" + req.communityName +
+                     " type=" + req.type +
+                     " entity=" + req.entity);
       }
+      commSvc.sendCommunityRequest(req.communityName,
+                                   req.type,
+                                   req.entity,
+                                   req.mods,
+                                   req.timeout,
+                                   req.crl);
     }
-    if (fireAt > 0) {
-      timer = new RequestQueueTimer(fireAt);
-      AlarmService alarmService =
+  }
+
+  private AlarmService getAlarmService() {
+    if (alarmService == null) {
+      alarmService =
           (AlarmService)serviceBroker.getService(this, AlarmService.class, null);
-      alarmService.addRealTimeAlarm(timer);
-      serviceBroker.releaseService(this, AlarmService.class, alarmService);
     }
+    return alarmService;
   }
 
   protected String getAgentName() {
@@ -159,6 +184,7 @@ public class CommunityRequestQueue {
     Entity entity;
     ModificationItem[] mods;
     CommunityResponseListener crl;
+    long sequence;
     QueuedRequest(long time,
                   String cname,
                   int t,
@@ -176,16 +202,30 @@ public class CommunityRequestQueue {
     }
   }
 
+  // Orders requests by processing time, then by order added
+  static class QueuedRequestComparator implements Comparator {
+    public int compare(Object o1, Object o2) {
+      QueuedRequest r1 = (QueuedRequest)o1;
+      QueuedRequest r2 = (QueuedRequest)o2;
+      if (r1.processAt != r2.processAt) {
+        return r1.processAt < r2.processAt ? -1 : 1;
+      }
+      return r1.sequence < r2.sequence ? -1 : (r1.sequence == r2.sequence ? 0 : 1);
+    }
+  }
+
   protected class RequestQueueTimer implements Alarm {
     private long expiresAt;
     private boolean expired = false;
     public RequestQueueTimer(long expirationTime) {expiresAt = expirationTime;}
     public long getExpirationTime() { return expiresAt; }
-    public synchronized void expire() {
-      if (!expired) {
+    public void expire() {
+      // Queue lock is acquired by execute, don't hold timer lock
+      synchronized (this) {
+        if (expired) return;
         expired = true;
-        execute();
       }
+      execute();
     }
     public boolean hasExpired() {return expired;}
     public synchronized boolean cancel() {
@@ -40,6 +40,9 @@ import org.cougaar.core.service.community.CommunityService;
 
 public class CommunityServiceComponent extends ComponentSupport {
 
+  private CommunityServiceProvider csp;
+  private CommunityService cs;
+
   public CommunityServiceComponent() {
     super();
   }
@@ -54,10 +57,26 @@ public class CommunityServiceComponent extends ComponentSupport {
       sb.getService(this, AgentIdentificationService.class, null);
     MessageAddress agentId = ais.getMessageAddress();
     sb.releaseService(this, AgentIdentificationService.class, ais);
-    CommunityService cs = loadCommunityService(agentId);
+    cs = loadCommunityService(agentId);
     super.load();
   }
 
+  /**
+   * Revokes CommunityService and releases node-level resources held for
+   * this agent.
+   */
+  public void unload() {
+    if (csp != null) {
+      getBindingSite().getServiceBroker().revokeService(CommunityService.class, csp);
+      csp = null;
+    }
+    if (cs instanceof DefaultCommunityServiceImpl) {
+      ((DefaultCommunityServiceImpl)cs).unload();
+    }
+    cs = null;
+    super.unload();
+  }
+
   /**
    * Creates a CommunityService instance and adds to agent ServiceBroker.
    * @param agentId  Name of Agent
@@ -65,8 +84,7 @@ public class CommunityServiceComponent extends ComponentSupport {
    */
   private CommunityService loadCommunityService(MessageAddress agentId) {
     ServiceBroker sb = getBindingSite().getServiceBroker();
-    CommunityServiceProvider csp =
-        new CommunityServiceProvider(getBindingSite(), agentId);
+    csp = new CommunityServiceProvider(getBindingSite(), agentId);
     sb.addService(CommunityService.class, csp);
     return (CommunityService)sb.getService(this, CommunityService.class,
       new ServiceRevokedListener() {
@@ -37,6 +37,7 @@ public interface CommunityServiceConstants {
   public static final int MODIFY_ATTRIBUTES            = 2;
   public static final int GET_COMMUNITY_DESCRIPTOR     = 3;
   public static final int LIST                         = 4;
+  public static final int BULK                         = 5;
 
   public static final long NEVER                       = -1;
 
@@ -57,6 +58,49 @@ public interface CommunityServiceConstants {
       "org.cougaar.community.cache.expiration";
   public static long DEFAULT_CACHE_EXPIRATION = NEVER;
 
+  // Defines how long before expiration a cached community descriptor that
+  // has been read since its last update is requested again.  A value of
+  // NEVER disables refresh and 0 selects a quarter of the expiration period.
+  public static final String CACHE_REFRESH_AHEAD_PROPERTY =
+      "org.cougaar.community.cache.refreshAhead";
+  public static long DEFAULT_CACHE_REFRESH_AHEAD = 0;
+
+  // Maximum number of community descriptors held in cache and their
+  // maximum estimated size in bytes.  A value of 0 or NEVER disables the
+  // limit, by default the cache is unbounded.  Communities that agents on
+  // the node belong to are not evicted.
+  public static final String CACHE_CAPACITY_PROPERTY =
+      "org.cougaar.community.cache.capacity";
+  public static long DEFAULT_CACHE_CAPACITY = 0;
+  public static final String CACHE_MAX_BYTES_PROPERTY =
+      "org.cougaar.community.cache.maxBytes";
+  public static long DEFAULT_CACHE_MAX_BYTES = NEVER;
+
+  // Classname of CacheEvictionPolicy used to select communities to evict
+  // when cache is full
+  public static final String CACHE_EVICTION_POLICY_PROPERTY =
+      "org.cougaar.community.cache.eviction.policy";
+  public static String DEFAULT_CACHE_EVICTION_POLICY_CLASSNAME =
+      "org.cougaar.community.LRUEvictionPolicy";
+
+  // Defines how long a community manager location found in the White Pages
+  // is cached and how long a failure to find a manager is cached.  A value
+  // of NEVER retains entries until invalidated, 0 disables caching.
+  public static final String MANAGER_CACHE_TTL_PROPERTY =
+      "org.cougaar.community.manager.cache.ttl";
+  public static long DEFAULT_MANAGER_CACHE_TTL = 5 * 60 * 1000;
+  public static final String MANAGER_CACHE_NEGATIVE_TTL_PROPERTY =
+      "org.cougaar.community.manager.cache.negativeTtl";
+  public static long DEFAULT_MANAGER_CACHE_NEGATIVE_TTL = 2 * 1000;
+
+  // Maximum number of targets a CommunityDescriptor is sent to by the
+  // community manager and by each target that forwards it.  Communities with
+  // more targets are distributed through a tree of forwarding targets.  A
+  // value of 0 sends descriptors directly to all targets.
+  public static final String DISTRIBUTION_FANOUT_PROPERTY =
+      "org.cougaar.community.distribution.fanout";
+  public static int DEFAULT_DISTRIBUTION_FANOUT = 0;
+
   // Classname of CommunityAccessManager to use for request authorization
   public static final String COMMUNITY_ACCESS_MANAGER_PROPERTY =
       "org.cougaar.community.access.manager.classname";
@@ -75,5 +119,24 @@ public interface CommunityServiceConstants {
       "org.cougaar.community.manager.include.descriptor";
   public static boolean DEFAULT_INCLUDE_DESCRIPTOR_IN_RESPONSE = true;
 
+  // Maximum number of compiled search filters retained by
+  // SearchStringParser.compile
+  public static final String FILTER_CACHE_SIZE_PROPERTY =
+      "org.cougaar.community.filter.cache.size";
+  public static int DEFAULT_FILTER_CACHE_SIZE = 256;
+
+  // Minimum number of members before a community maintains an attribute
+  // index for searches.  A negative value disables the index.
+  public static final String SEARCH_INDEX_THRESHOLD_PROPERTY =
+      "org.cougaar.community.search.index.threshold";
+  public static int DEFAULT_SEARCH_INDEX_THRESHOLD = 128;
+
+  // Maximum number of undelivered events held for a CommunityChangeListener.
+  // When exceeded the pending events are coalesced into one event per
+  // community carrying its latest state.
+  public static final String LISTENER_QUEUE_LIMIT_PROPERTY =
+      "org.cougaar.community.listener.queue.limit";
+  public static int DEFAULT_LISTENER_QUEUE_LIMIT = 10000;
+
 
 }
@@ -27,7 +27,6 @@ package org.cougaar.community;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -36,11 +35,11 @@ import java.util.HashMap;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
-import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.DirContext;
 
+import org.cougaar.core.service.community.Community;
 import org.cougaar.core.service.community.Entity;
 
 /**
@@ -54,17 +53,15 @@ public class CommunityUtils {
    * @return Attributes      Clone of attributes
    */
   public static Attributes cloneAttributes(Attributes attrs) {
-    Attributes clone = (Attributes)attrs.clone();
+    Attributes clone = new CompactAttributes(attrs.isCaseIgnored());
     NamingEnumeration ne = attrs.getAll();
     try {
       while (ne.hasMore()) {
         Attribute attr = (Attribute)ne.next();
-        String id = new String(attr.getID());
-        Attribute attrClone = new BasicAttribute(id);
+        Attribute attrClone = new CompactAttribute(attr.getID());
         NamingEnumeration ne1 = attr.getAll();
         while (ne1.hasMore()) {
-          String val = new String(ne1.next().toString());
-          attrClone.add(val);
+          attrClone.add(ne1.next().toString());
         }
         clone.put(attrClone);
       }
@@ -80,7 +77,7 @@ public class CommunityUtils {
    * @return Map      Clone of Entities
    */
   public static Map cloneEntities(Collection entities) {
-    Map clone = Collections.synchronizedMap(new HashMap());
+    Map clone = new HashMap();
     for (Iterator it = entities.iterator(); it.hasNext();) {
       Entity entityClone = (Entity)((EntityImpl)it.next()).clone();
       clone.put(entityClone.getName(), entityClone);
@@ -88,6 +85,36 @@ public class CommunityUtils {
     return clone;
   }
 
+  /**
+   * Get entity attributes for modification in place.  Shared attributes
+   * are first replaced with a private copy.
+   * @param entity Entity
+   * @return Attributes      Modifiable attributes of entity
+   */
+  public static Attributes getModifiableAttributes(Entity entity) {
+    if (entity instanceof EntityImpl) {
+      return ((EntityImpl)entity).getModifiableAttributes();
+    }
+    Attributes attrs = entity.getAttributes();
+    if (attrs == null || CompactAttributes.isShared(attrs)) {
+      attrs = attrs == null ? new CompactAttributes() : (Attributes)attrs.clone();
+      entity.setAttributes(attrs);
+    }
+    return attrs;
+  }
+
+  /**
+   * Get entity attributes for reading without copying shared attributes.
+   * The returned attributes must not be modified.
+   * @param entity Entity
+   * @return Attributes      Attributes of entity
+   */
+  public static Attributes getSharedAttributes(Entity entity) {
+    return entity instanceof EntityImpl
+        ? ((EntityImpl)entity).getSharedAttributes()
+        : entity.getAttributes();
+  }
+
   /**
    * Return a collection of entity names.
    * @param entities Collection  Entities
@@ -102,6 +129,59 @@ public class CommunityUtils {
     return names;
   }
 
+  /**
+   * Return a read-only collection of the names of a community's members.
+   * @param community Community
+   * @return Collection          Collection of names
+   */
+  public static Collection getEntityNames(Community community) {
+    if (community instanceof CommunityImpl) {
+      return ((CommunityImpl)community).getEntityNames();
+    }
+    return getEntityNames(community.getEntities());
+  }
+
+  /**
+   * Return a read-only collection of a community's members.  Members of a
+   * CommunityImpl are returned without copying.
+   * @param community Community
+   * @return Collection          Collection of Entity objects
+   */
+  public static Collection listEntities(Community community) {
+    if (community instanceof CommunityImpl) {
+      return ((CommunityImpl)community).listEntities();
+    }
+    return community.getEntities();
+  }
+
+  /**
+   * Return number of members in a community.
+   * @param community Community
+   * @return int                 Number of members
+   */
+  public static int getEntityCount(Community community) {
+    if (community instanceof CommunityImpl) {
+      return ((CommunityImpl)community).getEntityCount();
+    }
+    return community.getEntities().size();
+  }
+
+  /**
+   * Invoke visitor on each member of a community.
+   * @param community Community
+   * @param visitor   Visitor to invoke
+   * @return boolean             True if all members were visited
+   */
+  public static boolean forEachEntity(Community community, EntityVisitor visitor) {
+    if (community instanceof CommunityImpl) {
+      return ((CommunityImpl)community).forEachEntity(visitor);
+    }
+    for (Iterator it = community.getEntities().iterator(); it.hasNext();) {
+      if (!visitor.visit((Entity)it.next())) return false;
+    }
+    return true;
+  }
+
   /**
    * Create an attribute ModificationArray based on the differences between
    * 2 attribute sets.
@@ -139,7 +219,7 @@ public class CommunityUtils {
     if (attrs != null) {
       Attribute attr = attrs.get(id);
       if (attr == null) {
-        attrs.put(new BasicAttribute(id, value));
+        attrs.put(new CompactAttribute(id, value));
       } else {
         if (!attr.contains(value)) {
           attr.add(value);
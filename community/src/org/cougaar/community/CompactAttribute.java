@@ -0,0 +1,330 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+
+import org.cougaar.util.Strings;
+
+/**
+ * Space efficient implementation of javax.naming.directory.Attribute.
+ * Values are held in an exactly sized array that is replaced rather than
+ * modified, so reads and enumerations need no lock and are unaffected by
+ * later changes.  Writers are serialized on the attribute.  Ids and
+ * String values are interned.  Attributes belonging to a shared
+ * CompactAttributes set can't be modified.
+ */
+public class CompactAttribute implements Attribute {
+
+  private static final Object[] NO_VALUES = new Object[0];
+
+  private String id;
+  private boolean ordered;
+  private volatile Object[] values = NO_VALUES;
+  private volatile boolean shared;
+
+  /**
+   * Constructor for unordered attribute with no values.
+   * @param id Attribute id
+   */
+  public CompactAttribute(String id) {
+    this(id, false);
+  }
+
+  /**
+   * Constructor for attribute with no values.
+   * @param id      Attribute id
+   * @param ordered True if values are ordered and may contain duplicates
+   */
+  public CompactAttribute(String id, boolean ordered) {
+    this.id = intern(id);
+    this.ordered = ordered;
+  }
+
+  /**
+   * Constructor for unordered attribute with a single value.
+   * @param id    Attribute id
+   * @param value Initial value
+   */
+  public CompactAttribute(String id, Object value) {
+    this(id, false);
+    values = new Object[] {intern(value)};
+  }
+
+  /**
+   * Constructor for attribute copied from another Attribute.
+   * @param attr Attribute to copy
+   */
+  public CompactAttribute(Attribute attr) {
+    this(attr.getID(), attr.isOrdered());
+    Object[] copy = new Object[attr.size()];
+    try {
+      for (int i = 0; i < copy.length; i++) {
+        copy[i] = intern(attr.get(i));
+      }
+    } catch (javax.naming.NamingException ex) {
+      throw new IllegalArgumentException("Unable to copy attribute " +
+                                         attr.getID() + ": " + ex);
+    }
+    values = copy.length == 0 ? NO_VALUES : copy;
+  }
+
+  public String getID() {
+    return id;
+  }
+
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  public int size() {
+    return values.length;
+  }
+
+  public Object get() {
+    Object[] current = values;
+    if (current.length == 0) {
+      throw new NoSuchElementException("Attribute " + id + " has no value");
+    }
+    return current[0];
+  }
+
+  public Object get(int ix) {
+    Object[] current = values;
+    return current[checkIndex(ix, current.length)];
+  }
+
+  public NamingEnumeration getAll() {
+    return new ArrayEnumeration(values, 0, 1);
+  }
+
+  public boolean contains(Object value) {
+    return indexOf(values, value) >= 0;
+  }
+
+  public synchronized boolean add(Object value) {
+    if (!ordered && contains(value)) return false;
+    add(values.length, value);
+    return true;
+  }
+
+  public synchronized void add(int ix, Object value) {
+    checkModifiable();
+    if (!ordered && contains(value)) {
+      throw new IllegalStateException("Cannot add duplicate to unordered attribute");
+    }
+    Object[] current = values;
+    checkIndex(ix, current.length + 1);
+    Object[] updated = new Object[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, ix);
+    updated[ix] = intern(value);
+    System.arraycopy(current, ix, updated, ix + 1, current.length - ix);
+    values = updated;
+  }
+
+  public synchronized Object set(int ix, Object value) {
+    checkModifiable();
+    Object[] current = values;
+    checkIndex(ix, current.length);
+    int existing = indexOf(current, value);
+    if (!ordered && existing >= 0 && existing != ix) {
+      throw new IllegalStateException("Cannot add duplicate to unordered attribute");
+    }
+    Object[] updated = (Object[])current.clone();
+    updated[ix] = intern(value);
+    values = updated;
+    return current[ix];
+  }
+
+  public synchronized boolean remove(Object value) {
+    int ix = indexOf(values, value);
+    if (ix < 0) return false;
+    remove(ix);
+    return true;
+  }
+
+  public synchronized Object remove(int ix) {
+    checkModifiable();
+    Object[] current = values;
+    checkIndex(ix, current.length);
+    if (current.length == 1) {
+      values = NO_VALUES;
+    } else {
+      Object[] updated = new Object[current.length - 1];
+      System.arraycopy(current, 0, updated, 0, ix);
+      System.arraycopy(current, ix + 1, updated, ix, current.length - ix - 1);
+      values = updated;
+    }
+    return current[ix];
+  }
+
+  public synchronized void clear() {
+    checkModifiable();
+    values = NO_VALUES;
+  }
+
+  public DirContext getAttributeSyntaxDefinition()
+      throws javax.naming.NamingException {
+    throw new OperationNotSupportedException("attribute syntax");
+  }
+
+  public DirContext getAttributeDefinition()
+      throws javax.naming.NamingException {
+    throw new OperationNotSupportedException("attribute definition");
+  }
+
+  public Object clone() {
+    try {
+      // Value array is never modified so may be shared
+      CompactAttribute clone = (CompactAttribute)super.clone();
+      clone.shared = false;
+      return clone;
+    } catch (CloneNotSupportedException ex) {
+      throw new InternalError();
+    }
+  }
+
+  /**
+   * Compares with any Attribute using the same rules as
+   * javax.naming.directory.BasicAttribute.
+   */
+  public boolean equals(Object o) {
+    if (!(o instanceof Attribute)) return false;
+    Attribute attr = (Attribute)o;
+    Object[] current = values;
+    if (ordered != attr.isOrdered() || !id.equals(attr.getID()) ||
+        current.length != attr.size()) {
+      return false;
+    }
+    try {
+      if (ordered) {
+        for (int i = 0; i < current.length; i++) {
+          if (!valueEquals(current[i], attr.get(i))) return false;
+        }
+      } else {
+        for (NamingEnumeration en = attr.getAll(); en.hasMore();) {
+          if (indexOf(current, en.next()) < 0) return false;
+        }
+      }
+    } catch (javax.naming.NamingException ex) {
+      return false;
+    }
+    return true;
+  }
+
+  public int hashCode() {
+    int hash = id.hashCode();
+    Object[] current = values;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] != null) hash += current[i].hashCode();
+    }
+    return hash;
+  }
+
+  public String toString() {
+    Object[] current = values;
+    StringBuffer sb = new StringBuffer(id + ": ");
+    if (current.length == 0) {
+      sb.append("No values");
+    } else {
+      for (int i = 0; i < current.length; i++) {
+        if (i > 0) sb.append(", ");
+        sb.append(current[i]);
+      }
+    }
+    return sb.toString();
+  }
+
+  // Prevents further modification, used for members of shared sets
+  void share() {
+    shared = true;
+  }
+
+  private void checkModifiable() {
+    if (shared) {
+      throw new UnsupportedOperationException("Attribute " + id +
+                                              " is shared and can't be modified");
+    }
+  }
+
+  static String intern(String s) {
+    return Strings.intern(s);
+  }
+
+  static Object intern(Object value) {
+    return value instanceof String ? Strings.intern((String)value) : value;
+  }
+
+  private static int indexOf(Object[] values, Object value) {
+    for (int i = 0; i < values.length; i++) {
+      if (valueEquals(values[i], value)) return i;
+    }
+    return -1;
+  }
+
+  private static boolean valueEquals(Object v1, Object v2) {
+    return v1 == v2 || (v1 != null && v1.equals(v2));
+  }
+
+  private static int checkIndex(int ix, int size) {
+    if (ix < 0 || ix >= size) {
+      throw new IndexOutOfBoundsException(ix + " >= " + size);
+    }
+    return ix;
+  }
+
+  /**
+   * Enumeration over every stride'th element of an array starting at
+   * offset.  Used for values and attributes, neither of which modify a
+   * published array.
+   */
+  static class ArrayEnumeration implements NamingEnumeration {
+    private final Object[] elements;
+    private final int stride;
+    private int next;
+    ArrayEnumeration(Object[] elements, int offset, int stride) {
+      this.elements = elements;
+      this.stride = stride;
+      this.next = offset;
+    }
+    public boolean hasMore() { return next < elements.length; }
+    public boolean hasMoreElements() { return next < elements.length; }
+    public Object next() { return nextElement(); }
+    public Object nextElement() {
+      if (next >= elements.length) throw new NoSuchElementException();
+      Object element = elements[next];
+      next += stride;
+      return element;
+    }
+    public void close() {}
+  }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+/**
+ * Space efficient implementation of javax.naming.directory.Attributes for
+ * the small attribute sets carried by community entities.  Ids and
+ * attributes are held in a single flat array that is replaced rather than
+ * modified, so lookups and enumerations need no lock and are unaffected
+ * by concurrent changes.  Attributes are found by linear scan, which for
+ * a handful of entries is faster than hashing and doesn't allocate a
+ * lower-cased key for case insensitive lookups.
+ * <p>
+ * Identical attribute sets may be shared by many entities through a
+ * node-wide table, see {@link #share}.  Shared sets and their attributes
+ * can't be modified, a private copy is obtained using clone.  EntityImpl
+ * does this on the first modification made through getAttributes.
+ */
+public class CompactAttributes implements Attributes {
+
+  private static final Object[] EMPTY = new Object[0];
+
+  // Node-wide table of shared attribute sets, weakly referenced so sets no
+  // longer used by any entity can be collected
+  private static final Map sharedSets = new WeakHashMap();
+
+  private final boolean ignoreCase;
+  // Alternating interned id and Attribute
+  private volatile Object[] slots = EMPTY;
+  private volatile boolean shared;
+
+  /**
+   * Constructor for empty case sensitive attribute set.
+   */
+  public CompactAttributes() {
+    this(false);
+  }
+
+  /**
+   * Constructor for empty attribute set.
+   * @param ignoreCase True if attribute ids are case insensitive
+   */
+  public CompactAttributes(boolean ignoreCase) {
+    this.ignoreCase = ignoreCase;
+  }
+
+  /**
+   * Constructor for case sensitive attribute set with one attribute.
+   * @param id    Attribute id
+   * @param value Attribute value
+   */
+  public CompactAttributes(String id, Object value) {
+    this(false);
+    put(id, value);
+  }
+
+  /**
+   * Constructor for attribute set copied from another Attributes.  Each
+   * attribute is copied into a CompactAttribute.
+   * @param attrs Attributes to copy
+   */
+  public CompactAttributes(Attributes attrs) {
+    this(attrs.isCaseIgnored());
+    try {
+      for (NamingEnumeration en = attrs.getAll(); en.hasMore();) {
+        put(new CompactAttribute((Attribute)en.next()));
+      }
+    } catch (NamingException ex) {
+      throw new IllegalArgumentException("Unable to copy attributes: " + ex);
+    }
+  }
+
+  public boolean isCaseIgnored() {
+    return ignoreCase;
+  }
+
+  public int size() {
+    return slots.length / 2;
+  }
+
+  public Attribute get(String id) {
+    Object[] current = slots;
+    int ix = indexOf(current, id);
+    return ix < 0 ? null : (Attribute)current[ix + 1];
+  }
+
+  public NamingEnumeration getAll() {
+    return new CompactAttribute.ArrayEnumeration(slots, 1, 2);
+  }
+
+  public NamingEnumeration getIDs() {
+    return new CompactAttribute.ArrayEnumeration(slots, 0, 2);
+  }
+
+  public Attribute put(String id, Object value) {
+    return put(new CompactAttribute(id, value));
+  }
+
+  public synchronized Attribute put(Attribute attr) {
+    checkModifiable();
+    Object[] current = slots;
+    String id = CompactAttribute.intern(attr.getID());
+    int ix = indexOf(current, id);
+    Object[] updated;
+    Attribute prior = null;
+    if (ix < 0) {
+      updated = new Object[current.length + 2];
+      System.arraycopy(current, 0, updated, 0, current.length);
+      ix = current.length;
+    } else {
+      updated = (Object[])current.clone();
+      prior = (Attribute)current[ix + 1];
+    }
+    updated[ix] = id;
+    updated[ix + 1] = attr;
+    slots = updated;
+    return prior;
+  }
+
+  public synchronized Attribute remove(String id) {
+    checkModifiable();
+    Object[] current = slots;
+    int ix = indexOf(current, id);
+    if (ix < 0) return null;
+    if (current.length == 2) {
+      slots = EMPTY;
+    } else {
+      Object[] updated = new Object[current.length - 2];
+      System.arraycopy(current, 0, updated, 0, ix);
+      System.arraycopy(current, ix + 2, updated, ix, current.length - ix - 2);
+      slots = updated;
+    }
+    return (Attribute)current[ix + 1];
+  }
+
+  public Object clone() {
+    try {
+      CompactAttributes clone = (CompactAttributes)super.clone();
+      clone.shared = false;
+      Object[] updated = (Object[])slots.clone();
+      for (int i = 1; i < updated.length; i += 2) {
+        updated[i] = ((Attribute)updated[i]).clone();
+      }
+      clone.slots = updated;
+      return clone;
+    } catch (CloneNotSupportedException ex) {
+      throw new InternalError();
+    }
+  }
+
+  /**
+   * Compares with any Attributes using the same rules as
+   * javax.naming.directory.BasicAttributes.
+   */
+  public boolean equals(Object o) {
+    if (!(o instanceof Attributes)) return false;
+    Attributes attrs = (Attributes)o;
+    Object[] current = slots;
+    if (ignoreCase != attrs.isCaseIgnored() ||
+        current.length / 2 != attrs.size()) {
+      return false;
+    }
+    for (int i = 0; i < current.length; i += 2) {
+      if (!current[i + 1].equals(attrs.get((String)current[i]))) return false;
+    }
+    return true;
+  }
+
+  public int hashCode() {
+    int hash = ignoreCase ? 1 : 0;
+    Object[] current = slots;
+    for (int i = 1; i < current.length; i += 2) {
+      hash += current[i].hashCode();
+    }
+    return hash;
+  }
+
+  public String toString() {
+    Object[] current = slots;
+    if (current.length == 0) return "No attributes";
+    StringBuffer sb = new StringBuffer("{");
+    for (int i = 0; i < current.length; i += 2) {
+      if (i > 0) sb.append(", ");
+      sb.append(current[i] + "=" + current[i + 1]);
+    }
+    return sb.append("}").toString();
+  }
+
+  /**
+   * Returns a shared, unmodifiable attribute set equal to attrs.  All
+   * callers sharing equal attribute sets receive the same instance.
+   * @param attrs Attributes to share
+   * @return Shared Attributes
+   */
+  public static Attributes share(Attributes attrs) {
+    attrs = CopyOnWriteAttributes.unwrap(attrs);
+    if (attrs == null || isShared(attrs)) return attrs;
+    synchronized (sharedSets) {
+      WeakReference ref = (WeakReference)sharedSets.get(attrs);
+      CompactAttributes sharedAttrs =
+          ref == null ? null : (CompactAttributes)ref.get();
+      if (sharedAttrs == null) {
+        sharedAttrs = new CompactAttributes(attrs);
+        Object[] current = sharedAttrs.slots;
+        for (int i = 1; i < current.length; i += 2) {
+          ((CompactAttribute)current[i]).share();
+        }
+        sharedAttrs.shared = true;
+        sharedSets.put(sharedAttrs, new WeakReference(sharedAttrs));
+      }
+      return sharedAttrs;
+    }
+  }
+
+  /**
+   * Returns true if attrs is a shared attribute set that can't be modified.
+   * @param attrs Attributes
+   * @return True if shared
+   */
+  public static boolean isShared(Attributes attrs) {
+    return attrs instanceof CompactAttributes && ((CompactAttributes)attrs).shared;
+  }
+
+  private void checkModifiable() {
+    if (shared) {
+      throw new UnsupportedOperationException("Attributes are shared and can't be modified");
+    }
+  }
+
+  // Returns index of id in slots, or -1 if not found
+  private int indexOf(Object[] current, String id) {
+    for (int i = 0; i < current.length; i += 2) {
+      String s = (String)current[i];
+      if (s == id ||
+          (ignoreCase ? s.equalsIgnoreCase(id) : s.equals(id))) return i;
+    }
+    return -1;
+  }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+
+/**
+ * Attributes of an entity whose attribute set is shared with other
+ * entities, returned by EntityImpl.getAttributes.  Reads go to the
+ * entity's current attributes without copying.  The first modification
+ * replaces the entity's shared set with a private copy and is applied to
+ * that copy, so a shared set is only copied when it is changed.
+ */
+final class CopyOnWriteAttributes implements Attributes {
+
+  private final EntityImpl owner;
+
+  CopyOnWriteAttributes(EntityImpl owner) {
+    this.owner = owner;
+  }
+
+  /**
+   * Returns the attributes viewed by attrs if it is a copy-on-write view,
+   * otherwise attrs.
+   * @param attrs Attributes
+   * @return Attributes that aren't a view
+   */
+  static Attributes unwrap(Attributes attrs) {
+    return attrs instanceof CopyOnWriteAttributes
+        ? ((CopyOnWriteAttributes)attrs).current()
+        : attrs;
+  }
+
+  private Attributes current() {
+    return owner.getSharedAttributes();
+  }
+
+  // Returns a view of attr if it belongs to a shared set
+  private Attribute wrap(Attributes attrs, Attribute attr) {
+    return attr != null && CompactAttributes.isShared(attrs)
+        ? new AttributeView(attr)
+        : attr;
+  }
+
+  public boolean isCaseIgnored() {
+    return current().isCaseIgnored();
+  }
+
+  public int size() {
+    return current().size();
+  }
+
+  public Attribute get(String id) {
+    Attributes attrs = current();
+    return wrap(attrs, attrs.get(id));
+  }
+
+  public NamingEnumeration getAll() {
+    final Attributes attrs = current();
+    final NamingEnumeration en = attrs.getAll();
+    return new NamingEnumeration() {
+      public boolean hasMore() throws NamingException {
+        return en.hasMore();
+      }
+      public boolean hasMoreElements() {
+        return en.hasMoreElements();
+      }
+      public Object next() throws NamingException {
+        return wrap(attrs, (Attribute)en.next());
+      }
+      public Object nextElement() {
+        return wrap(attrs, (Attribute)en.nextElement());
+      }
+      public void close() throws NamingException {
+        en.close();
+      }
+    };
+  }
+
+  public NamingEnumeration getIDs() {
+    return current().getIDs();
+  }
+
+  public Attribute put(String id, Object value) {
+    return owner.getModifiableAttributes().put(id, value);
+  }
+
+  public Attribute put(Attribute attr) {
+    return owner.getModifiableAttributes().put(attr);
+  }
+
+  public Attribute remove(String id) {
+    return owner.getModifiableAttributes().remove(id);
+  }
+
+  public Object clone() {
+    return current().clone();
+  }
+
+  public boolean equals(Object o) {
+    return current().equals(unwrap(o instanceof Attributes ? (Attributes)o : null));
+  }
+
+  public int hashCode() {
+    return current().hashCode();
+  }
+
+  public String toString() {
+    return current().toString();
+  }
+
+  private Object writeReplace() {
+    return current();
+  }
+
+  /**
+   * Attribute of a shared set.  Modifications are applied to the same
+   * attribute in the owner's private copy of the set.
+   */
+  private class AttributeView implements Attribute {
+    private final Attribute shared;
+    private Attribute copy;
+
+    AttributeView(Attribute shared) {
+      this.shared = shared;
+    }
+
+    // Returns attribute to read, the entity's current attribute unless this
+    // view modified a detached copy
+    private synchronized Attribute target() {
+      if (copy != null) return copy;
+      Attribute current = current().get(shared.getID());
+      return current != null ? current : shared;
+    }
+
+    private synchronized Attribute modifiable() {
+      if (copy == null) {
+        copy = owner.getModifiableAttributes().get(shared.getID());
+        // Attribute removed from entity, modify a detached copy
+        if (copy == null) copy = (Attribute)shared.clone();
+      }
+      return copy;
+    }
+
+    public NamingEnumeration getAll() throws NamingException {
+      return target().getAll();
+    }
+
+    public Object get() throws NamingException {
+      return target().get();
+    }
+
+    public Object get(int ix) throws NamingException {
+      return target().get(ix);
+    }
+
+    public int size() {
+      return target().size();
+    }
+
+    public String getID() {
+      return shared.getID();
+    }
+
+    public boolean contains(Object value) {
+      return target().contains(value);
+    }
+
+    public boolean isOrdered() {
+      return shared.isOrdered();
+    }
+
+    public boolean add(Object value) {
+      return modifiable().add(value);
+    }
+
+    public void add(int ix, Object value) {
+      modifiable().add(ix, value);
+    }
+
+    public Object set(int ix, Object value) {
+      return modifiable().set(ix, value);
+    }
+
+    public boolean remove(Object value) {
+      return modifiable().remove(value);
+    }
+
+    public Object remove(int ix) {
+      return modifiable().remove(ix);
+    }
+
+    public void clear() {
+      modifiable().clear();
+    }
+
+    public DirContext getAttributeSyntaxDefinition() throws NamingException {
+      return target().getAttributeSyntaxDefinition();
+    }
+
+    public DirContext getAttributeDefinition() throws NamingException {
+      return target().getAttributeDefinition();
+    }
+
+    public Object clone() {
+      return target().clone();
+    }
+
+    public boolean equals(Object o) {
+      return target().equals(o instanceof AttributeView
+                             ? ((AttributeView)o).target()
+                             : o);
+    }
+
+    public int hashCode() {
+      return target().hashCode();
+    }
+
+    public String toString() {
+      return target().toString();
+    }
+
+    private Object writeReplace() {
+      return target();
+    }
+  }
+}
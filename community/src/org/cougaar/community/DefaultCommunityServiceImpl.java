@@ -29,11 +29,14 @@ package org.cougaar.community;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
 
 import javax.naming.NamingEnumeration;
@@ -42,6 +45,7 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.ModificationItem;
 
+import org.cougaar.community.manager.CommunityDescriptorImpl;
 import org.cougaar.community.manager.CommunityManager;
 import org.cougaar.community.manager.DefaultCommunityManagerImpl;
 import org.cougaar.community.manager.Request;
@@ -87,9 +91,34 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
 
   protected MyBlackboardClient myBlackboardClient;
   protected static Object cacheLock = new Object();
+  protected static ManagerLocationCache managerLocations; // Shared by node
+
+  // Services of agents on node, the first is used by the node-level
+  // refresh listener to request new copies of cached communities
+  protected static List refreshServices = new ArrayList();
+
+  // Outstanding White Pages manager lookups shared by all agents on node,
+  // maps community name to ManagerLookup
+  protected static Map managerLookups = new HashMap();
+
+  // Time after which a lookup that hasn't completed is replaced by a new one
+  private static final long MAX_MANAGER_LOOKUP_TIME = 60 * 1000;
+
+  // Bounds of delay between failed manager lookups.  The delay doubles
+  // with each consecutive failure for a community and is randomized so
+  // that agents don't retry in step.
+  private static final long MIN_FIND_MANAGER_RETRY_DELAY = 5 * 1000;
+  private static final long MAX_FIND_MANAGER_RETRY_DELAY = 2 * 60 * 1000;
+  private static final Random retryJitter = new Random();
+
+  // Consecutive failed manager lookups on node, maps community name to
+  // Integer.  Counted once per White Pages lookup, not per waiting request.
+  private static final Map findManagerFailures =
+      Collections.synchronizedMap(new HashMap());
   protected CommunityRequestQueue requestQueue;
 
   protected long verifyMembershipsInterval = DEFAULT_VERIFY_MEMBERSHIPS_INTERVAL;
+  protected long updateInterval = DEFAULT_UPDATE_INTERVAL;
 
   /**
    * Constructor.
@@ -110,20 +139,40 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
         ThreadService ts =
           (ThreadService)getServiceBroker().getService(this, ThreadService.class, null);
         cache = new CommunityCache(ts);
+        cache.addRefreshListener(new NodeRefreshListener());
       }
+      if (managerLocations == null) {
+        managerLocations = new ManagerLocationCache();
+      }
+      refreshServices.add(this);
     }
     requestQueue =  new CommunityRequestQueue(getServiceBroker(), this);
     myCommunities = new CommunityMemberships();
+    cache.addMemberships(myCommunities);
     membershipWatcher = new MembershipWatcher(agentName,
                                               DefaultCommunityServiceImpl.this,
                                               myCommunities);
   }
 
+  /**
+   * Releases node-level resources held for this agent, invoked when the
+   * agent's CommunityService is unloaded.
+   */
+  public void unload() {
+    synchronized (cacheLock) {
+      refreshServices.remove(this);
+    }
+    cache.removeMemberships(myCommunities);
+  }
+
   protected void getSystemProperties() {
     try {
       verifyMembershipsInterval =
           Long.parseLong(System.getProperty(VERIFY_MEMBERSHIPS_INTERVAL_PROPERTY,
                                             Long.toString(DEFAULT_VERIFY_MEMBERSHIPS_INTERVAL)));
+      updateInterval =
+          Long.parseLong(System.getProperty(UPDATE_INTERVAL_PROPERTY,
+                                            Long.toString(DEFAULT_UPDATE_INTERVAL)));
     } catch (Exception ex) {
       if (log.isWarnEnabled()) {
         log.warn(agentName + ": Exception setting parameter from system property", ex);
@@ -270,6 +319,57 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
     findCommunity(communityName, fmcb, timeout);
   }
 
+  /**
+   * Send a bulk membership request to manager of specified community.
+   * @param communityName String
+   * @param changes List of MembershipChange objects
+   * @param crl CommunityResponseListener
+   * @param timeout long
+   */
+  protected void queueCommunityRequest(final String communityName,
+                                       final List changes,
+                                       final CommunityResponseListener crl,
+                                       final long timeout) {
+    if (log.isDebugEnabled()) {
+      log.debug(agentName + ": queueCommunityRequest: " +
+                " community=" + communityName +
+                " type=" + BULK +
+                " changes=" + changes.size() +
+                " timeout=" + timeout);
+    }
+    FindCommunityCallback fmcb = new FindCommunityCallback() {
+      public void execute(String managerName) {
+        if (managerName != null) {
+          if (managerName.equals(agentName)) { // is this agent manager?
+            CommunityResponse resp =
+                communityManager.processRequest(agentName,
+                                                communityName,
+                                                changes);
+            handleResponse(communityName, resp, Collections.singleton(crl));
+          } else { // Send request to remote manager agent
+            MessageAddress managerAddr =
+                MessageAddress.getMessageAddress(managerName);
+            Request req = new RequestImpl(agentId, // source
+                                          managerAddr, // target
+                                          communityName,
+                                          BULK,
+                                          null,
+                                          null,
+                                          getUID(),
+                                          crl);
+            req.setMembershipChanges(changes);
+            myBlackboardClient.publish(req, BlackboardClient.ADD);
+          }
+        } else {
+          handleResponse(communityName,
+                         new CommunityResponseImpl(CommunityResponse.TIMEOUT, null),
+                         Collections.singleton(crl));
+        }
+      }
+    };
+    findCommunity(communityName, fmcb, timeout);
+  }
+
   /**
    * Handle response to community request returned by manager.
    * @param req Request
@@ -369,8 +469,46 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
   public void findManager(final String communityName,
                           final FindCommunityCallback fccb,
                           final long tryUntil) {
+    ManagerLocationCache.Entry cached = managerLocations.get(communityName);
+    if (cached != null) {
+      if (log.isDetailEnabled()) {
+        log.detail(agentName + ": findManager:" +
+                   " community=" + communityName +
+                   " manager=" + cached.getManager() +
+                   " cached=true");
+      }
+      if (cached.getManager() != null) {
+        findManagerFailures.remove(communityName);
+        fccb.execute(cached.getManager());
+      } else {
+        retryFindManager(communityName, fccb, tryUntil);
+      }
+      return;
+    }
+    // Join lookup for community already in progress, if any
+    final ManagerLookup lookup;
+    FindManagerRequest waiter =
+        new FindManagerRequest(now(), communityName, fccb, tryUntil);
+    synchronized (managerLookups) {
+      ManagerLookup current = (ManagerLookup)managerLookups.get(communityName);
+      if (current != null && now() - current.start < MAX_MANAGER_LOOKUP_TIME) {
+        current.waiters.add(waiter);
+        if (log.isDetailEnabled()) {
+          log.detail(agentName + ": findManager:" +
+                     " community=" + communityName +
+                     " waiters=" + current.waiters.size());
+        }
+        return;
+      }
+      lookup = new ManagerLookup();
+      if (current != null) {  // Stalled, move waiters to new lookup
+        lookup.waiters.addAll(current.waiters);
+        current.waiters.clear();
+      }
+      lookup.waiters.add(waiter);
+      managerLookups.put(communityName, lookup);
+    }
     Callback cb = new Callback() {
-      long start = System.currentTimeMillis();
       public void execute(Response resp) {
         String name = null;
         if (resp.isAvailable() && resp.isSuccess()) {
@@ -378,8 +516,9 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
           if (entry != null) {
             name = entry.getURI().getPath().substring(1);
           }
+          managerLocations.put(communityName, name);
         }
-        long wpRespTime = System.currentTimeMillis() - start;
+        long wpRespTime = System.currentTimeMillis() - lookup.start;
         if (log.isDebugEnabled() && wpRespTime > 10000) {
           log.debug(agentName + ": findManager.execute:" +
                      " community=" + communityName +
@@ -391,19 +530,7 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
                      " manager=" + name +
                      " wpRespTime=" + wpRespTime);
         }
-        if (name != null) {
-          fccb.execute(name);
-        } else { // retry?
-          long now = System.currentTimeMillis();
-          if (tryUntil < 0 || now < tryUntil) {
-            myBlackboardClient.queueFindManagerRequest(communityName,
-                fccb,
-                5000, // 5 sec delay
-                tryUntil);
-          } else {
-            fccb.execute(null); // Give up
-          }
-        }
+        completeManagerLookup(communityName, lookup, name);
       }
     };
     WhitePagesService wps = (WhitePagesService)
@@ -414,11 +541,77 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
       if (log.isErrorEnabled()) {
         log.error(ex.getMessage());
       }
+      completeManagerLookup(communityName, lookup, null);
     } finally {
       getServiceBroker().releaseService(this, WhitePagesService.class, wps);
     }
   }
 
+  /*
+   * Record result of a manager lookup and invoke callbacks of all agents
+   * waiting on it, callers that didn't get a manager name retry.
+   */
+  private static void completeManagerLookup(String communityName,
+                                            ManagerLookup lookup,
+                                            String managerName) {
+    List waiters;
+    synchronized (managerLookups) {
+      if (managerLookups.get(communityName) == lookup) {
+        managerLookups.remove(communityName);
+      }
+      waiters = new ArrayList(lookup.waiters);
+      lookup.waiters.clear();
+    }
+    if (managerName != null) {
+      findManagerFailures.remove(communityName);
+    } else {
+      synchronized (findManagerFailures) {
+        Integer count = (Integer)findManagerFailures.get(communityName);
+        int failures = count == null ? 0 : count.intValue();
+        findManagerFailures.put(communityName, new Integer(failures + 1));
+      }
+    }
+    for (Iterator it = waiters.iterator(); it.hasNext();) {
+      ((FindManagerRequest)it.next()).complete(managerName);
+    }
+  }
+
+  private void retryFindManager(String communityName,
+                                FindCommunityCallback fccb,
+                                long tryUntil) {
+    long now = System.currentTimeMillis();
+    if (tryUntil < 0 || now < tryUntil) {
+      myBlackboardClient.queueFindManagerRequest(communityName,
+          fccb,
+          getFindManagerRetryDelay(communityName),
+          tryUntil,
+          true);
+    } else {
+      fccb.execute(null); // Give up
+    }
+  }
+
+  /*
+   * Returns delay before next lookup of a community manager, based on the
+   * number of consecutive failed lookups recorded by completeManagerLookup.
+   */
+  private long getFindManagerRetryDelay(String communityName) {
+    Integer count = (Integer)findManagerFailures.get(communityName);
+    int failures = count == null ? 0 : Math.max(count.intValue() - 1, 0);
+    long delay = MIN_FIND_MANAGER_RETRY_DELAY << Math.min(failures, 16);
+    delay = Math.min(delay, MAX_FIND_MANAGER_RETRY_DELAY);
+    // Random delay between half and full backoff period
+    return delay / 2 + (long)(retryJitter.nextDouble() * (delay / 2));
+  }
+
+  /**
+   * Discard cached manager location of community.
+   * @param communityName Name of community
+   */
+  public void invalidateManager(String communityName) {
+    managerLocations.invalidate(communityName);
+  }
+
   protected long now() {
     return System.currentTimeMillis();
   }
@@ -429,7 +622,7 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
       if (log.isDebugEnabled()) {
         log.debug(agentName+": updateCommunity:" +
                  " community=" + community +
-                 " size=" + community.getEntities().size());
+                 " size=" + CommunityUtils.getEntityCount(community));
       }
       cache.update(community);
     }
@@ -568,13 +761,29 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
   
   class MyBlackboardClient extends BlackboardClient {
 
-    List findManagerRequests = Collections.synchronizedList(new ArrayList());
+    // Pending FindManagerRequests ordered by time, guarded by itself
+    PriorityQueue findManagerRequests =
+        new PriorityQueue(11, new FindManagerRequestComparator());
     WakeAlarm findMgrTimer;
     WakeAlarm verifyMembershipsTimer;
+    WakeAlarm removalTimer;
     boolean myCommunitiesChanged;
 
     List responses = new ArrayList();
 
+    // Relays forwarding CommunityDescriptors to children of this agent in
+    // distribution trees, maps community name to Forwarder
+    Map forwarders = new HashMap();
+
+    // Descriptors removed by a parent in a distribution tree, maps community
+    // name to PendingRemoval.  The community is only removed if no other
+    // parent sends it in time.
+    Map pendingRemovals = new HashMap();
+
+    // CommunityDescriptors on blackboard, maps community name to Set of
+    // descriptors received from parents in distribution trees
+    Map descriptors = new HashMap();
+
     public MyBlackboardClient(BindingSite bs) {
       super(bs);
     }
@@ -585,17 +794,36 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
                                             FindCommunityCallback fccb,
                                             long delay,
                                             long tryUntil) {
+      queueFindManagerRequest(communityName, fccb, delay, tryUntil, false);
+    }
+
+    /**
+     * Queue a manager lookup.  A retry that would occur after tryUntil is
+     * instead cancelled at tryUntil.
+     */
+    protected void queueFindManagerRequest(String communityName,
+                                            FindCommunityCallback fccb,
+                                            long delay,
+                                            long tryUntil,
+                                            boolean retry) {
       if (log.isDetailEnabled()) {
         log.detail("queueFindManagerRequest: " +
                    " community=" + communityName +
                    " delay=" + delay +
-                   " tryUntil=" + tryUntil);
+                   " tryUntil=" + tryUntil +
+                   " retry=" + retry);
+      }
+      long time = now() + delay;
+      if (retry && tryUntil >= 0 && time > tryUntil) time = tryUntil;
+      FindManagerRequest req =
+          new FindManagerRequest(time, communityName, fccb, tryUntil);
+      req.retry = retry;
+      synchronized (findManagerRequests) {
+        findManagerRequests.add(req);
       }
-      findManagerRequests.add(new FindManagerRequest(now() + delay,
-                                                     communityName,
-                                                     fccb,
-                                                     tryUntil));
-      if (findMgrTimer != null) findMgrTimer.expire();
+      // Reschedule timer if this request is due first
+      WakeAlarm timer = findMgrTimer;
+      if (timer != null && time < timer.getExpirationTime()) timer.expire();
       blackboard.signalClientActivity();
     }
 
@@ -615,7 +843,9 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
         if (cms.isEmpty()) {
           blackboard.publishAdd(myCommunities);
         } else {
+          cache.removeMemberships(myCommunities);
           myCommunities = (CommunityMemberships)cms.iterator().next();
+          cache.addMemberships(myCommunities);
           membershipWatcher.setMemberships(myCommunities);
         }
       }
@@ -648,6 +878,29 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
           (IncrementalSubscription)blackboard.subscribe(
           communityDescriptorPredicate);
 
+      // Subscribe to full communities resent after a missed update
+      resyncDescriptorSub =
+          (IncrementalSubscription)blackboard.subscribe(
+          resyncDescriptorPredicate);
+
+      // Subscribe to CommunityDescriptors forwarded by this agent
+      forwardedDescriptorSub =
+          (IncrementalSubscription)blackboard.subscribe(
+          forwardedDescriptorPredicate);
+      if (blackboard.didRehydrate()) {
+        Collection relays = blackboard.query(forwardedDescriptorPredicate);
+        for (Iterator it = relays.iterator(); it.hasNext(); ) {
+          RelayAdapter ra = (RelayAdapter)it.next();
+          CommunityDescriptor cd = (CommunityDescriptor)ra.getContent();
+          forwarders.put(cd.getName(), new Forwarder(ra));
+        }
+        // One time resends to children are not needed after restart
+        relays = blackboard.query(resyncRelayPredicate);
+        for (Iterator it = relays.iterator(); it.hasNext(); ) {
+          blackboard.publishRemove(it.next());
+        }
+      }
+
       // Subscribe to ListParentCommunities request and response
       listParentCommunitiesSub = 
         (IncrementalSubscription)blackboard.subscribe(listParentCommunitiesPredicate);
@@ -663,9 +916,9 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
 
       // Resend queued FindManagerRequests
       if (findMgrTimer == null || findMgrTimer.hasExpired()) {
-        performFindManagerRetries();
-        if (!findManagerRequests.isEmpty()) {
-          findMgrTimer = new WakeAlarm(now() + TIMER_INTERVAL);
+        long next = performFindManagerRetries();
+        if (next >= 0) {
+          findMgrTimer = new WakeAlarm(next);
           alarmService.addRealTimeAlarm(findMgrTimer);
         } else {
           findMgrTimer = null;
@@ -706,29 +959,169 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
       for (Iterator it = communityDescriptorSub.getAddedCollection().iterator();
            it.hasNext(); ) {
         CommunityDescriptor cd = (CommunityDescriptor)it.next();
+        Set s = (Set)descriptors.get(cd.getName());
+        if (s == null) {
+          s = new HashSet();
+          descriptors.put(cd.getName(), s);
+        }
+        s.add(cd);
+      }
+      for (Iterator it = communityDescriptorSub.getRemovedCollection().iterator();
+           it.hasNext(); ) {
+        CommunityDescriptor cd = (CommunityDescriptor)it.next();
+        Set s = (Set)descriptors.get(cd.getName());
+        if (s != null && s.remove(cd) && s.isEmpty()) {
+          descriptors.remove(cd.getName());
+        }
+      }
+      for (Iterator it = communityDescriptorSub.getAddedCollection().iterator();
+           it.hasNext(); ) {
+        CommunityDescriptor cd = (CommunityDescriptor)it.next();
+        pendingRemovals.remove(cd.getName());
+        if (cd.getCommunity() == null) {
+          // Received update without a prior version, manager will resend
+          // the complete community
+          if (logger.isDebugEnabled()) {
+            logger.debug(agentName+": received incomplete CommunityDescriptor: " + cd);
+          }
+          continue;
+        }
         if (logger.isDebugEnabled()) {
           logger.debug(agentName+": received added CommunityDescriptor: " + cd +
-                      " size=" + cd.getCommunity().getEntities().size());
+                      " size=" + CommunityUtils.getEntityCount(cd.getCommunity()));
         }
         communityUpdateListener.updateCommunity(cd.getCommunity());
+        forwardDescriptor(cd);
       }
       for (Iterator it = communityDescriptorSub.getChangedCollection().iterator();
            it.hasNext(); ) {
         CommunityDescriptor cd = (CommunityDescriptor)it.next();
+        if (cd.getCommunity() == null) continue;
         if (logger.isDebugEnabled()) {
           logger.debug(agentName+": received changed CommunityDescriptor: " + cd +
-                       " size=" + cd.getCommunity().getEntities().size());
+                       " size=" + CommunityUtils.getEntityCount(cd.getCommunity()));
         }
         communityUpdateListener.updateCommunity(cd.getCommunity());
+        forwardDescriptor(cd);
       }
       for (Iterator it = communityDescriptorSub.getRemovedCollection().iterator();
            it.hasNext(); ) {
         CommunityDescriptor cd = (CommunityDescriptor)it.next();
+        if (cd.getCommunity() == null) continue;
+        if (hasDescriptor(cd.getName())) {
+          // Now received from a new parent in distribution tree
+          continue;
+        }
+        if (cd instanceof CommunityDescriptorImpl &&
+            ((CommunityDescriptorImpl)cd).getRoutes() != null &&
+            ((CommunityDescriptorImpl)cd).getRoutes().contains(agentId)) {
+          // Still in distribution tree, may be moving to a new parent.  The
+          // cached community is kept for a while but children are released
+          // now so that their own deferrals run concurrently with this one
+          // rather than after it.
+          if (logger.isDebugEnabled()) {
+            logger.debug(agentName+": deferring removal of CommunityDescriptor: " + cd);
+          }
+          removeForwarder(cd.getName());
+          pendingRemovals.put(cd.getName(),
+                              new PendingRemoval(cd.getCommunity(),
+                                                 now() + 2 * updateInterval));
+          if (removalTimer == null) {
+            removalTimer = new WakeAlarm(now() + 2 * updateInterval);
+            alarmService.addRealTimeAlarm(removalTimer);
+          }
+          continue;
+        }
         if (logger.isDebugEnabled()) {
           logger.debug(agentName+": received removed CommunityDescriptor: " + cd +
-                       " size=" + cd.getCommunity().getEntities().size());
+                       " size=" + CommunityUtils.getEntityCount(cd.getCommunity()));
         }
         communityUpdateListener.removeCommunity(cd.getCommunity());
+        removeForwarder(cd.getName());
+      }
+
+      // Full communities resent by a parent after this agent missed an
+      // update, installed in the descriptor received from that parent
+      for (Iterator it = resyncDescriptorSub.getAddedCollection().iterator();
+           it.hasNext(); ) {
+        CommunityDescriptorImpl rcd = (CommunityDescriptorImpl)it.next();
+        CommunityDescriptorImpl cd = findDescriptor(rcd.getName(), rcd.getSource());
+        if (cd != null && cd.resync(rcd)) {
+          if (logger.isDebugEnabled()) {
+            logger.debug(agentName+": received resync CommunityDescriptor: " + cd +
+                         " size=" + CommunityUtils.getEntityCount(cd.getCommunity()));
+          }
+          pendingRemovals.remove(cd.getName());
+          communityUpdateListener.updateCommunity(cd.getCommunity());
+          forwardDescriptor(cd);
+        }
+      }
+
+      // Remove communities no longer sent by any parent
+      if (removalTimer != null && removalTimer.hasExpired()) {
+        long now = now();
+        long next = -1;
+        for (Iterator it = pendingRemovals.entrySet().iterator(); it.hasNext(); ) {
+          Map.Entry me = (Map.Entry)it.next();
+          String communityName = (String)me.getKey();
+          PendingRemoval pr = (PendingRemoval)me.getValue();
+          if (hasDescriptor(communityName)) {
+            it.remove();
+          } else if (pr.time <= now) {
+            it.remove();
+            if (logger.isDebugEnabled()) {
+              logger.debug(agentName+": removing community no longer distributed: " +
+                           communityName);
+            }
+            communityUpdateListener.removeCommunity(pr.community);
+            removeForwarder(communityName);
+          } else if (next < 0 || pr.time < next) {
+            next = pr.time;
+          }
+        }
+        removalTimer = null;
+        if (next >= 0) {
+          removalTimer = new WakeAlarm(next);
+          alarmService.addRealTimeAlarm(removalTimer);
+        }
+      }
+
+      // Children in distribution tree that missed an update
+      for (Iterator it = forwardedDescriptorSub.getChangedCollection().iterator();
+           it.hasNext(); ) {
+        RelayAdapter ra = (RelayAdapter)it.next();
+        CommunityDescriptorImpl cd = (CommunityDescriptorImpl)ra.getContent();
+        Forwarder f = (Forwarder)forwarders.get(cd.getName());
+        if (f == null || f.ra != ra) continue;
+        if (ra instanceof DescriptorRelay) {
+          // Resend current version to the children that missed it
+          Set targets = ((DescriptorRelay)ra).takeResyncTargets();
+          if (!targets.isEmpty() && cd.getCommunity() != null) {
+            CommunityDescriptorImpl rcd =
+                new CommunityDescriptorImpl(agentId, null, getUID());
+            rcd.setResync(cd);
+            RelayAdapter rra = new RelayAdapter(agentId, rcd, rcd.getUID());
+            for (Iterator it1 = targets.iterator(); it1.hasNext(); ) {
+              rra.addTarget((MessageAddress)it1.next());
+            }
+            f.resyncRelays.add(rra);
+            blackboard.publishAdd(rra);
+            if (logger.isDebugEnabled()) {
+              logger.debug(agentName+": resync forwarded CommunityDescriptor: " + cd +
+                           " targets=" + RelayAdapter.targetsToString(rra));
+            }
+          }
+          continue;
+        }
+        Object resync = ra.getResponse();
+        if (resync != null && resync != f.resyncRequest) {
+          f.resyncRequest = resync;
+          cd.forward(cd, true);  // Resend current version as snapshot
+          blackboard.publishChange(ra);
+          if (logger.isDebugEnabled()) {
+            logger.debug(agentName+": resend forwarded CommunityDescriptor: " + cd);
+          }
+        }
       }
 
       // ListParentCommunities requests
@@ -792,28 +1185,39 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
        }
      }
 
-    private void performFindManagerRetries() {
-      int n;
-      List l;
+    /**
+     * Perform lookups that are due.  Retries whose tryUntil time has passed
+     * are cancelled.
+     * @return Time next request is due or -1 if none are queued
+     */
+    private long performFindManagerRetries() {
+      List due = new ArrayList();
       long now = now();
-      if (log.isDetailEnabled()) {
-        log.detail("performFindManagerRetries: entries=" +
-                   findManagerRequests.size());
-      }
+      long next = -1;
       synchronized (findManagerRequests) {
-        n = findManagerRequests.size();
-        if (n <= 0 || blackboard == null) { return; }
-        l = new ArrayList(findManagerRequests);
-        findManagerRequests.clear();
-      }
-      for (int i = 0; i < n; i++) {
-        FindManagerRequest req = (FindManagerRequest)l.get(i);
-        if (now >= req.getTime()) {
+        if (log.isDetailEnabled()) {
+          log.detail("performFindManagerRetries: entries=" +
+                     findManagerRequests.size());
+        }
+        if (blackboard == null) return -1;
+        while (!findManagerRequests.isEmpty()) {
+          FindManagerRequest req = (FindManagerRequest)findManagerRequests.peek();
+          if (req.getTime() > now) {
+            next = req.getTime();
+            break;
+          }
+          due.add(findManagerRequests.poll());
+        }
+      }
+      for (Iterator it = due.iterator(); it.hasNext();) {
+        FindManagerRequest req = (FindManagerRequest)it.next();
+        if (req.retry && req.tryUntil >= 0 && now >= req.tryUntil) {
+          req.getCallback().execute(null); // Give up
+        } else {
           findManager(req.getCommunityName(), req.getCallback(), req.tryUntil);
-        } else {  // requeue
-          findManagerRequests.add(req);
         }
       }
+      return next;
     }
 
     private final UnaryPredicate communityMembershipsPredicate = 
@@ -848,6 +1252,97 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
       }
     }
 
+    /**
+     * Forwards a CommunityDescriptor to the children of this agent in the
+     * distribution tree defined by the community manager.
+     * @param cd CommunityDescriptor received from parent
+     */
+    private void forwardDescriptor(CommunityDescriptor cd) {
+      if (!(cd instanceof CommunityDescriptorImpl)) return;
+      CommunityDescriptorImpl received = (CommunityDescriptorImpl)cd;
+      List children = DistributionTree.getChildren(received.getRoutes(),
+                                                   received.getFanout(),
+                                                   agentId);
+      Forwarder f = (Forwarder)forwarders.get(cd.getName());
+      if (children.isEmpty()) {
+        removeForwarder(cd.getName());
+        return;
+      }
+      boolean isNew = (f == null);
+      if (isNew) {
+        CommunityDescriptorImpl fcd =
+            new CommunityDescriptorImpl(agentId, null, getUID());
+        f = new Forwarder(new DescriptorRelay(agentId, fcd, fcd.getUID()));
+        forwarders.put(cd.getName(), f);
+      } else {
+        // Children have received prior resends
+        removeResyncRelays(f);
+      }
+      boolean newTargets = false;
+      for (Iterator it = new ArrayList(f.ra.getTargets()).iterator(); it.hasNext(); ) {
+        MessageAddress target = (MessageAddress)it.next();
+        if (!children.contains(target)) {
+          f.ra.removeTarget(target);
+        }
+      }
+      for (Iterator it = children.iterator(); it.hasNext(); ) {
+        MessageAddress target = (MessageAddress)it.next();
+        if (!f.ra.getTargets().contains(target)) {
+          f.ra.addTarget(target);
+          newTargets = true;
+        }
+      }
+      ((CommunityDescriptorImpl)f.ra.getContent()).forward(received, newTargets);
+      if (isNew) {
+        blackboard.publishAdd(f.ra);
+      } else {
+        blackboard.publishChange(f.ra);
+      }
+      if (logger.isDetailEnabled()) {
+        logger.detail(agentName+": forward CommunityDescriptor: " + cd +
+                      " targets=" + RelayAdapter.targetsToString(f.ra));
+      }
+    }
+
+    private void removeForwarder(String communityName) {
+      Forwarder f = (Forwarder)forwarders.remove(communityName);
+      if (f != null) {
+        removeResyncRelays(f);
+        blackboard.publishRemove(f.ra);
+      }
+    }
+
+    private void removeResyncRelays(Forwarder f) {
+      for (Iterator it = f.resyncRelays.iterator(); it.hasNext(); ) {
+        blackboard.publishRemove(it.next());
+      }
+      f.resyncRelays.clear();
+    }
+
+    /**
+     * Returns the CommunityDescriptor for a community received from source.
+     */
+    private CommunityDescriptorImpl findDescriptor(String communityName,
+                                                   MessageAddress source) {
+      Set s = (Set)descriptors.get(communityName);
+      if (s == null) return null;
+      for (Iterator it = s.iterator(); it.hasNext(); ) {
+        Object o = it.next();
+        if (o instanceof CommunityDescriptorImpl) {
+          CommunityDescriptorImpl cd = (CommunityDescriptorImpl)o;
+          if (source.equals(cd.getSource())) {
+            return cd;
+          }
+        }
+      }
+      return null;
+    }
+
+    // Tests whether a CommunityDescriptor for community is on blackboard
+    private boolean hasDescriptor(String communityName) {
+      return descriptors.containsKey(communityName);
+    }
+
     /**
      * Selects CommunityDescriptors that are sent by remote community manager
      * agent.
@@ -857,7 +1352,58 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
       new CommunityDescriptorPredicate();
     private class CommunityDescriptorPredicate implements UnaryPredicate {
       public boolean execute(Object o) {
-        return (o instanceof CommunityDescriptor);
+        return (o instanceof CommunityDescriptor &&
+                !(o instanceof CommunityDescriptorImpl &&
+                  ((CommunityDescriptorImpl)o).isResync()));
+      }
+    }
+
+    /**
+     * Selects full communities resent to this agent after it missed an
+     * update.
+     */
+    private IncrementalSubscription resyncDescriptorSub;
+    private final UnaryPredicate resyncDescriptorPredicate =
+      new ResyncDescriptorPredicate();
+    private class ResyncDescriptorPredicate implements UnaryPredicate {
+      public boolean execute(Object o) {
+        return (o instanceof CommunityDescriptorImpl &&
+                ((CommunityDescriptorImpl)o).isResync());
+      }
+    }
+
+    /**
+     * Selects CommunityDescriptor relays published by this agent to forward
+     * descriptors to its children in a distribution tree
+     */
+    private IncrementalSubscription forwardedDescriptorSub;
+    private final UnaryPredicate forwardedDescriptorPredicate =
+      new ForwardedDescriptorPredicate();
+    private class ForwardedDescriptorPredicate implements UnaryPredicate {
+      public boolean execute(Object o) {
+        if (o instanceof RelayAdapter) {
+          Object content = ((RelayAdapter)o).getContent();
+          return (content instanceof CommunityDescriptorImpl &&
+                  ((CommunityDescriptorImpl)content).isForwarded());
+        }
+        return false;
+      }
+    }
+
+    /**
+     * Selects relays published by this agent to resend a full community to
+     * children that missed an update
+     */
+    private final UnaryPredicate resyncRelayPredicate =
+      new ResyncRelayPredicate();
+    private class ResyncRelayPredicate implements UnaryPredicate {
+      public boolean execute(Object o) {
+        if (o instanceof RelayAdapter) {
+          Object content = ((RelayAdapter)o).getContent();
+          return (content instanceof CommunityDescriptorImpl &&
+                  ((CommunityDescriptorImpl)content).isResync());
+        }
+        return false;
       }
     }
 
@@ -901,11 +1447,37 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
   }
 
 
+  /**
+   * Relay used to forward a CommunityDescriptor to children in a
+   * distribution tree.
+   */
+  class Forwarder {
+    private RelayAdapter ra;
+    private Object resyncRequest;  // Last resync response handled
+    private List resyncRelays = new ArrayList();  // Resends to children
+    Forwarder(RelayAdapter ra) {
+      this.ra = ra;
+    }
+  }
+
+  /**
+   * Community removed by a parent in a distribution tree.
+   */
+  class PendingRemoval {
+    private Community community;
+    private long time;  // Time at which community is removed
+    PendingRemoval(Community community, long time) {
+      this.community = community;
+      this.time = time;
+    }
+  }
+
   class FindManagerRequest {
     private long nextRetryTime;
     private String communityName;
     private FindCommunityCallback fmcb;
     private long tryUntil;
+    private boolean retry;
     FindManagerRequest(long time,
                        String cname,
                        FindCommunityCallback cb,
@@ -918,6 +1490,50 @@ public class DefaultCommunityServiceImpl extends AbstractCommunityService
     protected long getTime() { return nextRetryTime; }
     protected String getCommunityName() { return communityName; }
     protected FindCommunityCallback getCallback() { return fmcb; }
+    protected void complete(String managerName) {
+      if (managerName != null) {
+        fmcb.execute(managerName);
+      } else { // retry?
+        retryFindManager(communityName, fmcb, tryUntil);
+      }
+    }
+  }
+
+  /**
+   * Single refresh listener registered with node cache, requests a new copy
+   * of a community through the service of an agent still on node.
+   */
+  static class NodeRefreshListener implements CommunityRefreshListener {
+    public void refreshCommunity(String communityName) {
+      DefaultCommunityServiceImpl cs = null;
+      synchronized (cacheLock) {
+        if (!refreshServices.isEmpty()) {
+          cs = (DefaultCommunityServiceImpl)refreshServices.get(0);
+        }
+      }
+      if (cs != null) {
+        cs.queueCommunityRequest(communityName,
+                                 Request.GET_COMMUNITY_DESCRIPTOR,
+                                 null, null, null, -1, 0);
+      }
+    }
+  }
+
+  static class FindManagerRequestComparator implements Comparator {
+    public int compare(Object o1, Object o2) {
+      long t1 = ((FindManagerRequest)o1).getTime();
+      long t2 = ((FindManagerRequest)o2).getTime();
+      return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+    }
+  }
+
+  /**
+   * White Pages lookup of a community manager and the requests waiting for
+   * its result.
+   */
+  static class ManagerLookup {
+    private final long start = System.currentTimeMillis();
+    private final List waiters = new ArrayList();
   }
 
   class ResponseHolder {
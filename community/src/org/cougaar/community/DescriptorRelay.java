@@ -0,0 +1,72 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+
+package org.cougaar.community;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.relay.Relay;
+import org.cougaar.core.util.UID;
+
+/**
+ * Relay used to send a CommunityDescriptor.  Records the targets that
+ * responded with a resync request so that the full community can be
+ * resent to those targets only.
+ */
+public class DescriptorRelay extends RelayAdapter {
+
+  private transient Set resyncTargets;
+
+  public DescriptorRelay(MessageAddress source,
+                         Object content,
+                         UID uid) {
+    super(source, content, uid);
+  }
+
+  public int updateResponse(MessageAddress target, Object response) {
+    super.updateResponse(target, response);
+    if (response != null) {
+      synchronized (this) {
+        if (resyncTargets == null) resyncTargets = new HashSet();
+        resyncTargets.add(target);
+      }
+    }
+    return Relay.RESPONSE_CHANGE;
+  }
+
+  /**
+   * Returns targets that requested a resync since the previous call.
+   * @return Set of MessageAddresses
+   */
+  public synchronized Set takeResyncTargets() {
+    Set targets = resyncTargets;
+    resyncTargets = null;
+    return targets != null ? targets : Collections.EMPTY_SET;
+  }
+}
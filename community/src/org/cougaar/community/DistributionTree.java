@@ -0,0 +1,105 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Static helper methods defining the tree used to distribute
+ * CommunityDescriptors to a large number of targets.  The targets are held
+ * in a list that is shared by the sender and all targets.  The sender sends
+ * to the first <i>fanout</i> targets and the target at position i forwards
+ * to the targets at positions fanout*(i+1) through fanout*(i+1)+fanout-1.
+ */
+public class DistributionTree {
+
+  /**
+   * Returns the targets a node sends to.
+   * @param routes Ordered list of targets
+   * @param fanout Branching factor of tree
+   * @param node   Node in routes, or null for the sender
+   * @return List  Children of node
+   */
+  public static List getChildren(List routes, int fanout, Object node) {
+    if (routes == null || fanout <= 0) {
+      return Collections.EMPTY_LIST;
+    }
+    int index = -1;
+    if (node != null) {
+      index = routes.indexOf(node);
+      if (index < 0) {
+        return Collections.EMPTY_LIST;
+      }
+    }
+    int first = fanout * (index + 1);
+    if (first >= routes.size()) {
+      return Collections.EMPTY_LIST;
+    }
+    return new ArrayList(routes.subList(first,
+                                        Math.min(first + fanout, routes.size())));
+  }
+
+  /**
+   * Tests whether the target at index forwards to other targets.
+   * @param routes Ordered list of targets
+   * @param fanout Branching factor of tree
+   * @param index  Position of target
+   * @return boolean True if target has children
+   */
+  public static boolean isRelay(List routes, int fanout, int index) {
+    return fanout > 0 && fanout * (index + 1) < routes.size();
+  }
+
+  /**
+   * Moves a target to a leaf position by exchanging it with the last target.
+   * The last target takes over the children of the moved target, all other
+   * targets keep their parents.
+   * @param routes Ordered list of targets
+   * @param index  Position of target to move
+   */
+  public static void demote(List routes, int index) {
+    int last = routes.size() - 1;
+    if (index >= 0 && index < last) {
+      Object node = routes.get(index);
+      routes.set(index, routes.get(last));
+      routes.set(last, node);
+    }
+  }
+
+  /**
+   * Removes a target.  The last target takes its position so that all other
+   * targets keep their parents.
+   * @param routes Ordered list of targets
+   * @param index  Position of target to remove
+   */
+  public static void remove(List routes, int index) {
+    demote(routes, index);
+    routes.remove(routes.size() - 1);
+  }
+
+}
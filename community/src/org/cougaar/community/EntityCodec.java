@@ -0,0 +1,275 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+import org.cougaar.core.service.community.Entity;
+import org.cougaar.util.Strings;
+
+/**
+ * Compact binary encoding of entities and their attributes used by the
+ * writeObject/readObject methods of EntityImpl and CommunityImpl.  Strings
+ * are dictionary encoded, the first occurrence is written in full and
+ * later occurrences as a reference, so attribute ids and values that are
+ * repeated across the members of a community are sent once.  Classes and
+ * values that aren't recognized are written with writeObject.  A codec
+ * instance holds the dictionary for a single object and must not be
+ * reused.
+ */
+final class EntityCodec {
+
+  // Value codes, string references start at FIRST_REF
+  private static final int NULL = 0;
+  private static final int NEW_STRING = 1;
+  private static final int OBJECT = 2;
+  private static final int FIRST_REF = 3;
+
+  // Longest string written with writeUTF, which is limited to 64K bytes
+  private static final int MAX_UTF_LENGTH = 16 * 1024;
+
+  // Attributes and Attribute codes
+  private static final int BASIC = 1;
+  private static final int OTHER = 2;
+
+  // Entity codes
+  private static final int AGENT = 1;
+  private static final int COMMUNITY = 2;
+  private static final int ENTITY = 3;
+  private static final int OTHER_ENTITY = 4;
+
+  private ObjectOutput out;
+  private ObjectInput in;
+  private Map stringIndex;   // Writer dictionary, String -> Integer
+  private List strings;      // Reader dictionary
+
+  EntityCodec(ObjectOutput out) {
+    this.out = out;
+    this.stringIndex = new HashMap();
+  }
+
+  EntityCodec(ObjectInput in) {
+    this.in = in;
+    this.strings = new ArrayList();
+  }
+
+  //
+  // Writing
+  //
+
+  void writeValue(Object value) throws IOException {
+    if (value == null) {
+      writeInt(NULL);
+    } else if (value instanceof String &&
+               ((String)value).length() <= MAX_UTF_LENGTH) {
+      Integer ref = (Integer)stringIndex.get(value);
+      if (ref != null) {
+        writeInt(FIRST_REF + ref.intValue());
+      } else {
+        stringIndex.put(value, new Integer(stringIndex.size()));
+        writeInt(NEW_STRING);
+        out.writeUTF((String)value);
+      }
+    } else {
+      writeInt(OBJECT);
+      out.writeObject(value);
+    }
+  }
+
+  void writeAttributes(Attributes attrs) throws IOException {
+    if (attrs == null) {
+      writeInt(NULL);
+    } else if (attrs.getClass() == CompactAttributes.class ||
+               attrs.getClass() == BasicAttributes.class) {
+      writeInt(BASIC);
+      out.writeBoolean(attrs.isCaseIgnored());
+      writeInt(attrs.size());
+      try {
+        for (NamingEnumeration en = attrs.getAll(); en.hasMore();) {
+          writeAttribute((Attribute)en.next());
+        }
+      } catch (NamingException ex) {
+        throw new IOException("Unable to encode attributes: " + ex);
+      }
+    } else {
+      writeInt(OTHER);
+      out.writeObject(attrs);
+    }
+  }
+
+  private void writeAttribute(Attribute attr) throws IOException, NamingException {
+    if (attr.getClass() == CompactAttribute.class ||
+        attr.getClass() == BasicAttribute.class) {
+      writeInt(BASIC);
+      writeValue(attr.getID());
+      out.writeBoolean(attr.isOrdered());
+      writeInt(attr.size());
+      for (int i = 0, n = attr.size(); i < n; i++) {
+        writeValue(attr.get(i));
+      }
+    } else {
+      writeInt(OTHER);
+      out.writeObject(attr);
+    }
+  }
+
+  void writeEntity(Entity entity) throws IOException {
+    Class cls = entity.getClass();
+    if (cls == CommunityImpl.class) {
+      CommunityImpl community = (CommunityImpl)entity;
+      writeInt(COMMUNITY);
+      writeValue(community.getName());
+      writeAttributes(CommunityUtils.getSharedAttributes(community));
+      writeEntities(community.getEntities());
+      out.writeLong(community.getLastUpdate());
+    } else if (cls == AgentImpl.class || cls == EntityImpl.class) {
+      writeInt(cls == AgentImpl.class ? AGENT : ENTITY);
+      writeValue(entity.getName());
+      writeAttributes(CommunityUtils.getSharedAttributes(entity));
+    } else {
+      writeInt(OTHER_ENTITY);
+      out.writeObject(entity);
+    }
+  }
+
+  void writeEntities(Collection entities) throws IOException {
+    writeInt(entities.size());
+    for (Iterator it = entities.iterator(); it.hasNext();) {
+      writeEntity((Entity)it.next());
+    }
+  }
+
+  // Variable length encoding of non-negative int, 7 bits per byte
+  private void writeInt(int i) throws IOException {
+    while ((i & ~0x7F) != 0) {
+      out.writeByte((i & 0x7F) | 0x80);
+      i >>>= 7;
+    }
+    out.writeByte(i);
+  }
+
+  //
+  // Reading
+  //
+
+  Object readValue() throws IOException, ClassNotFoundException {
+    int code = readInt();
+    switch (code) {
+      case NULL:
+        return null;
+      case NEW_STRING:
+        String s = Strings.intern(in.readUTF());
+        strings.add(s);
+        return s;
+      case OBJECT:
+        return in.readObject();
+      default:
+        return strings.get(code - FIRST_REF);
+    }
+  }
+
+  String readString() throws IOException, ClassNotFoundException {
+    return (String)readValue();
+  }
+
+  Attributes readAttributes() throws IOException, ClassNotFoundException {
+    switch (readInt()) {
+      case NULL:
+        return null;
+      case BASIC:
+        Attributes attrs = new CompactAttributes(in.readBoolean());
+        for (int i = 0, n = readInt(); i < n; i++) {
+          attrs.put(readAttribute());
+        }
+        return CompactAttributes.share(attrs);
+      default:
+        return (Attributes)in.readObject();
+    }
+  }
+
+  private Attribute readAttribute() throws IOException, ClassNotFoundException {
+    if (readInt() == BASIC) {
+      Attribute attr = new CompactAttribute(readString(), in.readBoolean());
+      for (int i = 0, n = readInt(); i < n; i++) {
+        attr.add(readValue());
+      }
+      return attr;
+    } else {
+      return (Attribute)in.readObject();
+    }
+  }
+
+  List readEntities() throws IOException, ClassNotFoundException {
+    int n = readInt();
+    List entities = new ArrayList(n);
+    for (int i = 0; i < n; i++) {
+      entities.add(readEntity());
+    }
+    return entities;
+  }
+
+  Entity readEntity() throws IOException, ClassNotFoundException {
+    switch (readInt()) {
+      case COMMUNITY:
+        CommunityImpl community =
+            new CommunityImpl(readString(), readAttributes());
+        community.setEntities(readEntities());
+        community.setLastUpdate(in.readLong());
+        return community;
+      case AGENT:
+        return new AgentImpl(readString(), readAttributes());
+      case ENTITY:
+        return new EntityImpl(readString(), readAttributes());
+      default:
+        return (Entity)in.readObject();
+    }
+  }
+
+  // Variable length decoding of non-negative int
+  private int readInt() throws IOException {
+    int i = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readByte();
+      i |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return i;
+    }
+  }
+}
@@ -25,15 +25,18 @@
  */
 package org.cougaar.community;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.BasicAttributes;
 
 import org.cougaar.core.service.community.Entity;
+import org.cougaar.util.Strings;
 
 /**
  * Defines entities that are associated with a community.
@@ -42,14 +45,15 @@ public class EntityImpl implements Entity, Serializable, Cloneable {
 
   // Instance variables
   protected String name;
-  protected Attributes attrs = new BasicAttributes();
+  // Replaced rather than modified while shared with other entities
+  protected volatile Attributes attrs = new CompactAttributes();
 
   /**
    * Constructor.
    * @param name Name of new Entity
    */
   public EntityImpl(String name) {
-    this.name = name;
+    this.name = Strings.intern(name);
   }
 
   /**
@@ -58,8 +62,8 @@ public class EntityImpl implements Entity, Serializable, Cloneable {
    * @param attrs Initial attributes
    */
   public EntityImpl(String name, Attributes attrs) {
-    this.name = name;
-    this.attrs = attrs;
+    this.name = Strings.intern(name);
+    this.attrs = CopyOnWriteAttributes.unwrap(attrs);
   }
 
   /**
@@ -67,7 +71,7 @@ public class EntityImpl implements Entity, Serializable, Cloneable {
    * @param name  Entity name
    */
   public void setName(String name) {
-    this.name = name;
+    this.name = Strings.intern(name);
   }
 
   /**
@@ -83,20 +87,50 @@ public class EntityImpl implements Entity, Serializable, Cloneable {
    * @param attrs Entity attributes
    */
   public void setAttributes(Attributes attrs) {
-    this.attrs = attrs;
+    this.attrs = CopyOnWriteAttributes.unwrap(attrs);
   }
 
   /**
-   * Get entity attributes.
+   * Get entity attributes.  Attributes shared with other entities are
+   * returned as a view that reads the shared attributes and replaces them
+   * with a private copy only when modified.
    * @return Entity attributes
    */
   public Attributes getAttributes() {
+    Attributes current = attrs;
+    return CompactAttributes.isShared(current)
+        ? new CopyOnWriteAttributes(this)
+        : current;
+  }
+
+  /**
+   * Get entity attributes for modification in place.  Attributes shared
+   * with other entities are first replaced with a private copy.
+   * @return Entity attributes
+   */
+  public synchronized Attributes getModifiableAttributes() {
+    Attributes current = attrs;
+    if (current == null) {
+      current = attrs = new CompactAttributes();
+    } else if (CompactAttributes.isShared(current)) {
+      current = attrs = (Attributes)current.clone();
+    }
+    return current;
+  }
+
+  /**
+   * Get entity attributes without copying attributes shared with other
+   * entities.  Used by read only paths, the returned attributes must not
+   * be modified.
+   * @return Entity attributes
+   */
+  Attributes getSharedAttributes() {
     return this.attrs;
   }
 
   public boolean equals(Object o) {
     return (o instanceof Entity && name.equals(((Entity)o).getName()) &&
-            attrs.equals(((Entity)o).getAttributes()));
+            attrs.equals(CommunityUtils.getSharedAttributes((Entity)o)));
   }
 
   public int hashCode() {
@@ -118,12 +152,7 @@ public class EntityImpl implements Entity, Serializable, Cloneable {
     } catch (CloneNotSupportedException e) {
       e.printStackTrace();
     }
-    o.name = new String(name);
-    if (attrs == null) {
-      o.attrs = null;
-    } else {
-      o.attrs = CommunityUtils.cloneAttributes(attrs);
-    }
+    o.attrs = CompactAttributes.share(attrs);
     return o;
   }
 
@@ -203,4 +232,16 @@ public class EntityImpl implements Entity, Serializable, Cloneable {
     return sb.toString();
   }
 
+  private void writeObject(ObjectOutputStream stream) throws IOException {
+    EntityCodec codec = new EntityCodec(stream);
+    codec.writeValue(name);
+    codec.writeAttributes(attrs);
+  }
+
+  private void readObject(ObjectInputStream stream) throws ClassNotFoundException, IOException {
+    EntityCodec codec = new EntityCodec(stream);
+    name = codec.readString();
+    attrs = codec.readAttributes();
+  }
+
 }
@@ -0,0 +1,125 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hashed timing wheel used to find items whose deadline has passed.
+ * Scheduling, cancelling and expiring an item are O(1).  Time is divided
+ * into ticks, each wheel slot holds the items with deadlines in one tick.
+ * The wheel must span the longest interval an item is scheduled ahead so
+ * that every slot is visited before it is reused.  Items may be returned
+ * early if advance isn't called for longer than that, callers should
+ * check the deadline of returned items.  Not synchronized.
+ */
+class ExpiryWheel {
+
+  private final long tick;
+  private final Set[] slots;
+  private final Map slotIndex = new HashMap();  // item -> Integer slot
+  private long lastTick;
+
+  /**
+   * Constructor.
+   * @param tick     Milliseconds per tick
+   * @param maxDelay Longest interval an item will be scheduled ahead
+   * @param now      Current time
+   */
+  ExpiryWheel(long tick, long maxDelay, long now) {
+    this.tick = Math.max(tick, 1);
+    // Extra slots for rounding of deadline and current tick
+    int n = (int)(maxDelay / this.tick) + 3;
+    slots = new Set[n];
+    for (int i = 0; i < n; i++) {
+      slots[i] = new HashSet();
+    }
+    lastTick = now / this.tick;
+  }
+
+  long getTick() {
+    return tick;
+  }
+
+  int size() {
+    return slotIndex.size();
+  }
+
+  /**
+   * Schedules item to be returned by advance once deadline has passed,
+   * replacing any previous deadline.
+   */
+  void schedule(Object item, long deadline) {
+    cancel(item);
+    // Round up so item is returned on first advance after deadline
+    long t = Math.max(deadline / tick + 1, lastTick + 1);
+    int slot = (int)(t % slots.length);
+    slots[slot].add(item);
+    slotIndex.put(item, new Integer(slot));
+  }
+
+  void cancel(Object item) {
+    Integer slot = (Integer)slotIndex.remove(item);
+    if (slot != null) slots[slot.intValue()].remove(item);
+  }
+
+  void clear() {
+    for (int i = 0; i < slots.length; i++) {
+      slots[i].clear();
+    }
+    slotIndex.clear();
+  }
+
+  /**
+   * Advances wheel to current time.
+   * @param now Current time
+   * @return Items with deadlines at or before now
+   */
+  List advance(long now) {
+    List expired = new ArrayList();
+    long current = now / tick;
+    // If sweeping fell behind by more than a revolution visit each slot once
+    if (current - lastTick > slots.length) lastTick = current - slots.length;
+    while (lastTick < current) {
+      lastTick++;
+      Set slot = slots[(int)(lastTick % slots.length)];
+      for (Iterator it = slot.iterator(); it.hasNext();) {
+        Object item = it.next();
+        it.remove();
+        slotIndex.remove(item);
+        expired.add(item);
+      }
+    }
+    return expired;
+  }
+
+}
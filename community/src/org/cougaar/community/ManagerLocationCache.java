@@ -0,0 +1,138 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
+
+/**
+ * Node level cache of community manager locations obtained from the White
+ * Pages.  Managers rarely move so a lookup is retained for a fixed period,
+ * a lookup that found no manager is retained for a shorter period.
+ * Entries are invalidated when a request to the manager fails or the
+ * manager binding changes.
+ */
+public class ManagerLocationCache implements CommunityServiceConstants {
+
+  protected Logger logger =
+      LoggerFactory.getInstance().createLogger(ManagerLocationCache.class);
+  protected long ttl = DEFAULT_MANAGER_CACHE_TTL;
+  protected long negativeTtl = DEFAULT_MANAGER_CACHE_NEGATIVE_TTL;
+
+  private final ConcurrentMap entries = new ConcurrentHashMap();
+
+  public ManagerLocationCache() {
+    getSystemProperties();
+  }
+
+  public ManagerLocationCache(long ttl, long negativeTtl) {
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+  }
+
+  protected void getSystemProperties() {
+    try {
+      ttl = Long.parseLong(System.getProperty(MANAGER_CACHE_TTL_PROPERTY,
+                           Long.toString(DEFAULT_MANAGER_CACHE_TTL)));
+      negativeTtl =
+          Long.parseLong(System.getProperty(MANAGER_CACHE_NEGATIVE_TTL_PROPERTY,
+                         Long.toString(DEFAULT_MANAGER_CACHE_NEGATIVE_TTL)));
+    } catch (Exception ex) {
+      if (logger.isWarnEnabled()) {
+        logger.warn("Exception setting parameter from system property", ex);
+      }
+    }
+  }
+
+  /**
+   * Returns cached lookup for community, or null if the community hasn't
+   * been looked up or the lookup has expired.
+   * @param communityName Name of community
+   * @return Entry
+   */
+  public Entry get(String communityName) {
+    if (communityName == null) return null;
+    Entry entry = (Entry)entries.get(communityName);
+    if (entry != null && entry.expiration <= now()) {
+      entries.remove(communityName, entry);
+      entry = null;
+    }
+    return entry;
+  }
+
+  /**
+   * Record result of a White Pages lookup.
+   * @param communityName Name of community
+   * @param managerName   Name of manager or null if no manager was found
+   */
+  public void put(String communityName, String managerName) {
+    long period = managerName != null ? ttl : negativeTtl;
+    if (communityName == null || period == 0) return;
+    long expiration = period < 0 ? Long.MAX_VALUE : now() + period;
+    entries.put(communityName, new Entry(managerName, expiration));
+  }
+
+  /**
+   * Discard cached lookup for community.
+   * @param communityName Name of community
+   */
+  public void invalidate(String communityName) {
+    if (communityName != null && entries.remove(communityName) != null &&
+        logger.isDebugEnabled()) {
+      logger.debug("invalidate: community=" + communityName);
+    }
+  }
+
+  public void clear() {
+    entries.clear();
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Result of a manager lookup.
+   */
+  public static class Entry {
+    private final String manager;
+    private final long expiration;
+    Entry(String manager, long expiration) {
+      this.manager = manager;
+      this.expiration = expiration;
+    }
+    /**
+     * @return Name of manager or null if no manager was found
+     */
+    public String getManager() {
+      return manager;
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.io.Serializable;
+
+import javax.naming.directory.ModificationItem;
+
+import org.cougaar.core.service.community.Entity;
+
+/**
+ * A single JOIN, LEAVE or MODIFY_ATTRIBUTES operation on a community
+ * member.  A list of changes is sent to the community manager in one
+ * BULK request and applied atomically.
+ */
+public class MembershipChange implements Serializable, CommunityServiceConstants {
+
+  private int type;
+  private Entity entity;
+  private ModificationItem[] attrMods;
+
+  /**
+   * Constructor.
+   * @param type     JOIN, LEAVE or MODIFY_ATTRIBUTES
+   * @param entity   Affected entity, null to modify community attributes
+   * @param attrMods Attribute modifications for MODIFY_ATTRIBUTES
+   */
+  public MembershipChange(int type, Entity entity, ModificationItem[] attrMods) {
+    this.type = type;
+    this.entity = entity;
+    this.attrMods = attrMods;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public Entity getEntity() {
+    return entity;
+  }
+
+  public ModificationItem[] getAttributeModifications() {
+    return attrMods;
+  }
+
+  public String toString() {
+    return "(" + type + ":" + (entity == null ? "null" : entity.getName()) + ")";
+  }
+
+}
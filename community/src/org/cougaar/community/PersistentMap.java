@@ -0,0 +1,375 @@
+/*
+ * <copyright>
+ *
+ *  Copyright 2001-2004 Mobile Intelligence Corp
+ *  under sponsorship of the Defense Advanced Research Projects
+ *  Agency (DARPA).
+ *
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * </copyright>
+ */
+package org.cougaar.community;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map supporting cheap modified copies, used for community
+ * members.  Entries are held in a hash array mapped trie so that plus and
+ * minus return a new map sharing all but the O(log n) nodes on the path to
+ * the changed entry, leaving this map unchanged.  Reads need no lock.
+ * Keys must not be null.
+ */
+final class PersistentMap extends AbstractMap {
+
+  static final PersistentMap EMPTY = new PersistentMap(null, 0);
+
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private final Node root;
+  private final int size;
+
+  private PersistentMap(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Returns map with all entries of source.
+   * @param source Map to copy
+   * @return PersistentMap
+   */
+  static PersistentMap copyOf(Map source) {
+    if (source instanceof PersistentMap) return (PersistentMap)source;
+    PersistentMap map = EMPTY;
+    for (Iterator it = source.entrySet().iterator(); it.hasNext();) {
+      Map.Entry me = (Map.Entry)it.next();
+      map = map.plus(me.getKey(), me.getValue());
+    }
+    return map;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean containsKey(Object key) {
+    return key != null && root != null &&
+        root.find(0, key.hashCode(), key) != null;
+  }
+
+  public Object get(Object key) {
+    if (key == null || root == null) return null;
+    Object[] kv = root.find(0, key.hashCode(), key);
+    return kv == null ? null : kv[1];
+  }
+
+  /**
+   * Returns map with key mapped to value.
+   * @param key   Key, not null
+   * @param value Value
+   * @return Updated map, this map if unchanged
+   */
+  PersistentMap plus(Object key, Object value) {
+    if (key == null) throw new NullPointerException("null key");
+    boolean added[] = new boolean[1];
+    Node updated = (root == null ? BitmapNode.EMPTY : root)
+        .plus(0, key.hashCode(), key, value, added);
+    if (updated == root) return this;
+    return new PersistentMap(updated, added[0] ? size + 1 : size);
+  }
+
+  /**
+   * Returns map without key.
+   * @param key Key
+   * @return Updated map, this map if key wasn't present
+   */
+  PersistentMap minus(Object key) {
+    if (key == null || root == null) return this;
+    Node updated = root.minus(0, key.hashCode(), key);
+    if (updated == root) return this;
+    return updated == null ? EMPTY : new PersistentMap(updated, size - 1);
+  }
+
+  public Set entrySet() {
+    return new AbstractSet() {
+      public int size() {
+        return size;
+      }
+      public Iterator iterator() {
+        return new EntryIterator(root);
+      }
+    };
+  }
+
+  /**
+   * Trie node.  Entries are held in arrays of alternating keys and values,
+   * a null key marks a slot holding a child node.
+   */
+  private abstract static class Node {
+    final Object[] array;
+    Node(Object[] array) {
+      this.array = array;
+    }
+    // Returns {key, value} for key or null if not found
+    abstract Object[] find(int shift, int hash, Object key);
+    abstract Node plus(int shift, int hash, Object key, Object value,
+                       boolean added[]);
+    // Returns updated node, null if node became empty
+    abstract Node minus(int shift, int hash, Object key);
+  }
+
+  /**
+   * Node holding a slot for each set bit of a 32 bit map.
+   */
+  private static final class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+    final int bitmap;
+
+    BitmapNode(int bitmap, Object[] array) {
+      super(array);
+      this.bitmap = bitmap;
+    }
+
+    private int index(int bit) {
+      return 2 * Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    Object[] find(int shift, int hash, Object key) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0) return null;
+      int ix = index(bit);
+      Object k = array[ix];
+      if (k == null) return ((Node)array[ix + 1]).find(shift + BITS, hash, key);
+      return key.equals(k) ? new Object[] {k, array[ix + 1]} : null;
+    }
+
+    Node plus(int shift, int hash, Object key, Object value, boolean added[]) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      int ix = index(bit);
+      if ((bitmap & bit) == 0) {
+        added[0] = true;
+        Object[] updated = new Object[array.length + 2];
+        System.arraycopy(array, 0, updated, 0, ix);
+        updated[ix] = key;
+        updated[ix + 1] = value;
+        System.arraycopy(array, ix, updated, ix + 2, array.length - ix);
+        return new BitmapNode(bitmap | bit, updated);
+      }
+      Object k = array[ix];
+      Object v = array[ix + 1];
+      Object replacement;
+      if (k == null) {
+        Node child = ((Node)v).plus(shift + BITS, hash, key, value, added);
+        if (child == v) return this;
+        replacement = child;
+      } else if (key.equals(k)) {
+        if (v == value) return this;
+        replacement = value;
+      } else {
+        added[0] = true;
+        replacement = pair(shift + BITS, k, v, hash, key, value);
+        k = null;
+      }
+      Object[] updated = (Object[])array.clone();
+      updated[ix] = k;
+      updated[ix + 1] = replacement;
+      return new BitmapNode(bitmap, updated);
+    }
+
+    Node minus(int shift, int hash, Object key) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0) return this;
+      int ix = index(bit);
+      Object k = array[ix];
+      if (k == null) {
+        Node child = ((Node)array[ix + 1]).minus(shift + BITS, hash, key);
+        if (child == array[ix + 1]) return this;
+        if (child != null) {
+          Object[] updated = (Object[])array.clone();
+          updated[ix + 1] = child;
+          return new BitmapNode(bitmap, updated);
+        }
+      } else if (!key.equals(k)) {
+        return this;
+      }
+      if (bitmap == bit) return null;
+      Object[] updated = new Object[array.length - 2];
+      System.arraycopy(array, 0, updated, 0, ix);
+      System.arraycopy(array, ix + 2, updated, ix, array.length - ix - 2);
+      return new BitmapNode(bitmap & ~bit, updated);
+    }
+
+    // Returns node holding two entries with different keys
+    private static Node pair(int shift, Object k1, Object v1,
+                             int h2, Object k2, Object v2) {
+      int h1 = k1.hashCode();
+      if (h1 == h2) return new CollisionNode(h1, new Object[] {k1, v1, k2, v2});
+      boolean added[] = new boolean[1];
+      return EMPTY.plus(shift, h1, k1, v1, added)
+                  .plus(shift, h2, k2, v2, added);
+    }
+  }
+
+  /**
+   * Node holding entries whose keys have the same hash code.
+   */
+  private static final class CollisionNode extends Node {
+    final int hash;
+
+    CollisionNode(int hash, Object[] array) {
+      super(array);
+      this.hash = hash;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) return i;
+      }
+      return -1;
+    }
+
+    Object[] find(int shift, int hash, Object key) {
+      int ix = indexOf(key);
+      return ix < 0 ? null : new Object[] {array[ix], array[ix + 1]};
+    }
+
+    Node plus(int shift, int hash, Object key, Object value, boolean added[]) {
+      if (hash != this.hash) {
+        // Push this node down below a bitmap node that separates the hashes
+        BitmapNode parent =
+            new BitmapNode(1 << ((this.hash >>> shift) & MASK),
+                           new Object[] {null, this});
+        return parent.plus(shift, hash, key, value, added);
+      }
+      int ix = indexOf(key);
+      if (ix >= 0) {
+        if (array[ix + 1] == value) return this;
+        Object[] updated = (Object[])array.clone();
+        updated[ix + 1] = value;
+        return new CollisionNode(hash, updated);
+      }
+      added[0] = true;
+      Object[] updated = new Object[array.length + 2];
+      System.arraycopy(array, 0, updated, 0, array.length);
+      updated[array.length] = key;
+      updated[array.length + 1] = value;
+      return new CollisionNode(hash, updated);
+    }
+
+    Node minus(int shift, int hash, Object key) {
+      int ix = indexOf(key);
+      if (ix < 0) return this;
+      if (array.length == 2) return null;
+      Object[] updated = new Object[array.length - 2];
+      System.arraycopy(array, 0, updated, 0, ix);
+      System.arraycopy(array, ix + 2, updated, ix, array.length - ix - 2);
+      return new CollisionNode(hash, updated);
+    }
+  }
+
+  /**
+   * Depth first iteration over the entries of a trie.
+   */
+  private static final class EntryIterator implements Iterator {
+    private final Object[][] arrays = new Object[8][];
+    private final int[] positions = new int[8];
+    private int depth = -1;
+    private Map.Entry next;
+
+    EntryIterator(Node root) {
+      if (root != null) push(root);
+      advance();
+    }
+
+    private void push(Node node) {
+      ++depth;
+      arrays[depth] = node.array;
+      positions[depth] = 0;
+    }
+
+    private void advance() {
+      next = null;
+      while (depth >= 0) {
+        Object[] array = arrays[depth];
+        int pos = positions[depth];
+        if (pos >= array.length) {
+          arrays[depth--] = null;
+          continue;
+        }
+        positions[depth] = pos + 2;
+        if (array[pos] == null) {
+          push((Node)array[pos + 1]);
+        } else {
+          next = new Entry(array[pos], array[pos + 1]);
+          return;
+        }
+      }
+    }
+
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    public Object next() {
+      if (next == null) throw new NoSuchElementException();
+      Map.Entry result = next;
+      advance();
+      return result;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static final class Entry implements Map.Entry {
+    private final Object key;
+    private final Object value;
+    Entry(Object key, Object value) {
+      this.key = key;
+      this.value = value;
+    }
+    public Object getKey() {
+      return key;
+    }
+    public Object getValue() {
+      return value;
+    }
+    public Object setValue(Object value) {
+      throw new UnsupportedOperationException();
+    }
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) return false;
+      Map.Entry me = (Map.Entry)o;
+      return key.equals(me.getKey()) &&
+          (value == null ? me.getValue() == null : value.equals(me.getValue()));
+    }
+    public int hashCode() {
+      return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+    }
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+}
@@ -102,6 +102,16 @@ public class RelayAdapter implements Relay.Source {
     }
   }
 
+  /**
+   * Remove a target destination.
+   * @param target MessageAddress of agent to remove from targets
+   **/
+  public void removeTarget(MessageAddress target) {
+    if (myTargetSet != null) {
+      myTargetSet.remove(target);
+    }
+  }
+
   public Set getInterestedAgents() {
     return interestedAgents;
   }
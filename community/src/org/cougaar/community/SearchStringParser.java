@@ -27,8 +27,11 @@
 package org.cougaar.community;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
@@ -36,6 +39,9 @@ import javax.naming.directory.Attributes;
 
 /**
  * Parse a RFC 2554 search string. A simple recursive descent parser.
+ * Parser state is local to each call so a single instance may be shared
+ * by concurrent threads.  The {@link #compile} method additionally caches
+ * the resulting Filter trees, which are immutable, keyed by filter string.
  **/
 public class SearchStringParser {
     private static final String LP = "(";
@@ -47,9 +53,34 @@ public class SearchStringParser {
     private static final String TAB = "\t";
     private static final String SEPS = LP + RP + AND + OR + NOT;
 
-    private StringTokenizer tokens;
-    private String token;
-    private String peek;        // Lookahead token
+    /** Compiled filters keyed by search string **/
+    private static final ConcurrentMap filters = new ConcurrentHashMap();
+    private static int maxFilters =
+        CommunityServiceConstants.DEFAULT_FILTER_CACHE_SIZE;
+    static {
+        try {
+            maxFilters = Integer.parseInt(System.getProperty(
+                CommunityServiceConstants.FILTER_CACHE_SIZE_PROPERTY,
+                Integer.toString(maxFilters)));
+        } catch (Exception ex) {
+            // Keep default
+        }
+    }
+
+    private static final SearchStringParser parser = new SearchStringParser();
+
+    /**
+     * Tokenizer state for a single parse.
+     **/
+    private static class Tokens {
+        private final StringTokenizer tokens;
+        private String token;
+        private String peek;        // Lookahead token
+
+        private Tokens(String s) {
+            tokens = new StringTokenizer(s, SEPS, true);
+        }
+    }
 
     /**
      * An exception to throw when a parsing error occurs
@@ -60,6 +91,31 @@ public class SearchStringParser {
         }
     }
 
+    /**
+     * Return the compiled Filter for a search string, parsing it only if
+     * it has not been seen recently.  The cache is bounded; when full an
+     * arbitrary entry is discarded to make room.
+     * @param s the string to parse
+     * @return a Filter that can be used to test Attributes for a
+     * match
+     * @exception ParseException
+     **/
+    public static Filter compile(String s) throws ParseException {
+        Filter result = (Filter) filters.get(s);
+        if (result == null) {
+            result = parser.parse(s);
+            if (filters.size() >= maxFilters) {
+                Iterator it = filters.keySet().iterator();
+                if (it.hasNext()) {
+                    filters.remove(it.next());
+                }
+            }
+            Filter existing = (Filter) filters.putIfAbsent(s, result);
+            if (existing != null) result = existing;
+        }
+        return result;
+    }
+
     /**
      * Parse a string into a Filter. Creates a StringTokenizer for the
      * parser methods to use and parses the top level "filter"
@@ -69,9 +125,10 @@ public class SearchStringParser {
      * match
      * @exception ParseException
      **/
-    public synchronized Filter parse(String s) throws ParseException {
-        tokens = new StringTokenizer(s, SEPS, true);
-        Filter result = filter();
+    public Filter parse(String s) throws ParseException {
+        if (s == null) throw new ParseException("null filter");
+        Tokens t = new Tokens(s);
+        Filter result = filter(t);
         return result;
     }
 
@@ -81,17 +138,17 @@ public class SearchStringParser {
      * @return the next token string
      * @exception ParseException if there are no more tokens left
      **/
-    private String getToken() throws ParseException {
-        if (peek != null) {
-            token = peek;
-            peek = null;
+    private String getToken(Tokens t) throws ParseException {
+        if (t.peek != null) {
+            t.token = t.peek;
+            t.peek = null;
         } else {
             do {
-                if (!tokens.hasMoreTokens()) throw new ParseException("premature end");
-                token = tokens.nextToken();
-            } while (token != null && token.trim().equals(""));
+                if (!t.tokens.hasMoreTokens()) throw new ParseException("premature end");
+                t.token = t.tokens.nextToken();
+            } while (t.token != null && t.token.trim().equals(""));
         }
-        return token;
+        return t.token;
     }
 
     /**
@@ -99,9 +156,9 @@ public class SearchStringParser {
      * @return the next token string
      * @exception ParseException if there are no more tokens left
      **/
-    private String peekToken() throws ParseException {
-        peek = getToken();
-        return peek;
+    private String peekToken(Tokens t) throws ParseException {
+        t.peek = getToken(t);
+        return t.peek;
     }
 
     /**
@@ -109,8 +166,8 @@ public class SearchStringParser {
      * @param expected the token that should come next
      * @exception ParseException if the next token is incorrect
      **/
-    private void checkToken(String expected) throws ParseException {
-        if (!expected.equals(getToken())) throw new ParseException(expected + " missing");
+    private void checkToken(Tokens t, String expected) throws ParseException {
+        if (!expected.equals(getToken(t))) throw new ParseException(expected + " missing");
     }
 
     /**
@@ -118,10 +175,10 @@ public class SearchStringParser {
      * @return the resulting Filter
      * @exception ParseException
      **/
-    private Filter filter() throws ParseException {
-        checkToken(LP);
-        Filter result = filtercomp();
-        checkToken(RP);
+    private Filter filter(Tokens t) throws ParseException {
+        checkToken(t, LP);
+        Filter result = filtercomp(t);
+        checkToken(t, RP);
         return result;
     }
 
@@ -133,11 +190,11 @@ public class SearchStringParser {
      * @return the resulting Filter
      * @exception ParseException
      **/
-    private Filter filtercomp() throws ParseException {
-        getToken();
-        if (token.equals(AND)) return new FilterAnd(filterlist());
-        if (token.equals(OR)) return new FilterOr(filterlist());
-        if (token.equals(NOT)) return new FilterNot(filter());
+    private Filter filtercomp(Tokens t) throws ParseException {
+        String token = getToken(t);
+        if (token.equals(AND)) return new FilterAnd(filterlist(t));
+        if (token.equals(OR)) return new FilterOr(filterlist(t));
+        if (token.equals(NOT)) return new FilterNot(filter(t));
         if (token.equals(LP)) throw new ParseException(LP + " unexpected");
         if (token.equals(RP)) throw new ParseException(RP + " unexpected");
         return item(token);
@@ -150,11 +207,11 @@ public class SearchStringParser {
      * @return an array of Filter objects.
      * @exception ParseException
      **/
-    private Filter[] filterlist() throws ParseException {
+    private Filter[] filterlist(Tokens t) throws ParseException {
         List result = new ArrayList();
         do {
-            result.add(filter());
-        } while (LP.equals(peekToken()));
+            result.add(filter(t));
+        } while (LP.equals(peekToken(t)));
         return (Filter[]) result.toArray(new Filter[result.size()]);
     }
 
@@ -212,13 +269,17 @@ public class SearchStringParser {
     /**
      * A Filter representing an AND operation.
      **/
-    private static class FilterAnd extends FilterBase implements Filter {
+    static class FilterAnd extends FilterBase implements Filter {
         private Filter[] list;
 
         public FilterAnd(Filter[] list) {
             this.list = list;
         }
 
+        Filter[] getFilters() {
+            return list;
+        }
+
         /**
          * Check if all the filters in the filter list match the given
          * Attributes.
@@ -246,13 +307,17 @@ public class SearchStringParser {
     /**
      * A Filter representing an OR operation.
      **/
-    private static class FilterOr extends FilterBase implements Filter {
+    static class FilterOr extends FilterBase implements Filter {
         private Filter[] list;
 
         public FilterOr(Filter[] list) {
             this.list = list;
         }
 
+        Filter[] getFilters() {
+            return list;
+        }
+
         /**
          * Check if any of the filters in the filter list match the given
          * Attributes.
@@ -280,13 +345,17 @@ public class SearchStringParser {
     /**
      * A filter that negates the value of another Filter
      **/
-    private static class FilterNot extends FilterBase implements Filter {
+    static class FilterNot extends FilterBase implements Filter {
         private Filter filter;
 
         public FilterNot(Filter filter) {
             this.filter = filter;
         }
 
+        Filter getFilter() {
+            return filter;
+        }
+
         /**
          * Return the negation of applying filter.
          **/
@@ -385,13 +454,17 @@ public class SearchStringParser {
     /**
      * A Filter that checks if an attribute is present
      **/
-    private static class FilterPresence extends FilterBase implements Filter {
+    static class FilterPresence extends FilterBase implements Filter {
         private String attrdesc;
 
         public FilterPresence(String attrdesc) {
             this.attrdesc = attrdesc;
         }
 
+        String getAttributeId() {
+            return attrdesc;
+        }
+
         public boolean match(Attributes attrs) throws NamingException {
             try {
                 return attrs.get(attrdesc) != null;
@@ -414,7 +487,7 @@ public class SearchStringParser {
      * A Filter that checks if the value of an attribute is equal to
      * a specified value. This version simply compares strings.
      **/
-    private static class FilterEquality extends FilterBase implements Filter {
+    static class FilterEquality extends FilterBase implements Filter {
         protected String attrdesc, value;
 
         public FilterEquality(String attrdesc, String value) {
@@ -422,6 +495,14 @@ public class SearchStringParser {
             this.value = value;
         }
 
+        String getAttributeId() {
+            return attrdesc;
+        }
+
+        String getValue() {
+            return value;
+        }
+
         public boolean match(Attributes attrs) throws NamingException {
             try {
                 Attribute attr = attrs.get(attrdesc);
@@ -35,8 +35,10 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.BasicAttribute;
-import javax.naming.directory.BasicAttributes;
+
+import org.cougaar.community.CompactAttribute;
+import org.cougaar.community.CompactAttributes;
+import org.cougaar.util.Strings;
 
 /**
  * Defines an initial configuration for a community.
@@ -44,11 +46,11 @@ import javax.naming.directory.BasicAttributes;
 public class CommunityConfig {
 
   private String name;
-  private Attributes attributes = new BasicAttributes();
+  private Attributes attributes = new CompactAttributes();
   private Map entities = new HashMap();
 
   public CommunityConfig(String name) {
-    this.name = name;
+    this.name = Strings.intern(name);
   }
 
   public String getName() {
@@ -58,7 +60,7 @@ public class CommunityConfig {
   public void addAttribute(String id, String value) {
     Attribute attr = attributes.get(id);
     if (attr == null) {
-      attr = new BasicAttribute(id, value);
+      attr = new CompactAttribute(id, value);
       attributes.put(attr);
     } else {
       if (!attr.contains(value)) attr.add(value);
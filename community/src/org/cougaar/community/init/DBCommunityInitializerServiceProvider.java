@@ -38,9 +38,9 @@ import java.util.Vector;
 
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.BasicAttribute;
-import javax.naming.directory.BasicAttributes;
 
+import org.cougaar.community.CompactAttribute;
+import org.cougaar.community.CompactAttributes;
 import org.cougaar.core.component.BindingSite;
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.component.ServiceBrokerSupport;
@@ -133,14 +133,14 @@ class DBCommunityInitializerServiceProvider implements ServiceProvider {
       Statement s = conn.createStatement();
       ResultSet rs = s.executeQuery(query2);
       //ResultSet rs = s.executeQuery("select * from community_attribute");
-      javax.naming.directory.Attributes attrs = new BasicAttributes();
+      javax.naming.directory.Attributes attrs = new CompactAttributes();
       while(rs.next()) {
         if (rs.getString(1).equals(communityName)) {
           String attrId = rs.getString(2);
           String attrValue = rs.getString(3);
           Attribute attr = attrs.get(attrId);
           if (attr == null) {
-            attr = new BasicAttribute(attrId);
+            attr = new CompactAttribute(attrId);
             attrs.put(attr);
           }
           if (!attr.contains(attrValue)) attr.add(attrValue);
@@ -199,6 +199,15 @@ class DBCommunityInitializerServiceProvider implements ServiceProvider {
         s.close();
       } catch (SQLException e) {}
 
+      // Share identical entity attribute sets
+      for (Iterator it = configMap.values().iterator(); it.hasNext();) {
+        CommunityConfig cc = (CommunityConfig)it.next();
+        for (Iterator it1 = cc.getEntities().iterator(); it1.hasNext();) {
+          EntityConfig entity = (EntityConfig)it1.next();
+          entity.setAttributes(CompactAttributes.share(entity.getAttributes()));
+        }
+      }
+
       return configMap.values();
     }
 
@@ -28,8 +28,10 @@ package org.cougaar.community.init;
 
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.BasicAttribute;
-import javax.naming.directory.BasicAttributes;
+
+import org.cougaar.community.CompactAttribute;
+import org.cougaar.community.CompactAttributes;
+import org.cougaar.util.Strings;
 
 /**
  * Defines an entity maintained in a community sub-context.  The entity will
@@ -38,10 +40,10 @@ import javax.naming.directory.BasicAttributes;
 public class EntityConfig {
 
   private String name;
-  private Attributes attributes = new BasicAttributes();
+  private Attributes attributes = new CompactAttributes();
 
   public EntityConfig(String name) {
-    this.name = name;
+    this.name = Strings.intern(name);
   }
 
   public String getName() {
@@ -51,7 +53,7 @@ public class EntityConfig {
   public void addAttribute(String id, String value) {
     Attribute attr = attributes.get(id);
     if (attr == null) {
-      attr = new BasicAttribute(id, value);
+      attr = new CompactAttribute(id, value);
       attributes.put(attr);
     } else {
       if (!attr.contains(value)) attr.add(value);
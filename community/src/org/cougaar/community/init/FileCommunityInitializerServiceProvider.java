@@ -31,9 +31,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
-import javax.naming.directory.BasicAttributes;
 
 import org.cougaar.community.CommunityUtils;
+import org.cougaar.community.CompactAttributes;
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.component.ServiceProvider;
 import org.cougaar.util.ConfigFinder;
@@ -185,7 +185,7 @@ class FileCommunityInitializerServiceProvider implements ServiceProvider {
       try {
         if (localname.equals("Community")){
           String name = null;
-          javax.naming.directory.Attributes attrs = new BasicAttributes();
+          javax.naming.directory.Attributes attrs = new CompactAttributes();
           for (int i = 0; i < p3.getLength(); i++) {
             if (p3.getLocalName(i).equals("Name")) {
               name = p3.getValue(i).trim();
@@ -198,7 +198,7 @@ class FileCommunityInitializerServiceProvider implements ServiceProvider {
           community.setAttributes(attrs);
         } else if (localname.equals("Entity")) {
           String name = null;
-          javax.naming.directory.Attributes attrs = new BasicAttributes();
+          javax.naming.directory.Attributes attrs = new CompactAttributes();
           for (int i = 0; i < p3.getLength(); i++) {
             if (p3.getLocalName(i).equals("Name")) {
               name = p3.getValue(i).trim();
@@ -245,6 +245,7 @@ class FileCommunityInitializerServiceProvider implements ServiceProvider {
               !CommunityUtils.hasAttribute(entity.getAttributes(), "EntityType", "Community")) {
             CommunityUtils.setAttribute(entity.getAttributes(), "EntityType", "Agent");
           }
+          entity.setAttributes(CompactAttributes.share(entity.getAttributes()));
           community.addEntity(entity);
           entity = null;
         }
@@ -25,11 +25,14 @@
  */
 package org.cougaar.community.manager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -37,7 +40,6 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
 
@@ -49,10 +51,13 @@ import org.cougaar.core.service.community.Entity;
 import org.cougaar.core.service.wp.Callback;
 import org.cougaar.core.service.wp.Response;
 
+import org.cougaar.community.BulkCommunityResponse;
 import org.cougaar.community.CommunityServiceConstants;
 import org.cougaar.community.CommunityImpl;
 import org.cougaar.community.CommunityResponseImpl;
 import org.cougaar.community.CommunityUtils;
+import org.cougaar.community.CompactAttribute;
+import org.cougaar.community.MembershipChange;
 
 /**
  * Base class for CommunityManager that can manager one or more communities.  
@@ -67,6 +72,11 @@ public abstract class AbstractCommunityManager
   protected String agentName;
   protected CommunityAccessManager accessManager;
 
+  // Requests are serialized per community by locking one of a fixed set of
+  // stripes, requests for communities on different stripes run concurrently
+  private static final int LOCK_STRIPES = 32;
+  private final Object[] locks = createLocks(LOCK_STRIPES);
+
   /**
    * Adds a community to be managed by this community manager.
    * @param community Community to manage
@@ -100,16 +110,11 @@ public abstract class AbstractCommunityManager
               logger.debug(agentName + ": addCommunity:" + " name="
                   + community.getName());
             }
-            if (community.getAttributes() == null) {
-              community.setAttributes(new BasicAttributes());
-            }
-            CommunityUtils.setAttribute(community.getAttributes(),
+            CommunityUtils.setAttribute(
+                CommunityUtils.getModifiableAttributes(community),
                 "CommunityManager", agentName);
             communities.put(communityName, ((CommunityImpl) community).clone());
-            Set targets = new HashSet();
-            for (Iterator it = community.getEntities().iterator(); it.hasNext();) {
-              targets.add(((Entity) it.next()).getName());
-            }
+            Set targets = new HashSet(CommunityUtils.getEntityNames(community));
             addTargets(communityName, targets);
           }
           if (callback != null) {
@@ -136,7 +141,7 @@ public abstract class AbstractCommunityManager
     return resp;
   }
 
-  protected synchronized CommunityResponse handleRequest(String             source,
+  protected CommunityResponse handleRequest(String             source,
                                           String             communityName,
                                           int                reqType,
                                           Entity             entity,
@@ -149,6 +154,114 @@ public abstract class AbstractCommunityManager
                    " entity=" + entity +
                    " attrMods=" + attrMods);
     }
+    if (!authorize(source, communityName, reqType, entity, attrMods)) {
+      return new CommunityResponseImpl(CommunityResponse.FAIL, null);
+    }
+    synchronized (getLock(communityName)) {
+      if (isManager(communityName)) {
+        CommunityImpl community = (CommunityImpl)communities.get(communityName);
+        Batch batch = new Batch();
+        boolean result =
+            applyRequest(batch, source, community, reqType, entity, attrMods);
+        commit(community, batch);
+        return new CommunityResponseImpl(result
+                                         ? CommunityResponse.SUCCESS
+                                         : CommunityResponse.FAIL,
+                                         result ? community : null);
+      } else {
+        if (logger.isDetailEnabled()) {
+          logger.detail(agentName + ": Not community manager:" +
+                        " community=" + communityName +
+                        " source=" + source +
+                        " request=" + reqType);
+        }
+        return new CommunityResponseImpl(CommunityResponse.TIMEOUT, null);
+      }
+    }
+  }
+
+  /**
+   * Processes a group of Requests for one community received together.  The
+   * requests are applied in order while holding the community lock once.
+   * Agents to add to the distribution are collected and added together and
+   * at most one update is distributed for the group.
+   * @param communityName Name of community
+   * @param requests      Requests for community
+   * @return List         CommunityResponse for each request, in same order
+   */
+  protected List handleRequests(String communityName, List requests) {
+    int n = requests.size();
+    CommunityResponse responses[] = new CommunityResponse[n];
+    if (logger.isDebugEnabled()) {
+      logger.debug(agentName+": processRequests:" +
+                   " community=" + communityName +
+                   " requests=" + n);
+    }
+    // Authorization doesn't depend on community state
+    for (int i = 0; i < n; i++) {
+      Request req = (Request)requests.get(i);
+      String source = req.getSource().toString();
+      if (req.getRequestType() == BULK) {
+        responses[i] =
+            authorize(source, communityName, req.getMembershipChanges());
+      } else if (!authorize(source, communityName, req.getRequestType(),
+                            req.getEntity(), req.getAttributeModifications())) {
+        responses[i] = new CommunityResponseImpl(CommunityResponse.FAIL, null);
+      }
+    }
+    synchronized (getLock(communityName)) {
+      boolean manager = isManager(communityName);
+      CommunityImpl community =
+          manager ? (CommunityImpl)communities.get(communityName) : null;
+      Batch batch = new Batch();
+      for (int i = 0; i < n; i++) {
+        if (responses[i] != null) continue;
+        Request req = (Request)requests.get(i);
+        String source = req.getSource().toString();
+        int reqType = req.getRequestType();
+        if (manager && reqType != JOIN) {
+          // Consecutive joins are added together
+          flushJoins(community, batch.joins);
+        }
+        if (!manager) {
+          if (logger.isDetailEnabled()) {
+            logger.detail(agentName + ": Not community manager:" +
+                          " community=" + communityName +
+                          " source=" + source +
+                          " request=" + reqType);
+          }
+          responses[i] = reqType == BULK
+              ? bulkTimeout(req.getMembershipChanges().size())
+              : new CommunityResponseImpl(CommunityResponse.TIMEOUT, null);
+        } else if (reqType == BULK) {
+          responses[i] =
+              applyChanges(batch, source, community, req.getMembershipChanges());
+        } else {
+          boolean result = applyRequest(batch, source, community, reqType,
+                                        req.getEntity(),
+                                        req.getAttributeModifications());
+          responses[i] = new CommunityResponseImpl(result
+                                                   ? CommunityResponse.SUCCESS
+                                                   : CommunityResponse.FAIL,
+                                                   result ? community : null);
+        }
+      }
+      if (manager) {
+        commit(community, batch);
+      }
+    }
+    return Arrays.asList(responses);
+  }
+
+  /**
+   * Checks request against access policy.
+   * @return boolean True if request is authorized
+   */
+  private boolean authorize(String             source,
+                            String             communityName,
+                            int                reqType,
+                            Entity             entity,
+                            ModificationItem[] attrMods) {
     if (accessManager != null &&
         !accessManager.authorize(communityName,
                                  source,
@@ -163,128 +276,370 @@ public abstract class AbstractCommunityManager
                                 " request=" + reqType +
                                 " target=" + entity);
       }
-      return new CommunityResponseImpl(CommunityResponse.FAIL, null);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Changes made to a community by one or more requests that have not yet
+   * been distributed.
+   */
+  private static class Batch {
+    Set targets = new HashSet();
+    List joins = new ArrayList();  // Entities joined but not yet added
+    boolean changed = false;
+  }
+
+  /**
+   * Adds agents collected in batch to distribution and sends one update if
+   * community was changed.
+   */
+  private void commit(CommunityImpl community, Batch batch) {
+    String communityName = community.getName();
+    flushJoins(community, batch.joins);
+    if (!batch.targets.isEmpty()) {
+      addTargets(communityName, batch.targets);
+    }
+    if (batch.changed) {
+      distributeUpdates(communityName);
+    }
+    community.setLastUpdate(System.currentTimeMillis());
+  }
+
+  /**
+   * Applies a single request to community, caller holds community lock.
+   * @return boolean True if request succeeded
+   */
+  private boolean applyRequest(Batch              batch,
+                               String             source,
+                               CommunityImpl      community,
+                               int                reqType,
+                               Entity             entity,
+                               ModificationItem[] attrMods) {
+    boolean result = true;
+    switch (reqType) {
+      case JOIN:
+        if (entity != null) {
+          // Added together with following joins by flushJoins
+          batch.joins.add(entity);
+          if (logger.isDebugEnabled()) {
+            logger.debug(agentName + ": Add entity:" +
+                         " community=" + community.getName() +
+                         " entity=" + entity);
+          }
+          batch.targets.add(source);
+          batch.changed = true;
+        } else {
+          result = false;
+        }
+        break;
+      case LEAVE:
+        if (entity != null && community.hasEntity(entity.getName())) {
+          String entitiesBeforeRemove = "";
+          if (logger.isDetailEnabled()) {
+            entitiesBeforeRemove = entityNames(community.getEntities());
+          }
+          community.removeEntity(entity.getName());
+          if (logger.isDebugEnabled()) {
+            logger.debug(agentName + ": Remove entity:" +
+                         " community=" + community.getName() +
+                         " entity=" + entity +
+                         " members=" + community.getEntityCount());
+          }
+          if (logger.isDetailEnabled()) {
+            logger.detail(agentName + ": Remove entity:" +
+                          " community=" + community.getName() +
+                          " entity=" + entity.getName() +
+                          " before=" + entitiesBeforeRemove +
+                          " after=" +
+                          entityNames(community.getEntities()));
+          }
+          batch.changed = true;
+        } else {
+          result = false;
+        }
+        break;
+      case GET_COMMUNITY_DESCRIPTOR:
+        batch.targets.add(source);
+        break;
+      case MODIFY_ATTRIBUTES:
+        if (logger.isDebugEnabled()) {
+          logger.debug(agentName + ": Modify attributes:" +
+                       " community=" + community.getName() +
+                       " source=" + source +
+                       " affectedEntity=" + entity);
+        }
+        if (modifyAttributes(community, entity, attrMods)) {
+          batch.changed = true;
+        }
+        break;
+    }
+    return result;
+  }
+
+  private static Object[] createLocks(int n) {
+    Object[] locks = new Object[n];
+    for (int i = 0; i < n; i++) {
+      locks[i] = new Object();
+    }
+    return locks;
+  }
+
+  /**
+   * Returns lock guarding changes to named community.
+   * @param communityName Name of community
+   * @return Object       Lock shared by all requests for community
+   */
+  protected Object getLock(String communityName) {
+    int h = communityName.hashCode();
+    h ^= (h >>> 16);
+    return locks[(h & 0x7fffffff) % locks.length];
+  }
+
+  /**
+   * Modify attributes of community or one of its members.
+   * @param community Community
+   * @param entity    Member to modify, or null to modify community attributes
+   * @param attrMods  Changes
+   * @return boolean  True if attributes were modified
+   */
+  private boolean modifyAttributes(CommunityImpl      community,
+                                   Entity             entity,
+                                   ModificationItem[] attrMods) {
+    if (entity == null ||
+        community.getName().equals(entity.getName())) {
+      // modify community attributes
+      Attributes attrs = community.getModifiableAttributes();
+      if (logger.isDetailEnabled()) {
+        logger.debug(agentName + ": Modifying community attributes:" +
+                     " community=" + community.getName() +
+                     " before=" + attrsToString(attrs));
+      }
+      applyAttrMods(attrs, attrMods);
+      if (logger.isDetailEnabled()) {
+        logger.debug(agentName + ": Modifying community attributes:" +
+                     " community=" + community.getName() +
+                     " after=" + attrsToString(attrs));
+      }
+      return true;
     } else {
-      if (isManager(communityName)) {
-        CommunityImpl community = (CommunityImpl)communities.get(communityName);
-        boolean result = true;
-        switch (reqType) {
-          case JOIN:
-            if (entity != null) {
-              String entitiesBeforeAdd = "";
-              if (logger.isDetailEnabled()) {
-                entitiesBeforeAdd = entityNames(community.getEntities());
-              }
-              community.addEntity(entity);
-              if (logger.isDebugEnabled()) {
-                logger.debug(agentName + ": Add entity:" +
-                             " community=" + community.getName() +
-                             " entity=" + entity +
-                             " members=" + community.getEntities().size());
-              }
-              if (logger.isDetailEnabled()) {
-                logger.detail(agentName + ": Add entity:" +
-                              " community=" + community.getName() +
-                              " entity=" + entity.getName() +
-                              " before=" + entitiesBeforeAdd +
-                              " after=" +
-                              entityNames(community.getEntities()));
-              }
-              addTargets(communityName, Collections.singleton(source));
-              distributeUpdates(communityName);
-            } else {
-              result = false;
-            }
-            break;
-          case LEAVE:
-            if (entity != null && community.hasEntity(entity.getName())) {
-              String entitiesBeforeRemove = "";
-              if (logger.isDetailEnabled()) {
-                entitiesBeforeRemove = entityNames(community.getEntities());
-              }
-              community.removeEntity(entity.getName());
-              if (logger.isDebugEnabled()) {
-                logger.debug(agentName + ": Remove entity:" +
-                             " community=" + community.getName() +
-                             " entity=" + entity +
-                             " members=" + community.getEntities().size());
-              }
-              if (logger.isDetailEnabled()) {
-                logger.detail(agentName + ": Remove entity:" +
-                              " community=" + community.getName() +
-                              " entity=" + entity.getName() +
-                              " before=" + entitiesBeforeRemove +
-                              " after=" +
-                              entityNames(community.getEntities()));
-              }
-              distributeUpdates(communityName);
-            } else {
-              result = false;
-            }
-            break;
-          case GET_COMMUNITY_DESCRIPTOR:
-            addTargets(communityName, Collections.singleton(source));
-            break;
-          case MODIFY_ATTRIBUTES:
-            if (logger.isDebugEnabled()) {
-              logger.debug(agentName + ": Modify attributes:" +
-                           " community=" + community.getName() +
-                           " source=" + source +
-                           " affectedEntity=" + entity);
-            }
-            if (entity == null ||
-                community.getName().equals(entity.getName())) {
-              // modify community attributes
-              Attributes attrs = community.getAttributes();
-              if (logger.isDetailEnabled()) {
-                logger.debug(agentName + ": Modifying community attributes:" +
-                             " community=" + community.getName() +
-                             " before=" + attrsToString(attrs));
-              }
-              applyAttrMods(attrs, attrMods);
-              if (logger.isDetailEnabled()) {
-                logger.debug(agentName + ": Modifying community attributes:" +
-                             " community=" + community.getName() +
-                             " after=" + attrsToString(attrs));
-              }
-              distributeUpdates(communityName);
-            } else {
-              // modify attributes of a community entity
-              entity = community.getEntity(entity.getName());
-              if (entity != null) {
-                Attributes attrs = entity.getAttributes();
-                if (logger.isDetailEnabled()) {
-                  logger.detail(agentName + ": Modifying entity attributes:" +
-                                " community=" + community.getName() +
-                                " entity=" + entity.getName() +
-                                " before=" + attrsToString(attrs));
-                }
-                applyAttrMods(attrs, attrMods);
-                if (logger.isDetailEnabled()) {
-                  logger.detail(agentName + ": Modifying entity attributes:" +
-                                " community=" + community.getName() +
-                                " entity=" + entity.getName() +
-                                " after=" + attrsToString(attrs));
-                }
-                distributeUpdates(communityName);
-              }
-            }
-            break;
+      // modify attributes of a community entity
+      entity = community.getModifiableEntity(entity.getName());
+      if (entity != null) {
+        Attributes attrs = CommunityUtils.getModifiableAttributes(entity);
+        if (logger.isDetailEnabled()) {
+          logger.detail(agentName + ": Modifying entity attributes:" +
+                        " community=" + community.getName() +
+                        " entity=" + entity.getName() +
+                        " before=" + attrsToString(attrs));
         }
-        community.setLastUpdate(System.currentTimeMillis());
-        return new CommunityResponseImpl(result
-                                         ? CommunityResponse.SUCCESS
-                                         : CommunityResponse.FAIL,
-                                         result ? community : null);
-      } else {
+        applyAttrMods(attrs, attrMods);
+        community.reindexEntity(entity.getName());
+        if (logger.isDetailEnabled()) {
+          logger.detail(agentName + ": Modifying entity attributes:" +
+                        " community=" + community.getName() +
+                        " entity=" + entity.getName() +
+                        " after=" + attrsToString(attrs));
+        }
+        return true;
+      }
+      return false;
+    }
+  }
+
+  public CommunityResponse processRequest(String source,
+                                          String communityName,
+                                          List   changes) {
+    return handleRequest(source, communityName, changes);
+  }
+
+  /**
+   * Apply a list of MembershipChanges.  All changes are checked before any
+   * is applied so that either all or none take effect.  Members are added
+   * and removed in bulk and a single update is distributed.
+   */
+  protected CommunityResponse handleRequest(String source,
+                                            String communityName,
+                                            List   changes) {
+    if (logger.isDebugEnabled()) {
+      logger.debug(agentName+": processRequest:" +
+                   " source=" + source +
+                   " community=" + communityName +
+                   " reqType=" + BULK +
+                   " changes=" + changes.size());
+    }
+    CommunityResponse resp = authorize(source, communityName, changes);
+    if (resp != null) {
+      return resp;
+    }
+    synchronized (getLock(communityName)) {
+      if (!isManager(communityName)) {
         if (logger.isDetailEnabled()) {
           logger.detail(agentName + ": Not community manager:" +
                         " community=" + communityName +
                         " source=" + source +
-                        " request=" + reqType);
+                        " request=" + BULK);
         }
-        return new CommunityResponseImpl(CommunityResponse.TIMEOUT, null);
+        return bulkTimeout(changes.size());
       }
+      CommunityImpl community = (CommunityImpl)communities.get(communityName);
+      Batch batch = new Batch();
+      resp = applyChanges(batch, source, community, changes);
+      commit(community, batch);
+      return resp;
+    }
+  }
+
+  /**
+   * Checks each change against access policy.
+   * @return CommunityResponse Failure response if any change is not
+   *                           authorized, otherwise null
+   */
+  private CommunityResponse authorize(String source,
+                                      String communityName,
+                                      List   changes) {
+    int results[] = new int[changes.size()];
+    boolean authorized = true;
+    for (int i = 0; i < results.length; i++) {
+      MembershipChange change = (MembershipChange)changes.get(i);
+      if (authorize(source, communityName, change.getType(),
+                    change.getEntity(), change.getAttributeModifications())) {
+        results[i] = CommunityResponse.SUCCESS;
+      } else {
+        results[i] = CommunityResponse.FAIL;
+        authorized = false;
+      }
+    }
+    return authorized
+        ? null
+        : new BulkCommunityResponse(CommunityResponse.FAIL, null, results);
+  }
+
+  private CommunityResponse bulkTimeout(int size) {
+    int results[] = new int[size];
+    Arrays.fill(results, CommunityResponse.TIMEOUT);
+    return new BulkCommunityResponse(CommunityResponse.TIMEOUT, null, results);
+  }
+
+  /**
+   * Validates and applies authorized changes, caller holds community lock.
+   */
+  private CommunityResponse applyChanges(Batch         batch,
+                                         String        source,
+                                         CommunityImpl community,
+                                         List          changes) {
+    String communityName = community.getName();
+    int n = changes.size();
+    int results[] = new int[n];
+
+    // Check each change against membership as left by earlier changes
+    boolean valid = true;
+    Set added = new HashSet();
+    Set removed = new HashSet();
+    for (int i = 0; i < n; i++) {
+      MembershipChange change = (MembershipChange)changes.get(i);
+      Entity entity = change.getEntity();
+      String name = entity != null ? entity.getName() : null;
+      boolean ok;
+      boolean isMember = name != null &&
+          (added.contains(name) ||
+           (!removed.contains(name) && community.hasEntity(name)));
+      switch (change.getType()) {
+        case JOIN:
+          ok = entity != null;
+          if (ok) {
+            added.add(name);
+            removed.remove(name);
+          }
+          break;
+        case LEAVE:
+          ok = isMember;
+          if (ok) {
+            removed.add(name);
+            added.remove(name);
+          }
+          break;
+        case MODIFY_ATTRIBUTES:
+          ok = change.getAttributeModifications() != null &&
+               (name == null || name.equals(communityName) || isMember);
+          break;
+        default:
+          ok = false;
+      }
+      results[i] = ok ? CommunityResponse.SUCCESS : CommunityResponse.FAIL;
+      valid &= ok;
+    }
+    if (!valid) {
+      if (logger.isDebugEnabled()) {
+        logger.debug(agentName + ": Bulk request rejected:" +
+                     " community=" + communityName +
+                     " source=" + source);
+      }
+      return new BulkCommunityResponse(CommunityResponse.FAIL, null, results);
+    }
+
+    // Apply changes in order, consecutive joins and leaves are batched
+    List joins = new ArrayList();
+    List leaves = new ArrayList();
+    for (int i = 0; i < n; i++) {
+      MembershipChange change = (MembershipChange)changes.get(i);
+      Entity entity = change.getEntity();
+      if (change.getType() != JOIN) flushJoins(community, joins);
+      if (change.getType() != LEAVE) flushLeaves(community, leaves);
+      switch (change.getType()) {
+        case JOIN:
+          joins.add(entity);
+          batch.targets.add(source);
+          break;
+        case LEAVE:
+          leaves.add(entity.getName());
+          break;
+        case MODIFY_ATTRIBUTES:
+          modifyAttributes(community, entity, change.getAttributeModifications());
+          break;
+      }
+    }
+    flushJoins(community, joins);
+    flushLeaves(community, leaves);
+    if (logger.isDebugEnabled()) {
+      logger.debug(agentName + ": Bulk request applied:" +
+                   " community=" + community.getName() +
+                   " changes=" + n +
+                   " members=" + community.getEntityCount());
+    }
+    batch.changed = true;
+    return new BulkCommunityResponse(CommunityResponse.SUCCESS, community, results);
+  }
+
+  private void flushJoins(CommunityImpl community, List joins) {
+    if (!joins.isEmpty()) {
+      String entitiesBeforeAdd = "";
+      if (logger.isDetailEnabled()) {
+        entitiesBeforeAdd = entityNames(community.getEntities());
+      }
+      community.addEntities(joins);
+      if (logger.isDebugEnabled()) {
+        logger.debug(agentName + ": Add entities:" +
+                     " community=" + community.getName() +
+                     " added=" + joins.size() +
+                     " members=" + community.getEntityCount());
+      }
+      if (logger.isDetailEnabled()) {
+        logger.detail(agentName + ": Add entities:" +
+                      " community=" + community.getName() +
+                      " before=" + entitiesBeforeAdd +
+                      " after=" +
+                      entityNames(community.getEntities()));
+      }
+      joins.clear();
+    }
+  }
+
+  private void flushLeaves(CommunityImpl community, List leaves) {
+    if (!leaves.isEmpty()) {
+      community.removeEntities(leaves);
+      leaves.clear();
     }
   }
 
@@ -303,7 +658,7 @@ public abstract class AbstractCommunityManager
           }
           Attribute oldAttr = attrs.get(newAttr.getID());
           if (oldAttr == null) {
-            attrs.put(newAttr);
+            attrs.put(new CompactAttribute(newAttr));
           }
           else {
             try {
@@ -320,7 +675,7 @@ public abstract class AbstractCommunityManager
           break;
         case DirContext.REPLACE_ATTRIBUTE:
           attrs.remove(mods[i].getAttribute().getID());
-          attrs.put(mods[i].getAttribute());
+          attrs.put(new CompactAttribute(mods[i].getAttribute()));
           break;
         case DirContext.REMOVE_ATTRIBUTE:
           attrs.remove(mods[i].getAttribute().getID());
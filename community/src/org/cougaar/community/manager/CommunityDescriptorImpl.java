@@ -26,9 +26,17 @@
 
 package org.cougaar.community.manager;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import org.cougaar.community.CommunityDelta;
 import org.cougaar.community.CommunityDescriptor;
+import org.cougaar.community.CommunityImpl;
 import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.persist.NotPersistable;
+import org.cougaar.core.persist.PersistenceOutputStream;
 import org.cougaar.core.relay.Relay;
 import org.cougaar.core.service.community.Community;
 import org.cougaar.core.util.UID;
@@ -37,6 +45,21 @@ import org.cougaar.core.util.UID;
  * Implementation of CommunityDescriptor interface.  The CommunityDescriptor
  * wraps an org.cougaar.core.service.community.Community instance for
  * transmission to remote agents using blackboard relay.
+ * <p>
+ * Each publish increments the descriptor version.  A publish may carry
+ * either the full community or a CommunityDelta relative to the previous
+ * version, in which case only the delta is serialized.  A target that
+ * receives a delta it can't apply, because it missed a version or has no
+ * community yet, returns a resync response.  The source resends the full
+ * community to that target only, using a separate resync descriptor that
+ * the target installs with resync(CommunityDescriptorImpl).  A delta is
+ * applied to a copy of the target's community so a community that may be
+ * referenced elsewhere, such as by a forwarding relay, is never modified.
+ * <p>
+ * When the community has many targets the descriptor also carries the
+ * ordered list of targets defining a DistributionTree.  Targets with
+ * children forward the descriptor using their own relay.  The list is only
+ * serialized with a full community or when it has changed.
  **/
 public class CommunityDescriptorImpl
   implements CommunityDescriptor, java.io.Serializable, NotPersistable {
@@ -44,6 +67,15 @@ public class CommunityDescriptorImpl
   protected MessageAddress source;
   protected Community community;
   protected UID uid;
+  protected long version = 0;
+  protected long baseVersion = -1;  // Version that delta applies to
+  protected CommunityDelta delta;
+  protected transient Object response;  // Resync request sent by target
+  protected List routes;            // Targets in distribution tree
+  protected int fanout = 0;
+  protected boolean sendRoutes = false;
+  protected boolean forwarded = false;  // Sent by a forwarding target
+  protected boolean resync = false;     // Full copy for targets that missed a version
 
   /**
    * Constructor.
@@ -68,14 +100,146 @@ public class CommunityDescriptorImpl
   }
 
   public String getName() {
-    return community.getName();
+    return community != null ? community.getName()
+        : (delta != null ? delta.getName() : null);
+  }
+
+  /**
+   * Returns version of community content.
+   * @return Version
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Prepares descriptor to send complete community.
+   * @param community Current community
+   */
+  public void setSnapshot(Community community) {
+    this.community = community;
+    this.delta = null;
+    this.baseVersion = -1;
+    ++version;
+  }
+
+  /**
+   * Prepares descriptor to send changes since last version.
+   * @param community Current community
+   * @param delta     Changes since last version
+   */
+  public void setDelta(Community community, CommunityDelta delta) {
+    this.community = community;
+    this.delta = delta;
+    this.baseVersion = version;
+    ++version;
+  }
+
+  /**
+   * Sets the distribution tree.
+   * @param routes Ordered list of targets
+   * @param fanout Branching factor
+   * @param send   True if routes are to be sent with next version
+   */
+  public void setRoutes(List routes, int fanout, boolean send) {
+    this.routes = routes;
+    this.fanout = fanout;
+    this.sendRoutes = send;
+  }
+
+  /**
+   * Returns the ordered list of targets of the distribution tree, or null
+   * if descriptor is sent directly to all targets.
+   * @return List of MessageAddresses
+   */
+  public List getRoutes() {
+    return routes;
+  }
+
+  public int getFanout() {
+    return fanout;
+  }
+
+  /**
+   * Returns true if this descriptor is the copy forwarded by a target to its
+   * children in the distribution tree.
+   * @return boolean
+   */
+  public boolean isForwarded() {
+    return forwarded;
+  }
+
+  /**
+   * Prepares descriptor to forward version received from parent.
+   * @param received Descriptor received from parent
+   * @param snapshot True if full community must be sent
+   */
+  public void forward(CommunityDescriptorImpl received, boolean snapshot) {
+    community = received.community;
+    version = received.version;
+    if (snapshot || received.delta == null) {
+      delta = null;
+      baseVersion = -1;
+    } else {
+      delta = received.delta;
+      baseVersion = received.baseVersion;
+    }
+    routes = received.routes;
+    fanout = received.fanout;
+    sendRoutes = delta == null || received.sendRoutes;
+    forwarded = true;
+  }
+
+  /**
+   * Returns true if this descriptor resends a version as a full community
+   * to targets of another descriptor that missed an update.
+   * @return boolean
+   */
+  public boolean isResync() {
+    return resync;
+  }
+
+  /**
+   * Prepares descriptor to resend the current version of another descriptor
+   * as a full community.  Sent using a separate relay to the targets that
+   * requested a resync.
+   * @param current Descriptor holding version to resend
+   */
+  public void setResync(CommunityDescriptorImpl current) {
+    community = current.community;
+    version = current.version;
+    delta = null;
+    baseVersion = -1;
+    routes = current.routes;
+    fanout = current.fanout;
+    sendRoutes = routes != null;
+    resync = true;
+  }
+
+  /**
+   * Installs the full community carried by a resync descriptor if it is
+   * newer than the version held.
+   * @param cd Resync descriptor received from source of this descriptor
+   * @return True if community was updated
+   */
+  public boolean resync(CommunityDescriptorImpl cd) {
+    if (cd.community == null || (community != null && cd.version <= version)) {
+      return false;
+    }
+    community = cd.community;
+    version = cd.version;
+    delta = null;
+    baseVersion = -1;
+    updateRoutes(cd);
+    response = null;
+    return true;
   }
 
   //
   // Relay.Target Interface methods
   //
   public Object getResponse() {
-    return null;
+    return response;
   }
 
   public MessageAddress getSource() {
@@ -83,13 +247,50 @@ public class CommunityDescriptorImpl
   }
 
   public int updateContent(Object content, Relay.Token token) {
-    CommunityDescriptor cd = (CommunityDescriptorImpl)content;
-    community = cd.getCommunity();
-    return Relay.CONTENT_CHANGE;
+    CommunityDescriptorImpl cd = (CommunityDescriptorImpl)content;
+    if (cd == this) {
+      return Relay.CONTENT_CHANGE;
+    }
+    if (cd.delta == null) {
+      community = cd.getCommunity();
+      version = cd.version;
+      delta = null;
+      baseVersion = -1;
+      updateRoutes(cd);
+      response = null;
+      return Relay.CONTENT_CHANGE;
+    }
+    if (community instanceof CommunityImpl && cd.baseVersion == version) {
+      // Copy is cheap, members are shared until changed
+      CommunityImpl updated = (CommunityImpl)((CommunityImpl)community).clone();
+      cd.delta.applyTo(updated);
+      community = updated;
+      version = cd.version;
+      // Retained so that delta can be forwarded
+      delta = cd.delta;
+      baseVersion = cd.baseVersion;
+      updateRoutes(cd);
+      return Relay.CONTENT_CHANGE;
+    }
+    if (community != null && cd.version <= version) {
+      return Relay.NO_CHANGE;  // Already have this version
+    }
+    // Missed an update, request full community from source
+    response = new Long(version);
+    return Relay.RESPONSE_CHANGE;
+  }
+
+  // Routes are only included when they have changed
+  private void updateRoutes(CommunityDescriptorImpl cd) {
+    sendRoutes = cd.routes != null;
+    if (sendRoutes) {
+      routes = cd.routes;
+      fanout = cd.fanout;
+    }
   }
 
   public String toXML() {
-    return community.toXml();
+    return community != null ? community.toXml() : "";
   }
 
   //
@@ -111,6 +312,42 @@ public class CommunityDescriptorImpl
    * @return String - a string representation
    **/
   public String toString() {
-    return "CommunityDescriptor: community=" + community.getName();
+    return "CommunityDescriptor: community=" + getName() +
+        " version=" + version;
+  }
+
+  private void writeObject(ObjectOutputStream stream) throws IOException {
+    stream.writeObject(source);
+    stream.writeObject(uid);
+    stream.writeLong(version);
+    // Deltas are only sent in messages, persisted state holds the full
+    // community so that it can be republished after rehydration
+    boolean full = delta == null || stream instanceof PersistenceOutputStream;
+    stream.writeLong(full ? -1 : baseVersion);
+    stream.writeObject(full ? null : delta);
+    stream.writeObject(full ? community : null);
+    stream.writeInt(fanout);
+    stream.writeObject(sendRoutes || full ? routes : null);
+    stream.writeBoolean(forwarded);
+    stream.writeBoolean(resync);
+  }
+
+  private void readObject(ObjectInputStream stream)
+      throws ClassNotFoundException, IOException {
+    source = (MessageAddress)stream.readObject();
+    uid = (UID)stream.readObject();
+    version = stream.readLong();
+    baseVersion = stream.readLong();
+    delta = (CommunityDelta)stream.readObject();
+    community = (Community)stream.readObject();
+    fanout = stream.readInt();
+    routes = (List)stream.readObject();
+    sendRoutes = routes != null;
+    forwarded = stream.readBoolean();
+    resync = stream.readBoolean();
+    if (community == null) {
+      // Delta received by a new target, need full community
+      response = new Long(-1);
+    }
   }
 }
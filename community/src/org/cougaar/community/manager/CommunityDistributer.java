@@ -28,6 +28,7 @@ package org.cougaar.community.manager;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -36,12 +37,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.cougaar.community.CommunityDelta;
 import org.cougaar.community.CommunityImpl;
+import org.cougaar.community.CommunityUtils;
 import org.cougaar.community.CommunityDescriptor;
 import org.cougaar.community.RelayAdapter;
+import org.cougaar.community.DescriptorRelay;
 import org.cougaar.community.CommunityUpdateListener;
 import org.cougaar.community.BlackboardClient;
 import org.cougaar.community.CommunityServiceConstants;
+import org.cougaar.community.DistributionTree;
 import org.cougaar.core.component.BindingSite;
 import org.cougaar.core.component.ServiceBroker;
 import org.cougaar.core.component.ServiceAvailableEvent;
@@ -68,6 +73,7 @@ public class CommunityDistributer implements CommunityServiceConstants {
   private long updateInterval;
   private long cacheExpiration;
   private boolean nodesOnly = true;
+  private int fanout = DEFAULT_DISTRIBUTION_FANOUT;
 
   private WhitePagesService whitePagesService;
   private ServiceBroker serviceBroker;
@@ -79,10 +85,16 @@ public class CommunityDistributer implements CommunityServiceConstants {
   private MessageAddress agentId;
 
   private Map communities;
+  private AbstractCommunityManager manager;
 
   // Map of DescriptorEntry objects.  Allows multiple communities to be
   // managed.
   private Map descriptors = Collections.synchronizedMap(new HashMap());
+
+  // Outstanding White Pages lookups of agent nodes, maps agent
+  // MessageAddress to Set of names of communities waiting for the result
+  private final Map nodeLookups = new HashMap();
+
   class DescriptorEntry {
     String name;
     RelayAdapter ra;
@@ -91,6 +103,14 @@ public class CommunityDistributer implements CommunityServiceConstants {
     long lastSent = 0;
     boolean didChange = true;
     boolean doRemove = false;
+    CommunityImpl published;  // Copy of community as last sent
+    Object resyncRequest;     // Last resync response handled
+    List resyncRelays = new ArrayList();  // Resent full communities
+    long resyncSent;          // Time resync relays were published
+    List routes = new ArrayList();  // Targets in distribution tree
+    boolean routesChanged = false;
+    boolean relaysChanged = true;   // Relay nodes changed since last verified
+    long relaysVerified;      // Time relay nodes were last verified
     DescriptorEntry(String name) {
       this.name = name;
     }
@@ -109,7 +129,26 @@ public class CommunityDistributer implements CommunityServiceConstants {
                               boolean                 nodesOnly,
                               CommunityUpdateListener cul,
                               Map                     communities) {
+    this(bs, nodesOnly, cul, communities, null);
+  }
+
+  /**
+   * Constructor.
+   * @param bs  BindingSite from CommunityManager.
+   * @param nodesOnly       True if CommunityDescriptors are only sent to node
+   *                        agents
+   * @param cul             Listener object to receive community descriptor updates
+   * @param communities     Communities managed by CommunityManager
+   * @param manager         CommunityManager whose locks guard changes to
+   *                        communities
+   */
+  public CommunityDistributer(BindingSite              bs,
+                              boolean                  nodesOnly,
+                              CommunityUpdateListener  cul,
+                              Map                      communities,
+                              AbstractCommunityManager manager) {
     this.communities = communities;
+    this.manager = manager;
     this.bindingSite = bs;
     this.nodesOnly = nodesOnly;
     this.updateListener = cul;
@@ -132,6 +171,9 @@ public class CommunityDistributer implements CommunityServiceConstants {
       cacheExpiration =
           Long.parseLong(System.getProperty(CACHE_EXPIRATION_PROPERTY,
                                             Long.toString(DEFAULT_CACHE_EXPIRATION)));
+      fanout =
+          Integer.parseInt(System.getProperty(DISTRIBUTION_FANOUT_PROPERTY,
+                                              Integer.toString(DEFAULT_DISTRIBUTION_FANOUT)));
     } catch (Exception ex) {
       if (logger.isWarnEnabled()) {
         logger.warn(agentId + ": Exception setting parameter from system property", ex);
@@ -193,14 +235,31 @@ public class CommunityDistributer implements CommunityServiceConstants {
     }
     for (Iterator it = l.iterator(); it.hasNext();) {
       DescriptorEntry de = (DescriptorEntry) it.next();
-      //CommunityImpl community =
-      //    (CommunityImpl)((CommunityImpl)communities.get(de.name)).clone();
-      CommunityImpl community = (CommunityImpl)communities.get(de.name);
-      community.setLastUpdate(now);
+      if (!de.resyncRelays.isEmpty() &&
+          (de.doRemove || now > de.resyncSent + updateInterval)) {
+        removeResyncRelays(de);
+      }
+      if (de.ra instanceof DescriptorRelay) {
+        // Targets that missed an update are resent the last version
+        Set resyncTargets = ((DescriptorRelay)de.ra).takeResyncTargets();
+        if (!resyncTargets.isEmpty() && de.published != null) {
+          publishResync(de, resyncTargets, now);
+        }
+      } else {
+        Object resync = de.ra.getResponse();
+        if (resync != null && resync != de.resyncRequest) {
+          // A target missed an update, next publish sends full community
+          de.resyncRequest = resync;
+          de.published = null;
+          de.didChange = true;
+        }
+      }
+      CommunityImpl community = snapshot(de.name, now);
       ((CommunityDescriptorImpl)de.ra.getContent()).community = community;
       if (de.lastSent == 0) {
         if (!de.nodeTargets.isEmpty()) {
-          updateTargets(de.ra, nodesOnly ? de.nodeTargets : de.ra.getInterestedAgents());
+          updateTargets(de, nodesOnly ? de.nodeTargets : de.ra.getInterestedAgents());
+          prepareDescriptor(de, community, true);
           de.didChange = false;
           de.lastSent = now;
           if (blackboardClient != null) {
@@ -208,9 +267,10 @@ public class CommunityDistributer implements CommunityServiceConstants {
             if (logger.isDebugEnabled()) {
               logger.debug("publishAdd: " + de.ra +
                            " targets=" + de.ra.getTargets().size() +
-                           " size=" + ((CommunityDescriptor)de.ra.getContent()).getCommunity().getEntities().size());
+                           " size=" + CommunityUtils.getEntityCount(((CommunityDescriptor)de.ra.getContent()).getCommunity()));
             }
           }
+          verifyRelays(de, now);
           if (de.nodeTargets.contains(agentId)) {
             //updateListener.updateCommunity((CommunityImpl)community.clone());
             updateListener.updateCommunity(community);
@@ -220,7 +280,9 @@ public class CommunityDistributer implements CommunityServiceConstants {
         if ((de.didChange && (now > (de.lastSent + updateInterval))) ||
             (cacheExpiration != NEVER && (now > (de.lastSent + (cacheExpiration / 2))))) {
           // publish changed descriptor
-          updateTargets(de.ra, nodesOnly ? de.nodeTargets : de.ra.getInterestedAgents());
+          boolean newTargets =
+              updateTargets(de, nodesOnly ? de.nodeTargets : de.ra.getInterestedAgents());
+          prepareDescriptor(de, community, newTargets);
           de.didChange = false;
           de.lastSent = now;
           if (blackboardClient != null) {
@@ -228,9 +290,10 @@ public class CommunityDistributer implements CommunityServiceConstants {
             if (logger.isDebugEnabled()) {
               logger.debug("publishChange: " + de.ra +
                            " targets=" + de.ra.getTargets().size() +
-                           " size=" + ((CommunityDescriptor)de.ra.getContent()).getCommunity().getEntities().size());
+                           " size=" + CommunityUtils.getEntityCount(((CommunityDescriptor)de.ra.getContent()).getCommunity()));
             }
           }
+          verifyRelays(de, now);
           if (de.nodeTargets.contains(agentId)) {
             //updateListener.updateCommunity((CommunityImpl)community.clone());
             updateListener.updateCommunity(community);
@@ -254,6 +317,101 @@ public class CommunityDistributer implements CommunityServiceConstants {
     }
   }
 
+  /**
+   * Resends the last published version of a community as a full community
+   * to targets that missed an update.  A separate relay is used so that
+   * other targets continue to receive deltas, it is removed once targets
+   * have had time to receive it.
+   * @param de      Descriptor entry
+   * @param targets Targets requesting resync
+   * @param now     Time of publish
+   */
+  private void publishResync(DescriptorEntry de, Set targets, long now) {
+    CommunityDescriptorImpl rcd =
+        new CommunityDescriptorImpl(agentId, null, getUID());
+    rcd.setResync((CommunityDescriptorImpl)de.ra.getContent());
+    RelayAdapter ra = new RelayAdapter(agentId, rcd, rcd.getUID());
+    for (Iterator it = targets.iterator(); it.hasNext();) {
+      ra.addTarget((MessageAddress)it.next());
+    }
+    de.resyncRelays.add(ra);
+    de.resyncSent = now;
+    if (blackboardClient != null) {
+      blackboardClient.publish(ra, BlackboardClient.ADD);
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("publishResync: " + rcd +
+                   " targets=" + RelayAdapter.targetsToString(ra));
+    }
+  }
+
+  private void removeResyncRelays(DescriptorEntry de) {
+    for (Iterator it = de.resyncRelays.iterator(); it.hasNext();) {
+      if (blackboardClient != null) {
+        blackboardClient.publish(it.next(), BlackboardClient.REMOVE);
+      }
+    }
+    de.resyncRelays.clear();
+  }
+
+  /**
+   * Returns a copy of named community to publish, stamped with the time of
+   * publish.  The copy is taken holding the lock used by the manager for
+   * changes to the community so it has all or none of a request's changes,
+   * it is then both diffed against the prior publish and sent to targets.
+   * @param communityName Name of community
+   * @param now           Time of publish
+   * @return Copy of community
+   */
+  private CommunityImpl snapshot(String communityName, long now) {
+    CommunityImpl community = (CommunityImpl)communities.get(communityName);
+    Object lock = manager != null ? manager.getLock(communityName) : community;
+    synchronized (lock) {
+      community.setLastUpdate(now);
+      return (CommunityImpl)community.clone();
+    }
+  }
+
+  /**
+   * Sets descriptor content to either the full community or the changes
+   * since the previous publish.  A full community is sent on first publish,
+   * when targets were added or when most of the community changed.  Targets
+   * requesting a resync are sent the full community separately, see
+   * publishResync.
+   * @param de        Descriptor entry
+   * @param community Copy of community to publish, not modified afterwards
+   * @param snapshot  True if full community must be sent
+   */
+  private void prepareDescriptor(DescriptorEntry de,
+                                 CommunityImpl community,
+                                 boolean snapshot) {
+    CommunityDescriptorImpl cd = (CommunityDescriptorImpl)de.ra.getContent();
+    CommunityDelta delta = null;
+    if (!snapshot && de.published != null) {
+      delta = CommunityDelta.diff(de.published, community);
+      if (delta.size() > community.getEntityCount() / 2) {
+        delta = null;
+      }
+    }
+    if (delta != null) {
+      cd.setDelta(community, delta);
+    } else {
+      cd.setSnapshot(community);
+    }
+    if (fanout > 0) {
+      synchronized (de.routes) {
+        cd.setRoutes(new ArrayList(de.routes), fanout,
+                     delta == null || de.routesChanged);
+        de.routesChanged = false;
+      }
+    }
+    de.published = community;
+    if (logger.isDetailEnabled()) {
+      logger.detail("prepareDescriptor: " + cd +
+                    (delta != null ? " " + delta : " snapshot"));
+    }
+  }
+
   /**
    * Enable automatic update of CommunityDescriptors for named community.
    * @param communityName  Community to update
@@ -264,7 +422,7 @@ public class CommunityDistributer implements CommunityServiceConstants {
     if (de == null) {
       de = new DescriptorEntry(communityName);
       CommunityDescriptorImpl cd = new CommunityDescriptorImpl(agentId, null, getUID());
-      de.ra = new RelayAdapter(agentId, cd, cd.getUID());
+      de.ra = new DescriptorRelay(agentId, cd, cd.getUID());
       descriptors.put(communityName, de);
       addTargets(communityName, agents);
     }
@@ -315,11 +473,11 @@ public class CommunityDistributer implements CommunityServiceConstants {
     DescriptorEntry de = (DescriptorEntry)descriptors.get(communityName);
     if (de != null) {
       de.ra.getInterestedAgents().addAll(targets);
-      Set agentsToAdd = new HashSet(targets);
-      for (Iterator it = agentsToAdd.iterator(); it.hasNext(); ) {
-        String targetName = (String)it.next();
-        findNodeTargets(MessageAddress.getMessageAddress(targetName), communityName);
+      List agentIds = new ArrayList(targets.size());
+      for (Iterator it = targets.iterator(); it.hasNext(); ) {
+        agentIds.add(MessageAddress.getMessageAddress((String)it.next()));
       }
+      findNodeTargets(agentIds, communityName);
     }
   }
 
@@ -353,12 +511,120 @@ public class CommunityDistributer implements CommunityServiceConstants {
     }
   }
 
+  /**
+   * Update Relay target set.  If a distribution tree is used new targets are
+   * added to the end of the tree and the relay is sent to the top of the
+   * tree only.
+   * @param de      Descriptor entry
+   * @param targets Targets
+   * @return True if any targets were added to relay
+   */
+  private boolean updateTargets(DescriptorEntry de, Set targets) {
+    if (fanout <= 0) {
+      return updateTargets(de.ra, targets);
+    }
+    Set current = new HashSet();
+    synchronized (targets) {
+      current.addAll(targets);
+    }
+    current.remove(agentId);  // Updated locally
+    List roots;
+    synchronized (de.routes) {
+      // Existing targets keep their position so that few have to change
+      // parent
+      for (int i = de.routes.size() - 1; i >= 0; i--) {
+        if (!current.remove(de.routes.get(i))) {
+          DistributionTree.remove(de.routes, i);
+          de.routesChanged = true;
+          de.relaysChanged = true;
+        }
+      }
+      if (!current.isEmpty()) {
+        de.routes.addAll(current);
+        de.routesChanged = true;
+        de.relaysChanged = true;
+      }
+      roots = DistributionTree.getChildren(de.routes, fanout, null);
+    }
+    boolean added = false;
+    for (Iterator it = new ArrayList(de.ra.getTargets()).iterator(); it.hasNext();) {
+      MessageAddress target = (MessageAddress)it.next();
+      if (!roots.contains(target)) {
+        de.ra.removeTarget(target);
+      }
+    }
+    for (Iterator it = roots.iterator(); it.hasNext();) {
+      MessageAddress target = (MessageAddress)it.next();
+      if (!de.ra.getTargets().contains(target)) {
+        de.ra.addTarget(target);
+        added = true;
+      }
+    }
+    resolveAgents();
+    return added;
+  }
+
+  /**
+   * Checks that targets forwarding descriptors are still listed in White
+   * Pages.  A target that is no longer listed is moved to a leaf position so
+   * that its children are sent the descriptor by another target.  Lookups
+   * are only made when the relay nodes have changed or, if descriptors
+   * expire, once per expiration period.
+   * @param de  Descriptor entry
+   * @param now Current time
+   */
+  private void verifyRelays(final DescriptorEntry de, long now) {
+    List relays = new ArrayList();
+    synchronized (de.routes) {
+      if (!de.relaysChanged &&
+          (cacheExpiration == NEVER || now < de.relaysVerified + cacheExpiration)) {
+        return;
+      }
+      de.relaysChanged = false;
+      de.relaysVerified = now;
+      for (int i = 0; DistributionTree.isRelay(de.routes, fanout, i); i++) {
+        relays.add(de.routes.get(i));
+      }
+    }
+    for (Iterator it = relays.iterator(); it.hasNext();) {
+      final MessageAddress relay = (MessageAddress)it.next();
+      Callback cb = new Callback() {
+        public void execute(Response resp) {
+          if (resp.isAvailable()) {
+            if (resp.isSuccess() &&
+                ((Response.Get)resp).getAddressEntry() == null) {
+              synchronized (de.routes) {
+                int index = de.routes.indexOf(relay);
+                if (index >= 0 &&
+                    DistributionTree.isRelay(de.routes, fanout, index)) {
+                  DistributionTree.demote(de.routes, index);
+                  de.routesChanged = true;
+                  de.relaysChanged = true;
+                  de.didChange = true;
+                  if (logger.isInfoEnabled()) {
+                    logger.info("Relay node not found, reassigning children:" +
+                                " community=" + de.name +
+                                " node=" + relay);
+                  }
+                }
+              }
+            }
+            resp.removeCallback(this);
+          }
+        }
+      };
+      whitePagesService.get(relay.toString(), "topology", cb);
+    }
+  }
+
   /**
    * Update Relay target set.
    * @param ra      Relay to update
    * @param targets Targets
+   * @return True if any targets were added
    */
-  private void updateTargets(RelayAdapter ra, Set targets) {
+  private boolean updateTargets(RelayAdapter ra, Set targets) {
+    boolean added = false;
     Set targetsToAdd = new HashSet();
     synchronized (targets) {
       targetsToAdd.addAll(targets);
@@ -367,9 +633,11 @@ public class CommunityDistributer implements CommunityServiceConstants {
       MessageAddress target = (MessageAddress)it.next();
       if (!ra.getTargets().contains(target)) {
         ra.addTarget(target);
+        added = true;
       }
     }
     resolveAgents();
+    return added;
   }
 
   /**
@@ -420,53 +688,86 @@ public class CommunityDistributer implements CommunityServiceConstants {
   }
 
   /**
-   * Find an agents node by looking in WhitePages.  Add node address to
-   * Relay target set.
-   * @param agentId  MessageAddress of agent
+   * Find nodes of agents by looking in WhitePages and add node addresses to
+   * Relay target set of community.  An agent already being looked up for
+   * any community isn't looked up again, the community is added to those
+   * waiting for the pending result.
+   * @param agentIds      MessageAddresses of agents
    * @param communityName Name of associated community
    */
-  private void findNodeTargets(final MessageAddress agentId,
-                               final String communityName) {
+  private void findNodeTargets(Collection agentIds, String communityName) {
+    List lookups = new ArrayList();
+    synchronized (nodeLookups) {
+      for (Iterator it = agentIds.iterator(); it.hasNext();) {
+        MessageAddress agentId = (MessageAddress)it.next();
+        Set waiting = (Set)nodeLookups.get(agentId);
+        if (waiting == null) {
+          waiting = new HashSet();
+          nodeLookups.put(agentId, waiting);
+          lookups.add(agentId);
+        }
+        waiting.add(communityName);
+      }
+    }
     if (logger.isDetailEnabled()) {
       logger.detail("findNodeTargets:" +
                    " community=" + communityName +
-                   " agent=" + agentId);
+                   " agents=" + agentIds.size() +
+                   " lookups=" + lookups.size());
+    }
+    for (Iterator it = lookups.iterator(); it.hasNext();) {
+      findNodeTarget((MessageAddress)it.next());
     }
+  }
+
+  /**
+   * Find an agents node by looking in WhitePages.  Add node address to
+   * Relay target sets of communities waiting for lookup.
+   * @param agentId  MessageAddress of agent
+   */
+  private void findNodeTarget(final MessageAddress agentId) {
     Callback cb = new Callback() {
       public void execute(Response resp) {
         if (resp.isAvailable()) {
-          if (resp.isSuccess()) {
-            AddressEntry entry = ((Response.Get)resp).getAddressEntry();
-            try {
-              if (entry != null) {
-                URI uri = entry.getURI();
-                MessageAddress node = MessageAddress.getMessageAddress(uri.
-                    getPath().substring(1));
-                DescriptorEntry de = (DescriptorEntry) descriptors.get(
-                    communityName);
+          Set communityNames;
+          synchronized (nodeLookups) {
+            communityNames = (Set)nodeLookups.remove(agentId);
+          }
+          if (communityNames == null) communityNames = Collections.EMPTY_SET;
+          try {
+            AddressEntry entry = resp.isSuccess()
+                ? ((Response.Get)resp).getAddressEntry()
+                : null;
+            if (entry != null) {
+              URI uri = entry.getURI();
+              MessageAddress node = MessageAddress.getMessageAddress(uri.
+                  getPath().substring(1));
+              for (Iterator it = communityNames.iterator(); it.hasNext();) {
+                DescriptorEntry de = (DescriptorEntry)descriptors.get(it.next());
                 if (de != null) {
                   if (!de.nodeTargets.contains(node)) {
                     de.nodeTargets.add(node);
                     de.didChange = true;
                   }
                 }
-              } else {
-                if (logger.isDetailEnabled()) {
-                  logger.detail("AddressEntry is null: agent=" + agentId);
-                }
-                DescriptorEntry de = (DescriptorEntry) descriptors.get(
-                    communityName);
+              }
+            } else {
+              if (logger.isDetailEnabled()) {
+                logger.detail("AddressEntry is null: agent=" + agentId);
+              }
+              for (Iterator it = communityNames.iterator(); it.hasNext();) {
+                DescriptorEntry de = (DescriptorEntry)descriptors.get(it.next());
                 if (de != null) {
                   de.unresolvedAgents.add(agentId);
                 }
               }
-            } catch (Exception ex) {
-              if (logger.isErrorEnabled()) {
-                logger.error("Exception in addNodeToTargets:", ex);
-              }
-            } finally {
-              resp.removeCallback(this);
             }
+          } catch (Exception ex) {
+            if (logger.isErrorEnabled()) {
+              logger.error("Exception in addNodeToTargets:", ex);
+            }
+          } finally {
+            resp.removeCallback(this);
           }
         }
       }
@@ -488,9 +789,7 @@ public class CommunityDistributer implements CommunityServiceConstants {
           agents = new ArrayList(de.unresolvedAgents);
           de.unresolvedAgents.clear();
         }
-        for (Iterator it1 = agents.iterator(); it1.hasNext();) {
-          findNodeTargets((MessageAddress)it1.next(), de.name);
-        }
+        findNodeTargets(agents, de.name);
       }
     }
   }
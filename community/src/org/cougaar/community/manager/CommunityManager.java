@@ -25,6 +25,8 @@
  */
 package org.cougaar.community.manager;
 
+import java.util.List;
+
 import javax.naming.directory.ModificationItem;
 
 import org.cougaar.core.service.community.Community;
@@ -70,6 +72,20 @@ public interface CommunityManager {
                                           Entity             entity,
                                           ModificationItem[] attrMods);
 
+  /**
+   * Client request to apply several membership changes to a community.
+   * The changes are applied atomically, if any change can't be applied
+   * none are.
+   * @param source String  Name of agent submitting request
+   * @param communityName String  Target Community
+   * @param changes List  MembershipChanges to apply in order
+   * @return CommunityResponse  BulkCommunityResponse with status of each
+   *    change
+   */
+  public CommunityResponse processRequest(String source,
+                                          String communityName,
+                                          List   changes);
+
   /**
    * Locate the manager for specified community.
    * @param communityName String  Target community
@@ -26,15 +26,17 @@
 package org.cougaar.community.manager;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.lang.reflect.Constructor;
 
-import javax.naming.directory.ModificationItem;
-
 import org.cougaar.community.BlackboardClient;
 import org.cougaar.community.CommunityDescriptor;
 import org.cougaar.community.CommunityUpdateListener;
@@ -50,7 +52,6 @@ import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.service.AgentIdentificationService;
 import org.cougaar.core.service.LoggingService;
 import org.cougaar.core.service.community.Community;
-import org.cougaar.core.service.community.Entity;
 import org.cougaar.core.service.community.FindCommunityCallback;
 
 import org.cougaar.core.service.wp.AddressEntry;
@@ -115,7 +116,8 @@ public class DefaultCommunityManagerImpl
     distributer = new CommunityDistributer(bs,
                                            true,
                                            cul,
-                                           communities);
+                                           communities,
+                                           this);
   }
 
   /**
@@ -184,28 +186,34 @@ public class DefaultCommunityManagerImpl
    * @param req Request
    */
   protected void processRequest(Request req) {
+    processRequests(req.getCommunityName(), Collections.singletonList(req));
+  }
+
+  /**
+   * Processes Requests for one community received in the same transaction.
+   * The requests are applied as a group so that the community is updated
+   * and distributed once.
+   * @param communityName Name of community
+   * @param reqs List of Requests
+   */
+  protected void processRequests(String communityName, List reqs) {
     if (logger.isDetailEnabled()) {
-      logger.detail(agentId + ": processRequest: " + req);
+      logger.detail(agentId + ": processRequests: " + reqs);
     }
-    String source = req.getSource().toString();
-    String communityName = req.getCommunityName();
-    int reqType = req.getRequestType();
-    Entity entity = req.getEntity();
-    ModificationItem[] attrMods = req.getAttributeModifications();
-    CommunityResponseImpl resp = (CommunityResponseImpl)handleRequest(source,
-                                                                      communityName,
-                                                                      reqType,
-                                                                      entity,
-                                                                      attrMods);
-
-    if (!includeDescriptorInResponse && reqType != GET_COMMUNITY_DESCRIPTOR) {
-      // Don't include community in response, instead rely on CommunityDistributer to send
-      // This decreases messaging overhead (primarily in serialization) and thus
-      //    improves overally scalability
-      resp.setContent(null);
+    List responses = handleRequests(communityName, reqs);
+    for (int i = 0; i < reqs.size(); i++) {
+      Request req = (Request)reqs.get(i);
+      CommunityResponseImpl resp = (CommunityResponseImpl)responses.get(i);
+      if (!includeDescriptorInResponse &&
+          req.getRequestType() != GET_COMMUNITY_DESCRIPTOR) {
+        // Don't include community in response, instead rely on CommunityDistributer to send
+        // This decreases messaging overhead (primarily in serialization) and thus
+        //    improves overally scalability
+        resp.setContent(null);
+      }
+      req.setResponse(resp);
+      myBlackboardClient.publish(req, BlackboardClient.CHANGE);
     }
-    req.setResponse(resp);
-    myBlackboardClient.publish(req, BlackboardClient.CHANGE);
   }
 
   /**
@@ -350,6 +358,7 @@ public class DefaultCommunityManagerImpl
                           " success=" + resp.isSuccess() +
                           " didBind=" + bindResp.didBind());
           if (bindResp.didBind()) {
+            communityService.invalidateManager(communityName);
             distributer.add(communityName,
                             Collections.singleton(agentId.toString()));
             if (logger.isDebugEnabled()) {
@@ -390,6 +399,7 @@ public class DefaultCommunityManagerImpl
                         " success=" + resp.isSuccess() +
                         " didBind=" + bindResp.didBind());
           if (bindResp.didBind()) {
+            communityService.invalidateManager(communityName);
             logger.debug(agentName+": Managing community (rebind)" + communityName);
             managedCommunities.add(communityName);
           } else {
@@ -409,8 +419,14 @@ public class DefaultCommunityManagerImpl
     new CommunityDescriptorPredicate();
   private static final class CommunityDescriptorPredicate implements UnaryPredicate {
     public boolean execute(Object o) {
-      return (o instanceof RelayAdapter &&
-              ((RelayAdapter)o).getContent() instanceof CommunityDescriptor);
+      // Excludes copies forwarded by this agent for another manager
+      if (o instanceof RelayAdapter) {
+        Object content = ((RelayAdapter)o).getContent();
+        return (content instanceof CommunityDescriptor &&
+                !(content instanceof CommunityDescriptorImpl &&
+                  ((CommunityDescriptorImpl)content).isForwarded()));
+      }
+      return false;
     }
   }
 
@@ -461,6 +477,8 @@ public class DefaultCommunityManagerImpl
           priorManager = mgrName;
         }
       };
+      // Bypass cached location so binding is read from White Pages
+      communityService.invalidateManager(communityName);
       findManager(communityName, fmcb);
     }
   }
@@ -503,6 +521,23 @@ public class DefaultCommunityManagerImpl
         for (Iterator it = cds.iterator(); it.hasNext(); ) {
           RelayAdapter ra = (RelayAdapter)it.next();
           CommunityDescriptor cd = (CommunityDescriptor)ra.getContent();
+          if (cd instanceof CommunityDescriptorImpl &&
+              ((CommunityDescriptorImpl)cd).isResync()) {
+            // One time resend to targets that missed an update
+            blackboard.publishRemove(ra);
+            continue;
+          }
+          if (cd.getCommunity() == null) {
+            // Can't be republished, remove relay so targets aren't left
+            // with a stale copy
+            if (logger.isWarnEnabled()) {
+              logger.warn(agentName +
+                          ": Incomplete CommunityDescriptor Relay: community=" +
+                          cd.getName());
+            }
+            blackboard.publishRemove(ra);
+            continue;
+          }
           if (logger.isInfoEnabled()) {
             logger.info(agentName +
                         ": Found CommunityDescriptor Relay: community=" +
@@ -528,15 +563,26 @@ public class DefaultCommunityManagerImpl
         alarmService.addRealTimeAlarm(verifyMgrAlarm);
       }
 
-      // Get CommunityManagerRequests sent by remote agents
+      // Get CommunityManagerRequests sent by remote agents, requests for
+      // the same community are processed together
       Collection communityManagerRequests = requestSub.getAddedCollection();
+      Map requestsByCommunity = new LinkedHashMap();
       for (Iterator it = communityManagerRequests.iterator(); it.hasNext(); ) {
         Request req = (Request)it.next();
         // Process requests sent from remote agents only
         if (!agentName.equals(req.getSource().toString())) {
-          processRequest(req);
+          List reqs = (List)requestsByCommunity.get(req.getCommunityName());
+          if (reqs == null) {
+            reqs = new ArrayList();
+            requestsByCommunity.put(req.getCommunityName(), reqs);
+          }
+          reqs.add(req);
         }
       }
+      for (Iterator it = requestsByCommunity.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry me = (Map.Entry)it.next();
+        processRequests((String)me.getKey(), (List)me.getValue());
+      }
     }
 
   }
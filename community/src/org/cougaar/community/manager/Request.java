@@ -26,6 +26,7 @@
 
 package org.cougaar.community.manager;
 
+import java.util.List;
 import java.util.Set;
 import javax.naming.directory.ModificationItem;
 
@@ -60,6 +61,9 @@ public interface Request extends UniqueObject, CommunityServiceConstants {
   public void setAttributeModifications(ModificationItem[] mods);
   public ModificationItem[] getAttributeModifications();
 
+  public void setMembershipChanges(List changes);
+  public List getMembershipChanges();
+
   public void setResponse(CommunityResponse resp);
   public Object getResponse();
 
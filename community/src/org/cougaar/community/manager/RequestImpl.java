@@ -28,6 +28,7 @@ package org.cougaar.community.manager;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Collections;
 import javax.naming.directory.ModificationItem;
@@ -35,6 +36,7 @@ import javax.naming.directory.ModificationItem;
 import org.cougaar.core.mts.MessageAddress;
 import org.cougaar.core.relay.Relay;
 import org.cougaar.core.util.UID;
+import org.cougaar.util.Strings;
 import org.cougaar.core.service.community.CommunityResponse;
 import org.cougaar.core.service.community.CommunityResponseListener;
 import org.cougaar.core.service.community.Entity;
@@ -57,6 +59,7 @@ public class RequestImpl
 
     protected CommunityResponse resp;
     protected ModificationItem[] mods;
+    protected List changes;
 
     private transient Set targets;
     private transient Set listeners;
@@ -121,6 +124,18 @@ public class RequestImpl
       return mods;
     }
 
+    /**
+     * MembershipChanges for a BULK request.
+     * @param changes List of MembershipChanges
+     */
+    public void setMembershipChanges(List changes) {
+      this.changes = changes;
+    }
+
+    public List getMembershipChanges() {
+      return changes;
+    }
+
     public void addCommunityResponseListener(CommunityResponseListener crl) {
       if (listeners == null) listeners = new HashSet();
       listeners.add(crl);
@@ -138,6 +153,7 @@ public class RequestImpl
         case Request.GET_COMMUNITY_DESCRIPTOR: return "GET_COMMUNITY_DESCRIPTOR";
         case Request.MODIFY_ATTRIBUTES: return "MODIFY_ATTRIBUTES";
         case Request.LIST: return "LIST";
+        case Request.BULK: return "BULK";
       }
       return "INVALID_VALUE";
     }
@@ -150,6 +166,7 @@ public class RequestImpl
       return "request=" + getRequestTypeAsString(requestType) +
              " community=" + communityName +
              " entity=" + (entity == null ? "null" : entity.getName()) +
+             (changes == null ? "" : " changes=" + changes.size()) +
              " resp=" + resp +
              " source=" + this.getSource() +
              " uid=" + uid;
@@ -226,11 +243,15 @@ public class RequestImpl
         throws ClassNotFoundException, java.io.IOException
     {
         stream.defaultReadObject();
+        communityName = Strings.intern(communityName);
         cacheTargets();
     }
 
     protected RequestImpl target_copy() {
-      return new RequestImpl(source, null, communityName, requestType, entity, mods, uid, null);
+      RequestImpl copy =
+          new RequestImpl(source, null, communityName, requestType, entity, mods, uid, null);
+      copy.changes = changes;
+      return copy;
     }
 
   /**